@@ -0,0 +1,135 @@
+package com.jetsnegovik.ftp.server.benchmarks;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.io.OutputStreamWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.Charset;
+
+/**
+ * Minimal passive-mode client on plain sockets, so the client side of the
+ * transfer benchmarks does not share the server's event loops
+ *
+ * @author Вадим
+ */
+public class BlockingFtpClient implements Closeable {
+
+    private static final Charset ASCII = Charset.forName("ASCII");
+    private final Socket control;
+    private final BufferedReader in;
+    private final Writer out;
+    private final byte[] buffer = new byte[64 * 1024];
+
+    public BlockingFtpClient(String host, int port) throws IOException {
+        control = new Socket();
+        control.setTcpNoDelay(true);
+        control.connect(new InetSocketAddress(host, port), 10000);
+        control.setSoTimeout(30000);
+        in = new BufferedReader(new InputStreamReader(control.getInputStream(), ASCII));
+        out = new OutputStreamWriter(control.getOutputStream(), ASCII);
+        expect(reply(), 220);
+    }
+
+    public void login(String username, String password) throws IOException {
+        expect(command("USER " + username), 331);
+        expect(command("PASS " + password), 230);
+        expect(command("TYPE I"), 215, 200);
+    }
+
+    /**
+     * @return number of bytes received
+     */
+    public long retr(String name) throws IOException {
+        Socket data = pasv();
+        try {
+            expect(command("RETR " + name), 150, 125);
+            InputStream stream = data.getInputStream();
+            long total = 0;
+            int read;
+            while ((read = stream.read(buffer)) >= 0) {
+                total += read;
+            }
+            expect(reply(), 226);
+            return total;
+        } finally {
+            data.close();
+        }
+    }
+
+    public void stor(String name, byte[] content) throws IOException {
+        Socket data = pasv();
+        try {
+            expect(command("STOR " + name), 150, 125);
+            OutputStream stream = data.getOutputStream();
+            stream.write(content);
+            stream.flush();
+        } finally {
+            data.close();
+        }
+        expect(reply(), 226);
+    }
+
+    public void dele(String name) throws IOException {
+        expect(command("DELE " + name), 250);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            command("QUIT");
+        } finally {
+            control.close();
+        }
+    }
+
+    private Socket pasv() throws IOException {
+        String reply = command("PASV");
+        expect(reply, 227);
+        String[] parts = reply.substring(reply.indexOf('(') + 1, reply.indexOf(')')).split(",");
+        String host = parts[0] + "." + parts[1] + "." + parts[2] + "." + parts[3];
+        int port = Integer.parseInt(parts[4]) << 8 | Integer.parseInt(parts[5]);
+        Socket data = new Socket();
+        data.setReceiveBufferSize(256 * 1024);
+        data.connect(new InetSocketAddress(host, port), 10000);
+        return data;
+    }
+
+    private String command(String line) throws IOException {
+        out.write(line + "\r\n");
+        out.flush();
+        return reply();
+    }
+
+    private String reply() throws IOException {
+        String line = in.readLine();
+        if (line == null) {
+            throw new IOException("Control connection closed");
+        }
+        if (line.length() > 3 && line.charAt(3) == '-') {
+            String end = line.substring(0, 3) + " ";
+            do {
+                line = in.readLine();
+                if (line == null) {
+                    throw new IOException("Control connection closed");
+                }
+            } while (!line.startsWith(end));
+        }
+        return line;
+    }
+
+    private static void expect(String reply, int... codes) throws IOException {
+        int code = Integer.parseInt(reply.substring(0, 3));
+        for (int expected : codes) {
+            if (code == expected) {
+                return;
+            }
+        }
+        throw new IOException("Unexpected reply: " + reply);
+    }
+}
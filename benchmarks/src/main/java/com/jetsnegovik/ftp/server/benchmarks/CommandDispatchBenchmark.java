@@ -0,0 +1,123 @@
+package com.jetsnegovik.ftp.server.benchmarks;
+
+import com.jetsnegovik.ftp.server.handlers.FtpCommandDecoder;
+import com.jetsnegovik.ftp.server.utils.FtpRequest;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.DelimiterBasedFrameDecoder;
+import io.netty.handler.codec.Delimiters;
+import io.netty.handler.codec.string.StringDecoder;
+import io.netty.util.CharsetUtil;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.StringTokenizer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Control line decoding and dispatch: the former framer + StringDecoder +
+ * StringTokenizer + reflective lookup against FtpCommandDecoder + switch
+ *
+ * @author Вадим
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandDispatchBenchmark {
+
+    @Param({"NOOP", "PWD", "SIZE /inbound/data.csv", "XYZW unknown"})
+    public String line;
+    private ByteBuf input;
+    private EmbeddedChannel legacy;
+    private EmbeddedChannel decoder;
+
+    @Setup
+    public void setup(final Blackhole blackhole) {
+        input = Unpooled.unreleasableBuffer(Unpooled.copiedBuffer(line + "\r\n", CharsetUtil.US_ASCII));
+        legacy = new EmbeddedChannel(
+                new DelimiterBasedFrameDecoder(256, Delimiters.lineDelimiter()),
+                new StringDecoder(),
+                new LegacyDispatcher(blackhole));
+        decoder = new EmbeddedChannel(
+                new FtpCommandDecoder(),
+                new SimpleChannelInboundHandler<FtpRequest>() {
+                    @Override
+                    protected void channelRead0(ChannelHandlerContext ctx, FtpRequest request) throws Exception {
+                        switch (request.getCommand()) {
+                            case UNKNOWN:
+                                blackhole.consume(request.content());
+                                break;
+                            default:
+                                blackhole.consume(request.getCommand());
+                        }
+                    }
+                });
+    }
+
+    @Benchmark
+    public void legacyReflection() {
+        legacy.writeInbound(input.duplicate());
+    }
+
+    @Benchmark
+    public void byteDecoderSwitch() {
+        decoder.writeInbound(input.duplicate());
+    }
+
+    /**
+     * Copy of the dispatch FtpHandler used before the byte decoder
+     */
+    public static class LegacyDispatcher extends SimpleChannelInboundHandler<String> {
+
+        private final Class[] commandHandlerArgTypes = {String.class, StringTokenizer.class, ChannelHandlerContext.class};
+        private final Blackhole blackhole;
+
+        public LegacyDispatcher(Blackhole blackhole) {
+            this.blackhole = blackhole;
+        }
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, String msg) throws Exception {
+            StringTokenizer st = new StringTokenizer(msg);
+            String command = st.nextToken().toLowerCase();
+            Object args[] = {msg, st, ctx};
+            try {
+                Method commandHandler = getClass().getMethod("command_" + command, commandHandlerArgTypes);
+                commandHandler.invoke(this, args);
+            } catch (InvocationTargetException e) {
+                blackhole.consume(e);
+            } catch (NoSuchMethodException e) {
+                blackhole.consume(e);
+            }
+        }
+
+        public void command_noop(String line, StringTokenizer st, ChannelHandlerContext ctx) {
+            blackhole.consume(line);
+        }
+
+        public void command_pwd(String line, StringTokenizer st, ChannelHandlerContext ctx) {
+            blackhole.consume(line);
+        }
+
+        public void command_size(String line, StringTokenizer st, ChannelHandlerContext ctx) {
+            blackhole.consume(st.nextToken());
+        }
+    }
+}
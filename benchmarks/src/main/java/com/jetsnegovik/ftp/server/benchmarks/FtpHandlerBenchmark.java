@@ -0,0 +1,100 @@
+package com.jetsnegovik.ftp.server.benchmarks;
+
+import com.jetsnegovik.ftp.server.ServerConfig;
+import com.jetsnegovik.ftp.server.ServerContext;
+import com.jetsnegovik.ftp.server.Transport;
+import com.jetsnegovik.ftp.server.handlers.FtpCommandDecoder;
+import com.jetsnegovik.ftp.server.handlers.FtpHandler;
+import com.jetsnegovik.ftp.server.handlers.FtpSession;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.util.CharsetUtil;
+import io.netty.util.ReferenceCountUtil;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Full control path of one command: FtpCommandDecoder, FtpHandler.channelRead0
+ * dispatch, the command itself and send() of the reply
+ *
+ * @author Вадим
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dorg.slf4j.simpleLogger.defaultLogLevel=warn")
+public class FtpHandlerBenchmark {
+
+    @Param({"NOOP", "PWD", "SIZE data.csv", "CWD /dir", "XYZW unknown"})
+    public String line;
+    private ByteBuf input;
+    private File root;
+    private NioEventLoopGroup group;
+    private ServerContext context;
+    private EmbeddedChannel channel;
+
+    @Setup
+    public void setup() throws IOException {
+        root = Files.createTempDirectory("ftp-bench").toFile();
+        new File(root, "dir").mkdir();
+        Files.write(new File(root, "data.csv").toPath(), new byte[1024]);
+        ServerConfig config = new ServerConfig();
+        config.setRootDir(root.getPath());
+        config.setCommandThreads(0);
+        config.setListingCacheBytes(0);
+        group = new NioEventLoopGroup(1);
+        config.setTransport("nio");
+        context = new ServerContext(config, Transport.create(config), group, group);
+        channel = new EmbeddedChannel(new FtpCommandDecoder(), new FtpHandler(context));
+        command("USER morf");
+        // PASS completes on the authentication threads, the embedded channel has no loop to come back to
+        FtpSession.get(channel).setLoggedIn(true);
+        drain();
+        input = Unpooled.unreleasableBuffer(Unpooled.copiedBuffer(line + "\r\n", CharsetUtil.US_ASCII));
+    }
+
+    @TearDown
+    public void tearDown() {
+        channel.close();
+        context.shutdown();
+        group.shutdownGracefully();
+        new File(root, "data.csv").delete();
+        new File(root, "dir").delete();
+        root.delete();
+    }
+
+    @Benchmark
+    public void dispatch() {
+        channel.writeInbound(input.duplicate());
+        drain();
+    }
+
+    private void command(String text) {
+        channel.writeInbound(Unpooled.copiedBuffer(text + "\r\n", CharsetUtil.US_ASCII));
+    }
+
+    private void drain() {
+        Object reply;
+        while ((reply = channel.readOutbound()) != null) {
+            ReferenceCountUtil.release(reply);
+        }
+    }
+}
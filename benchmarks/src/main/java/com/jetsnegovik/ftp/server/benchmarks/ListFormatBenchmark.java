@@ -0,0 +1,192 @@
+package com.jetsnegovik.ftp.server.benchmarks;
+
+import com.jetsnegovik.ftp.server.fs.ListFormat;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufOutputStream;
+import io.netty.buffer.PooledByteBufAllocator;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.Charset;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encoding of a directory listing from attributes already read: ListFormat
+ * against the former listFile with a SimpleDateFormat per entry
+ *
+ * @author Вадим
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dorg.slf4j.simpleLogger.defaultLogLevel=warn")
+public class ListFormatBenchmark {
+
+    private static final Charset ASCII = Charset.forName("ASCII");
+    @Param({"100", "10000"})
+    public int entries;
+    private String[] names;
+    private BasicFileAttributes[] attrs;
+    private final StringBuilder scratch = new StringBuilder(32);
+
+    @Setup
+    public void setup() {
+        names = new String[entries];
+        attrs = new BasicFileAttributes[entries];
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < entries; i++) {
+            names[i] = "report-" + i + ".csv";
+            attrs[i] = new Attributes(i % 10 == 0, i * 1031L, now - i * 3600000L);
+        }
+    }
+
+    @Benchmark
+    public int list() {
+        return encode(ListFormat.LIST);
+    }
+
+    @Benchmark
+    public int nlst() {
+        return encode(ListFormat.NLST);
+    }
+
+    @Benchmark
+    public int mlsd() {
+        return encode(ListFormat.MLSD);
+    }
+
+    @Benchmark
+    public int legacyListFile() throws IOException {
+        ByteBuf out = PooledByteBufAllocator.DEFAULT.buffer();
+        try {
+            OutputStreamWriter writer = new OutputStreamWriter(new ByteBufOutputStream(out), ASCII);
+            for (int i = 0; i < entries; i++) {
+                listFile(names[i], attrs[i], writer);
+            }
+            writer.flush();
+            return out.readableBytes();
+        } finally {
+            out.release();
+        }
+    }
+
+    private int encode(ListFormat format) {
+        ByteBuf out = PooledByteBufAllocator.DEFAULT.buffer();
+        try {
+            long now = System.currentTimeMillis();
+            for (int i = 0; i < entries; i++) {
+                format.encode(names[i], attrs[i], now, scratch, out);
+            }
+            return out.readableBytes();
+        } finally {
+            out.release();
+        }
+    }
+
+    /**
+     * Copy of the listFile FtpHandler used before ListFormat
+     */
+    private static void listFile(String name, BasicFileAttributes attrs, OutputStreamWriter out) throws IOException {
+        Date date = new Date(attrs.lastModifiedTime().toMillis());
+        SimpleDateFormat dateFormat = new SimpleDateFormat("MMM dd hh:mm", new Locale("en", "US"));
+        String dateStr = dateFormat.format(date);
+
+        String sizeStr = Long.toString(attrs.size());
+        StringBuilder sizeField = new StringBuilder();
+        for (int i = sizeStr.length(); i < 8; i++) {
+            sizeField.append(' ');
+        }
+        sizeField.append(sizeStr);
+
+        out.write(attrs.isDirectory() ? 'd' : '-');
+        out.write("rwxrwxrwx");
+        out.write(" ");
+        out.write("1");
+        out.write(" ");
+        out.write("ftp");
+        out.write(" ");
+        out.write("ftp");
+        out.write(" ");
+        out.write(sizeField.toString());
+        out.write(" ");
+        out.write(dateStr);
+        out.write(" ");
+        out.write(name);
+        out.write('\n');
+    }
+
+    private static final class Attributes implements BasicFileAttributes {
+
+        private final boolean directory;
+        private final long size;
+        private final FileTime modified;
+
+        Attributes(boolean directory, long size, long modified) {
+            this.directory = directory;
+            this.size = size;
+            this.modified = FileTime.fromMillis(modified);
+        }
+
+        @Override
+        public FileTime lastModifiedTime() {
+            return modified;
+        }
+
+        @Override
+        public FileTime lastAccessTime() {
+            return modified;
+        }
+
+        @Override
+        public FileTime creationTime() {
+            return modified;
+        }
+
+        @Override
+        public boolean isRegularFile() {
+            return !directory;
+        }
+
+        @Override
+        public boolean isDirectory() {
+            return directory;
+        }
+
+        @Override
+        public boolean isSymbolicLink() {
+            return false;
+        }
+
+        @Override
+        public boolean isOther() {
+            return false;
+        }
+
+        @Override
+        public long size() {
+            return size;
+        }
+
+        @Override
+        public Object fileKey() {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package com.jetsnegovik.ftp.server.benchmarks;
+
+import com.jetsnegovik.ftp.server.handlers.FtpSession;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * FtpSession.resolvePath and createNativePath, run by nearly every command
+ *
+ * @author Вадим
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dorg.slf4j.simpleLogger.defaultLogLevel=warn")
+public class PathBenchmark {
+
+    @Param({"data.csv", "/inbound/2024/01/data.csv", "../../outbound/./archive/../data.csv"})
+    public String path;
+    private FtpSession session;
+
+    @Setup
+    public void setup() {
+        session = new FtpSession("/srv/ftp");
+        session.setCurrentDir("/home/user/inbound");
+    }
+
+    @Benchmark
+    public String resolvePath() {
+        return session.resolvePath(path);
+    }
+
+    @Benchmark
+    public String createNativePath() {
+        return session.createNativePath(path);
+    }
+
+    @Benchmark
+    public String resolveAndCreateNativePath() {
+        return session.createNativePath(session.resolvePath(path));
+    }
+}
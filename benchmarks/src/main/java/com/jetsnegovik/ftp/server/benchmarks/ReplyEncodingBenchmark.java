@@ -0,0 +1,66 @@
+package com.jetsnegovik.ftp.server.benchmarks;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encoding of one control reply: the String path of FtpHandler.send against
+ * writing ASCII into a pooled buffer and a pre-encoded constant
+ *
+ * @author Вадим
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dorg.slf4j.simpleLogger.defaultLogLevel=warn")
+public class ReplyEncodingBenchmark {
+
+    private static final Charset ASCII = Charset.forName("ASCII");
+    private static final int CODE = 200;
+    private static final String TEXT = "NOOP command successful.";
+    private static final ByteBuf CONSTANT = Unpooled.unreleasableBuffer(
+            Unpooled.directBuffer().writeBytes((CODE + " " + TEXT + "\r\n").getBytes(ASCII)));
+
+    @Benchmark
+    public int stringConcat() {
+        String line = CODE + " " + TEXT + "\r\n";
+        ByteBuf reply = Unpooled.wrappedBuffer(line.getBytes(ASCII));
+        int length = reply.readableBytes();
+        reply.release();
+        return length;
+    }
+
+    @Benchmark
+    public int pooledAscii() {
+        ByteBuf reply = PooledByteBufAllocator.DEFAULT.buffer(64);
+        reply.writeByte('0' + CODE / 100).writeByte('0' + CODE / 10 % 10).writeByte('0' + CODE % 10);
+        reply.writeByte(' ');
+        for (int i = 0; i < TEXT.length(); i++) {
+            reply.writeByte(TEXT.charAt(i));
+        }
+        reply.writeByte('\r').writeByte('\n');
+        int length = reply.readableBytes();
+        reply.release();
+        return length;
+    }
+
+    @Benchmark
+    public int preEncoded() {
+        ByteBuf reply = CONSTANT.duplicate();
+        return reply.readableBytes();
+    }
+}
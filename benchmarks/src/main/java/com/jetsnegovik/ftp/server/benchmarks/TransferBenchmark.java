@@ -0,0 +1,119 @@
+package com.jetsnegovik.ftp.server.benchmarks;
+
+import com.jetsnegovik.ftp.server.Server;
+import com.jetsnegovik.ftp.server.ServerConfig;
+import java.io.File;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End-to-end RETR and STOR over loopback against an in-process Server.
+ * Divide the file size by the reported time per operation for throughput.
+ *
+ * @author Вадим
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dorg.slf4j.simpleLogger.defaultLogLevel=warn")
+public class TransferBenchmark {
+
+    private static final int PORT = 2221;
+    @Param({"1048576", "67108864"})
+    public int size;
+    private File root;
+    private Server server;
+    private Thread serverThread;
+    private byte[] content;
+    private BlockingFtpClient client;
+    private int uploads;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        root = Files.createTempDirectory("ftp-transfer").toFile();
+        content = new byte[size];
+        new Random(1).nextBytes(content);
+        Files.write(new File(root, "download.bin").toPath(), content);
+
+        ServerConfig config = new ServerConfig();
+        config.setPort(PORT);
+        config.setRootDir(root.getPath());
+        config.setPassivePortFrom(52000);
+        config.setPassivePortTo(52999);
+        config.setMetricsPort(0);
+        server = new Server(config);
+        serverThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    server.run();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }, "ftp-server");
+        serverThread.start();
+        awaitPort();
+        client = new BlockingFtpClient("127.0.0.1", PORT);
+        client.login("morf", "123");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        client.close();
+        server.stop();
+        serverThread.join(10000);
+        for (File file : root.listFiles()) {
+            file.delete();
+        }
+        root.delete();
+    }
+
+    @TearDown(Level.Iteration)
+    public void removeUploads() throws IOException {
+        for (int i = 0; i < uploads; i++) {
+            client.dele("upload-" + i + ".bin");
+        }
+        uploads = 0;
+    }
+
+    @Benchmark
+    public long retr() throws IOException {
+        return client.retr("download.bin");
+    }
+
+    @Benchmark
+    public void stor() throws IOException {
+        client.stor("upload-" + uploads++ + ".bin", content);
+    }
+
+    private static void awaitPort() throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            try {
+                new Socket("127.0.0.1", PORT).close();
+                return;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        throw new IllegalStateException("Server did not start on port " + PORT);
+    }
+}
@@ -0,0 +1,266 @@
+package com.jetsnegovik.ftp.server.benchmarks.load;
+
+import com.jetsnegovik.ftp.server.Server;
+import com.jetsnegovik.ftp.server.ServerConfig;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.LineBasedFrameDecoder;
+import io.netty.handler.codec.string.StringDecoder;
+import io.netty.handler.codec.string.StringEncoder;
+import io.netty.util.CharsetUtil;
+import java.io.File;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Load test: thousands of simulated sessions on a Netty client running
+ * scripts of USER/PASS/CWD/PWD/LIST/RETR/STOR against a server, started
+ * in-process unless --host is given. Reports ops/s, bytes/s and latency
+ * percentiles per command, and every unexpected reply.
+ *
+ * java -cp target/benchmarks.jar com.jetsnegovik.ftp.server.benchmarks.load.LoadGenerator
+ *     --sessions=2000 --duration=30 --script=CWD,PWD,LIST,RETR,STOR
+ *
+ * @author Вадим
+ */
+public class LoadGenerator {
+
+    /**
+     * Settings of a run, set from --name=value arguments
+     */
+    public static class Options {
+
+        public String host;
+        public int port = 2121;
+        public int sessions = 1000;
+        public int durationSeconds = 30;
+        public int rampSeconds = 5;
+        public int threads = Runtime.getRuntime().availableProcessors();
+        public int thinkMillis;
+        public String[] script = {"CWD", "PWD", "LIST", "RETR", "STOR"};
+        public String user = "morf";
+        public String password = "123";
+        public String file = "download.bin";
+        public int fileSize = 1024 * 1024;
+        public int dirs = 16;
+        public String dirPrefix = "load";
+        public byte[] payload = new byte[64 * 1024];
+
+        static Options parse(String[] args) {
+            Options options = new Options();
+            for (String arg : args) {
+                int eq = arg.indexOf('=');
+                if (!arg.startsWith("--") || eq < 0) {
+                    throw new IllegalArgumentException("Expected --name=value: " + arg);
+                }
+                String name = arg.substring(2, eq);
+                String value = arg.substring(eq + 1);
+                if (name.equals("host")) {
+                    options.host = value;
+                } else if (name.equals("port")) {
+                    options.port = Integer.parseInt(value);
+                } else if (name.equals("sessions")) {
+                    options.sessions = Integer.parseInt(value);
+                } else if (name.equals("duration")) {
+                    options.durationSeconds = Integer.parseInt(value);
+                } else if (name.equals("ramp")) {
+                    options.rampSeconds = Integer.parseInt(value);
+                } else if (name.equals("threads")) {
+                    options.threads = Integer.parseInt(value);
+                } else if (name.equals("think")) {
+                    options.thinkMillis = Integer.parseInt(value);
+                } else if (name.equals("script")) {
+                    options.script = value.toUpperCase().split(",");
+                } else if (name.equals("user")) {
+                    options.user = value;
+                } else if (name.equals("password")) {
+                    options.password = value;
+                } else if (name.equals("file")) {
+                    options.file = value;
+                } else if (name.equals("file-size")) {
+                    options.fileSize = Integer.parseInt(value);
+                } else if (name.equals("upload-size")) {
+                    options.payload = new byte[Integer.parseInt(value)];
+                } else if (name.equals("dirs")) {
+                    options.dirs = Integer.parseInt(value);
+                } else {
+                    throw new IllegalArgumentException("Unknown option " + name);
+                }
+            }
+            return options;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = Options.parse(args);
+        new Random(1).nextBytes(options.payload);
+        Server server = null;
+        Thread serverThread = null;
+        File root = null;
+        if (options.host == null) {
+            options.host = "127.0.0.1";
+            root = prepareRoot(options);
+            ServerConfig config = ServerConfig.fromSystemProperties();
+            config.setPort(options.port);
+            config.setRootDir(root.getPath());
+            config.setPassivePortFrom(40000);
+            config.setPassivePortTo(49999);
+            config.setMetricsPort(0);
+            // every simulated session comes from the loopback address
+            config.setMaxConnectionsPerAddress(0);
+            server = new Server(config);
+            serverThread = startServer(server);
+            awaitPort(options.host, options.port);
+        }
+        LoadStats stats = new LoadStats();
+        double seconds = run(options, stats);
+        System.out.printf("%d sessions, %.1f s, script %s%n", options.sessions, seconds,
+                String.join(",", options.script));
+        stats.report(System.out, seconds);
+        if (server != null) {
+            server.stop();
+            serverThread.join(10000);
+            deleteRecursively(root);
+        }
+        System.exit(stats.getErrorCount() == 0 ? 0 : 1);
+    }
+
+    private static double run(Options options, LoadStats stats) throws InterruptedException {
+        EventLoopGroup group = new NioEventLoopGroup(options.threads);
+        try {
+            Bootstrap dataBootstrap = new Bootstrap()
+                    .group(group)
+                    .channel(NioSocketChannel.class)
+                    .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 10000);
+            final List<LoadSession> sessions = new ArrayList<LoadSession>(options.sessions);
+            final CountDownLatch closed = new CountDownLatch(options.sessions);
+            long rampNanos = TimeUnit.SECONDS.toNanos(options.rampSeconds);
+            long start = System.nanoTime();
+            for (int i = 0; i < options.sessions; i++) {
+                long due = start + rampNanos * i / options.sessions;
+                long wait = due - System.nanoTime();
+                if (wait > 0) {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+                final LoadSession session = new LoadSession(i, options, stats, dataBootstrap);
+                sessions.add(session);
+                connect(group, options, session).addListener(new ChannelFutureListener() {
+                    @Override
+                    public void operationComplete(ChannelFuture future) throws Exception {
+                        if (!future.isSuccess()) {
+                            session.stop();
+                            closed.countDown();
+                            return;
+                        }
+                        future.channel().closeFuture().addListener(new ChannelFutureListener() {
+                            @Override
+                            public void operationComplete(ChannelFuture future) throws Exception {
+                                closed.countDown();
+                            }
+                        });
+                    }
+                });
+            }
+            long end = start + TimeUnit.SECONDS.toNanos(options.durationSeconds);
+            long remaining = end - System.nanoTime();
+            if (remaining > 0) {
+                TimeUnit.NANOSECONDS.sleep(remaining);
+            }
+            for (LoadSession session : sessions) {
+                session.stop();
+            }
+            if (!closed.await(60, TimeUnit.SECONDS)) {
+                stats.error("SESSION", closed.getCount() + " sessions did not finish within 60 s after the run");
+            }
+            return (System.nanoTime() - start) / 1e9;
+        } finally {
+            group.shutdownGracefully();
+        }
+    }
+
+    private static ChannelFuture connect(EventLoopGroup group, Options options, final LoadSession session) {
+        return new Bootstrap()
+                .group(group)
+                .channel(NioSocketChannel.class)
+                .option(ChannelOption.TCP_NODELAY, true)
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 10000)
+                .handler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) throws Exception {
+                        ChannelPipeline p = ch.pipeline();
+                        p.addLast("framer", new LineBasedFrameDecoder(1024));
+                        p.addLast("decoder", new StringDecoder(CharsetUtil.UTF_8));
+                        p.addLast("encoder", new StringEncoder(CharsetUtil.UTF_8));
+                        p.addLast("session", session);
+                    }
+                })
+                .connect(options.host, options.port);
+    }
+
+    private static File prepareRoot(Options options) throws IOException {
+        File root = Files.createTempDirectory("ftp-load").toFile();
+        byte[] content = new byte[options.fileSize];
+        new Random(2).nextBytes(content);
+        Files.write(new File(root, options.file).toPath(), content);
+        for (int i = 0; i < options.dirs; i++) {
+            File dir = new File(root, options.dirPrefix + i);
+            dir.mkdir();
+            for (int j = 0; j < 50; j++) {
+                Files.write(new File(dir, "file-" + j + ".txt").toPath(), new byte[j * 100]);
+            }
+        }
+        return root;
+    }
+
+    private static Thread startServer(final Server server) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    server.run();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }, "ftp-server");
+        thread.start();
+        return thread;
+    }
+
+    private static void awaitPort(String host, int port) throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            try {
+                new Socket(host, port).close();
+                return;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        throw new IllegalStateException("Server did not start on port " + port);
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,331 @@
+package com.jetsnegovik.ftp.server.benchmarks.load;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.SimpleChannelInboundHandler;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One simulated client: logs in, then runs the script in a loop until the
+ * generator stops it. Every reply code is checked, and PWD must return the
+ * directory this session changed into, so replies leaking between sessions
+ * show up as errors.
+ *
+ * @author Вадим
+ */
+public class LoadSession extends SimpleChannelInboundHandler<String> {
+
+    private final int id;
+    private final LoadGenerator.Options options;
+    private final LoadStats stats;
+    private final Bootstrap dataBootstrap;
+    private final String dir;
+    private final Deque<Op> ops = new ArrayDeque<Op>();
+    private ChannelHandlerContext ctx;
+    private Op current;
+    private long sentAt;
+    private String multiline;
+    private String dataHost;
+    private Channel dataChannel;
+    private boolean transferStarted;
+    private int uploads;
+    private volatile boolean stopping;
+
+    /**
+     * @param id number of the session, picks its directory
+     * @param options run settings
+     * @param stats shared results
+     * @param dataBootstrap bootstrap of data channels, handler set by this session
+     */
+    public LoadSession(int id, LoadGenerator.Options options, LoadStats stats, Bootstrap dataBootstrap) {
+        this.id = id;
+        this.options = options;
+        this.stats = stats;
+        this.dataBootstrap = dataBootstrap;
+        this.dir = "/" + options.dirPrefix + (id % options.dirs);
+        this.current = new Op("CONNECT", null, Kind.CONTROL, 220);
+        this.sentAt = System.nanoTime();
+    }
+
+    /**
+     * Finish the running operation, then QUIT
+     */
+    public void stop() {
+        stopping = true;
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        this.ctx = ctx;
+        ops.add(new Op("USER", "USER " + options.user, Kind.CONTROL, 331));
+        ops.add(new Op("PASS", "PASS " + options.password, Kind.CONTROL, 230));
+        ops.add(new Op("TYPE", "TYPE I", Kind.CONTROL, 200, 215));
+        super.channelActive(ctx);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        if (current != null && !current.name.equals("QUIT")) {
+            stats.error(current.name, "control connection closed");
+        }
+        closeData();
+        super.channelInactive(ctx);
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+        stats.error(current == null ? "SESSION" : current.name, cause.toString());
+        ctx.close();
+    }
+
+    @Override
+    protected void channelRead0(ChannelHandlerContext ctx, String line) throws Exception {
+        if (multiline != null) {
+            if (line.startsWith(multiline)) {
+                multiline = null;
+                reply(Integer.parseInt(line.substring(0, 3)), line);
+            }
+            return;
+        }
+        if (line.length() < 3) {
+            stats.error(current == null ? "SESSION" : current.name, "malformed reply '" + line + "'");
+            return;
+        }
+        if (line.length() > 3 && line.charAt(3) == '-') {
+            multiline = line.substring(0, 3) + " ";
+            return;
+        }
+        int code;
+        try {
+            code = Integer.parseInt(line.substring(0, 3));
+        } catch (NumberFormatException e) {
+            stats.error(current == null ? "SESSION" : current.name, "malformed reply '" + line + "'");
+            return;
+        }
+        reply(code, line);
+    }
+
+    private void reply(int code, String line) {
+        Op op = current;
+        if (op == null) {
+            stats.error("SESSION", "unsolicited reply '" + line + "'");
+            return;
+        }
+        switch (op.kind) {
+            case PASV:
+                pasvReply(op, code, line);
+                return;
+            case DOWNLOAD:
+            case UPLOAD:
+                if (!transferStarted && (code == 150 || code == 125)) {
+                    transferStarted = true;
+                    if (op.kind == Kind.UPLOAD) {
+                        upload();
+                    }
+                    return;
+                }
+                break;
+            default:
+        }
+        stats.record(op.name, System.nanoTime() - sentAt);
+        boolean ok = op.accepts(code) && (op.check == null || line.contains(op.check));
+        if (!ok) {
+            stats.error(op.name, "sent '" + op.line + "', got '" + line + "'");
+            if (op.kind != Kind.CONTROL) {
+                closeData();
+            }
+        }
+        if (op.name.equals("QUIT")) {
+            current = null;
+            ctx.close();
+            return;
+        }
+        if (!ok && (op.name.equals("CONNECT") || op.name.equals("USER") || op.name.equals("PASS"))) {
+            current = null;
+            ctx.close();
+            return;
+        }
+        next();
+    }
+
+    private void pasvReply(Op op, int code, String line) {
+        stats.record(op.name, System.nanoTime() - sentAt);
+        int open = line.indexOf('(');
+        int close = line.indexOf(')');
+        if (code != 227 || open < 0 || close < open) {
+            stats.error(op.name, "sent 'PASV', got '" + line + "'");
+            skipTransfer();
+            next();
+            return;
+        }
+        String[] parts = line.substring(open + 1, close).split(",");
+        dataHost = options.host;
+        int port = Integer.parseInt(parts[4].trim()) << 8 | Integer.parseInt(parts[5].trim());
+        final Op transfer = ops.poll();
+        dataBootstrap.clone().handler(new DataHandler()).connect(dataHost, port)
+                .addListener(new ChannelFutureListener() {
+                    @Override
+                    public void operationComplete(ChannelFuture future) throws Exception {
+                        if (!future.isSuccess()) {
+                            stats.error("DATA", "connect failed: " + future.cause());
+                            next();
+                            return;
+                        }
+                        dataChannel = future.channel();
+                        send(transfer);
+                    }
+                });
+    }
+
+    private void upload() {
+        final Channel channel = dataChannel;
+        if (channel == null) {
+            return;
+        }
+        ByteBuf payload = Unpooled.wrappedBuffer(options.payload);
+        final int length = payload.readableBytes();
+        channel.writeAndFlush(payload).addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+                if (future.isSuccess()) {
+                    stats.bytesOut(length);
+                }
+                channel.close();
+            }
+        });
+    }
+
+    private void skipTransfer() {
+        Op transfer = ops.poll();
+        if (transfer != null && transfer.kind == Kind.UPLOAD) {
+            // the DELE of the upload that never happened
+            ops.poll();
+        }
+    }
+
+    private void next() {
+        if (options.thinkMillis > 0 && current != null && !current.name.equals("PASV")) {
+            current = null;
+            ctx.executor().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    sendNext();
+                }
+            }, options.thinkMillis, TimeUnit.MILLISECONDS);
+            return;
+        }
+        sendNext();
+    }
+
+    private void sendNext() {
+        if (!ctx.channel().isActive()) {
+            return;
+        }
+        if (ops.isEmpty()) {
+            if (stopping) {
+                send(new Op("QUIT", "QUIT", Kind.CONTROL, 221));
+                return;
+            }
+            fillScript();
+        }
+        send(ops.poll());
+    }
+
+    private void send(Op op) {
+        current = op;
+        transferStarted = false;
+        sentAt = System.nanoTime();
+        ctx.writeAndFlush(op.line + "\r\n");
+    }
+
+    private void fillScript() {
+        for (String step : options.script) {
+            if (step.equals("CWD")) {
+                ops.add(new Op("CWD", "CWD " + dir, Kind.CONTROL, 250));
+            } else if (step.equals("PWD")) {
+                ops.add(new Op("PWD", "PWD", Kind.CONTROL, 257).expect(dir));
+            } else if (step.equals("NOOP")) {
+                ops.add(new Op("NOOP", "NOOP", Kind.CONTROL, 200));
+            } else if (step.equals("LIST")) {
+                ops.add(new Op("PASV", "PASV", Kind.PASV, 227));
+                ops.add(new Op("LIST", "LIST " + dir, Kind.DOWNLOAD, 226));
+            } else if (step.equals("RETR")) {
+                ops.add(new Op("PASV", "PASV", Kind.PASV, 227));
+                ops.add(new Op("RETR", "RETR /" + options.file, Kind.DOWNLOAD, 226));
+            } else if (step.equals("STOR")) {
+                String name = dir + "/load-" + id + "-" + uploads++ + ".bin";
+                ops.add(new Op("PASV", "PASV", Kind.PASV, 227));
+                ops.add(new Op("STOR", "STOR " + name, Kind.UPLOAD, 226));
+                ops.add(new Op("DELE", "DELE " + name, Kind.CONTROL, 250));
+            } else {
+                throw new IllegalArgumentException("Unknown script step " + step);
+            }
+        }
+    }
+
+    private void closeData() {
+        if (dataChannel != null) {
+            dataChannel.close();
+            dataChannel = null;
+        }
+    }
+
+    private final class DataHandler extends ChannelInboundHandlerAdapter {
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            ByteBuf buf = (ByteBuf) msg;
+            stats.bytesIn(buf.readableBytes());
+            buf.release();
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+            stats.error("DATA", cause.toString());
+            ctx.close();
+        }
+    }
+
+    private enum Kind {
+
+        CONTROL, PASV, DOWNLOAD, UPLOAD
+    }
+
+    private static final class Op {
+
+        private final String name;
+        private final String line;
+        private final Kind kind;
+        private final int[] codes;
+        private String check;
+
+        Op(String name, String line, Kind kind, int... codes) {
+            this.name = name;
+            this.line = line;
+            this.kind = kind;
+            this.codes = codes;
+        }
+
+        Op expect(String text) {
+            this.check = text;
+            return this;
+        }
+
+        boolean accepts(int code) {
+            for (int expected : codes) {
+                if (code == expected) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.jetsnegovik.ftp.server.benchmarks.load;
+
+import com.jetsnegovik.ftp.server.metrics.LatencyHistogram;
+import java.io.PrintStream;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Results of a load run, shared by all simulated sessions
+ *
+ * @author Вадим
+ */
+public class LoadStats {
+
+    private static final int MAX_SAMPLES = 20;
+    private final ConcurrentMap<String, LatencyHistogram> latency = new ConcurrentHashMap<String, LatencyHistogram>();
+    private final ConcurrentMap<String, LongAdder> errors = new ConcurrentHashMap<String, LongAdder>();
+    private final Queue<String> samples = new ConcurrentLinkedQueue<String>();
+    private final AtomicInteger sampleCount = new AtomicInteger();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+
+    public void record(String command, long nanos) {
+        LatencyHistogram histogram = latency.get(command);
+        if (histogram == null) {
+            histogram = new LatencyHistogram();
+            LatencyHistogram existing = latency.putIfAbsent(command, histogram);
+            if (existing != null) {
+                histogram = existing;
+            }
+        }
+        histogram.record(nanos);
+    }
+
+    /**
+     * @param command command that failed
+     * @param detail what was expected and what came back
+     */
+    public void error(String command, String detail) {
+        LongAdder count = errors.get(command);
+        if (count == null) {
+            count = new LongAdder();
+            LongAdder existing = errors.putIfAbsent(command, count);
+            if (existing != null) {
+                count = existing;
+            }
+        }
+        count.increment();
+        if (sampleCount.incrementAndGet() <= MAX_SAMPLES) {
+            samples.add(command + ": " + detail);
+        }
+    }
+
+    public void bytesIn(long bytes) {
+        bytesIn.add(bytes);
+    }
+
+    public void bytesOut(long bytes) {
+        bytesOut.add(bytes);
+    }
+
+    public long getErrorCount() {
+        long total = 0;
+        for (LongAdder count : errors.values()) {
+            total += count.sum();
+        }
+        return total;
+    }
+
+    /**
+     * @param out destination
+     * @param seconds length of the measured run
+     */
+    public void report(PrintStream out, double seconds) {
+        out.printf("%-8s %10s %10s %10s %10s %10s %10s%n", "command", "count", "ops/s", "p50 ms", "p99 ms", "p999 ms",
+                "errors");
+        Map<String, LatencyHistogram> sorted = new TreeMap<String, LatencyHistogram>(latency);
+        for (Map.Entry<String, LatencyHistogram> entry : sorted.entrySet()) {
+            LatencyHistogram histogram = entry.getValue();
+            LongAdder failed = errors.get(entry.getKey());
+            out.printf("%-8s %10d %10.1f %10.3f %10.3f %10.3f %10d%n", entry.getKey(), histogram.getCount(),
+                    histogram.getCount() / seconds, millis(histogram.getPercentileNanos(0.5)),
+                    millis(histogram.getPercentileNanos(0.99)), millis(histogram.getPercentileNanos(0.999)),
+                    failed == null ? 0 : failed.sum());
+        }
+        for (Map.Entry<String, LongAdder> entry : new TreeMap<String, LongAdder>(errors).entrySet()) {
+            if (!latency.containsKey(entry.getKey())) {
+                out.printf("%-8s %10s %10s %10s %10s %10s %10d%n", entry.getKey(), "-", "-", "-", "-", "-",
+                        entry.getValue().sum());
+            }
+        }
+        out.printf("bytes in  %d (%.1f MB/s)%n", bytesIn.sum(), bytesIn.sum() / seconds / 1e6);
+        out.printf("bytes out %d (%.1f MB/s)%n", bytesOut.sum(), bytesOut.sum() / seconds / 1e6);
+        out.printf("errors    %d%n", getErrorCount());
+        for (String sample : samples) {
+            out.println("  " + sample);
+        }
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+}
@@ -0,0 +1,95 @@
+package com.jetsnegovik.ftp.server;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Admission control of control connections: a cap on all connections and
+ * one per client address. Addresses are counted in striped maps, accepts
+ * from different clients rarely share a lock.
+ *
+ * @author Вадим
+ */
+public class ConnectionLimiter {
+
+    private static final int STRIPES = 64;
+    private final int maxConnections;
+    private final int maxPerAddress;
+    private final AtomicInteger connections = new AtomicInteger();
+    private final List<Map<InetAddress, int[]>> stripes = new ArrayList<Map<InetAddress, int[]>>(STRIPES);
+
+    /**
+     * @param maxConnections connections of all clients, 0 for unlimited
+     * @param maxPerAddress connections of one client address, 0 for unlimited
+     */
+    public ConnectionLimiter(int maxConnections, int maxPerAddress) {
+        this.maxConnections = maxConnections;
+        this.maxPerAddress = maxPerAddress;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes.add(new HashMap<InetAddress, int[]>());
+        }
+    }
+
+    /**
+     * @param address client address
+     * @return true if the connection is admitted, it has to be given back with {@link #release}
+     */
+    public boolean acquire(InetAddress address) {
+        for (;;) {
+            int current = connections.get();
+            if (maxConnections > 0 && current >= maxConnections) {
+                return false;
+            }
+            if (connections.compareAndSet(current, current + 1)) {
+                break;
+            }
+        }
+        if (maxPerAddress <= 0) {
+            return true;
+        }
+        Map<InetAddress, int[]> stripe = stripe(address);
+        synchronized (stripe) {
+            int[] count = stripe.get(address);
+            if (count == null) {
+                count = new int[1];
+                stripe.put(address, count);
+            }
+            if (count[0] < maxPerAddress) {
+                count[0]++;
+                return true;
+            }
+        }
+        connections.decrementAndGet();
+        return false;
+    }
+
+    /**
+     * @param address client address of an admitted connection
+     */
+    public void release(InetAddress address) {
+        connections.decrementAndGet();
+        if (maxPerAddress <= 0) {
+            return;
+        }
+        Map<InetAddress, int[]> stripe = stripe(address);
+        synchronized (stripe) {
+            int[] count = stripe.get(address);
+            if (count != null && --count[0] <= 0) {
+                stripe.remove(address);
+            }
+        }
+    }
+
+    public int getConnections() {
+        return connections.get();
+    }
+
+    private Map<InetAddress, int[]> stripe(InetAddress address) {
+        int h = address.hashCode();
+        return stripes.get((h ^ (h >>> 16)) & (STRIPES - 1));
+    }
+}
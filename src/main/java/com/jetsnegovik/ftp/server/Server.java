@@ -1,11 +1,19 @@
 package com.jetsnegovik.ftp.server;
 
+import com.jetsnegovik.ftp.server.metrics.MetricsHttpHandler;
+import com.jetsnegovik.ftp.server.utils.ExecutorStats;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.Channel;
+import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
+import io.netty.channel.ChannelPipeline;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpServerCodec;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -17,39 +25,102 @@ public class Server {
 
     private static final Logger logger = LoggerFactory.getLogger(Server.class);
     public static final float VERSION = 1.0F;
-    private final int port;
+    private final ServerConfig config;
+    private final List<Channel> channels = new CopyOnWriteArrayList<Channel>();
 
     public Server(int port) {
-        this.port = port;
+        this(ServerConfig.fromSystemProperties());
+        config.setPort(port);
+    }
+
+    public Server(ServerConfig config) {
+        this.config = config;
     }
 
     public void run() throws Exception {
         // Configure the server.
-        EventLoopGroup bossGroup = new NioEventLoopGroup();
-        EventLoopGroup workerGroup = new NioEventLoopGroup();
+        Transport transport = Transport.create(config);
+        EventLoopGroup bossGroup = transport.newEventLoopGroup(config.getBossThreads());
+        EventLoopGroup workerGroup = transport.newEventLoopGroup(config.getWorkerThreads());
+        ServerContext context = new ServerContext(config, transport, bossGroup, workerGroup);
         try {
+            boolean reusePort = config.isReusePort() && transport.isEpoll();
+            if (config.isReusePort() && !reusePort) {
+                logger.warn("SO_REUSEPORT needs the epoll transport, binding a single acceptor");
+            }
             ServerBootstrap b = new ServerBootstrap();
+            transport.configure(b, reusePort);
             b.option(ChannelOption.SO_BACKLOG, 1024);
             b.group(bossGroup, workerGroup)
-                    .channel(NioServerSocketChannel.class)
-                    .childHandler(new ServerInitializer());
+                    .childHandler(new ServerInitializer(context));
 
-            Channel ch = b.bind(port).sync().channel();
-            logger.info("Start server port: {}", port);
-            ch.closeFuture().sync();
+            // with SO_REUSEPORT every boss thread gets a socket of its own and the kernel spreads accepts
+            int acceptors = reusePort ? Math.max(1, config.getBossThreads()) : 1;
+            for (int i = 0; i < acceptors; i++) {
+                channels.add(b.bind(config.getPort()).sync().channel());
+            }
+            logger.info("Start server port: {}, transport: {}, acceptors: {}",
+                    config.getPort(), transport.getName(), acceptors);
+            if (config.getMetricsPort() > 0) {
+                startMetrics(context);
+            }
+            if (logger.isDebugEnabled()) {
+                final ExecutorStats commandStats = context.getCommandStats();
+                workerGroup.scheduleAtFixedRate(new Runnable() {
+                    @Override
+                    public void run() {
+                        logger.debug("Command executor: {}", commandStats);
+                    }
+                }, 1, 1, TimeUnit.MINUTES);
+            }
+            for (Channel ch : channels) {
+                ch.closeFuture().sync();
+            }
         } finally {
             bossGroup.shutdownGracefully();
             workerGroup.shutdownGracefully();
+            context.shutdown();
+        }
+    }
+
+    /**
+     * Start the plain-text metrics endpoint on the server's event loops
+     *
+     * @param context
+     * @throws InterruptedException
+     */
+    private void startMetrics(ServerContext context) throws InterruptedException {
+        final MetricsHttpHandler handler = new MetricsHttpHandler(context.getMetrics());
+        ServerBootstrap b = new ServerBootstrap();
+        context.getTransport().configure(b, false);
+        b.group(context.getBossGroup(), context.getWorkerGroup())
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) throws Exception {
+                        ChannelPipeline p = ch.pipeline();
+                        p.addLast("codec", new HttpServerCodec());
+                        p.addLast("aggregator", new HttpObjectAggregator(4096));
+                        p.addLast("handler", handler);
+                    }
+                });
+        b.bind(config.getMetricsAddress(), config.getMetricsPort()).sync();
+        logger.info("Metrics on http://{}:{}/metrics", config.getMetricsAddress(), config.getMetricsPort());
+    }
+
+    /**
+     * Close the control ports, {@link #run()} then releases everything and returns
+     */
+    public void stop() {
+        for (Channel ch : channels) {
+            ch.close();
         }
     }
 
     public static void main(String[] args) throws Exception {
-        int port;
+        ServerConfig config = ServerConfig.fromSystemProperties();
         if (args.length > 0) {
-            port = Integer.parseInt(args[0]);
-        } else {
-            port = 21;
+            config.setPort(Integer.parseInt(args[0]));
         }
-        new Server(port).run();
+        new Server(config).run();
     }
 }
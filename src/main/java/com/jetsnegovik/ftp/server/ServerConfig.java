@@ -0,0 +1,654 @@
+package com.jetsnegovik.ftp.server;
+
+/**
+ * Server settings, read from system properties ftp.*
+ *
+ * @author Вадим
+ */
+public class ServerConfig {
+
+    private int port = 21;
+    private String rootDir = System.getProperty("user.dir");
+    private String transport = "auto";
+    private int bossThreads = 1;
+    private int workerThreads;
+    private boolean reusePort;
+    private boolean tcpNoDelay = true;
+    private int receiveBufferSize;
+    private int sendBufferSize;
+    private boolean pooledAllocator = true;
+    private int passivePortFrom = 50000;
+    private int passivePortTo = 50999;
+    private String passiveAddress;
+    private int diskThreads = Runtime.getRuntime().availableProcessors() * 2;
+    private int commandThreads = 32;
+    private long listingCacheBytes = 64L * 1024 * 1024;
+    private long fileCacheBytes;
+    private long fileCacheMaxFileBytes = 1024 * 1024;
+    private String[] fileCacheExcluded = new String[0];
+    private int deflateLevel = 6;
+    private long globalWriteLimit;
+    private long globalReadLimit;
+    private long userWriteLimit;
+    private long userReadLimit;
+    private long sessionWriteLimit;
+    private long sessionReadLimit;
+    private int metricsPort = 9121;
+    private String metricsAddress = "127.0.0.1";
+    private String usersFile;
+    private String username = "morf";
+    private String password = "123";
+    private int authThreads = 2;
+    private long authCacheSeconds = 300;
+    private double authRate = 5;
+    private int maxConnections = 10000;
+    private int maxConnectionsPerAddress = 128;
+    private int controlIdleSeconds = 300;
+    private int dataIdleSeconds = 120;
+    private int hashThreads = Runtime.getRuntime().availableProcessors();
+    private int listThreads = Runtime.getRuntime().availableProcessors();
+    private int listMaxDepth = 32;
+    private int listMaxEntries = 500000;
+    private int uploadChunkBytes = 1024 * 1024;
+    private long uploadSyncBytes = -1;
+    private String accessLogFile;
+    private int accessLogBuffer = 65536;
+    private long accessLogMaxBytes = 100L * 1024 * 1024;
+    private int accessLogFiles = 5;
+
+    public static ServerConfig fromSystemProperties() {
+        ServerConfig config = new ServerConfig();
+        config.setPort(Integer.getInteger("ftp.port", config.getPort()));
+        config.setRootDir(System.getProperty("ftp.root", config.getRootDir()));
+        config.setTransport(System.getProperty("ftp.transport", config.getTransport()));
+        config.setBossThreads(Integer.getInteger("ftp.boss.threads", config.getBossThreads()));
+        config.setWorkerThreads(Integer.getInteger("ftp.worker.threads", config.getWorkerThreads()));
+        config.setReusePort(Boolean.parseBoolean(System.getProperty("ftp.reuseport", String.valueOf(config.isReusePort()))));
+        config.setTcpNoDelay(Boolean.parseBoolean(System.getProperty("ftp.tcp.nodelay", String.valueOf(config.isTcpNoDelay()))));
+        config.setReceiveBufferSize(Integer.getInteger("ftp.so.rcvbuf", config.getReceiveBufferSize()));
+        config.setSendBufferSize(Integer.getInteger("ftp.so.sndbuf", config.getSendBufferSize()));
+        config.setPooledAllocator(Boolean.parseBoolean(System.getProperty("ftp.allocator.pooled",
+                String.valueOf(config.isPooledAllocator()))));
+        String ports = System.getProperty("ftp.passive.ports");
+        if (ports != null) {
+            int dash = ports.indexOf('-');
+            config.setPassivePortFrom(Integer.parseInt(ports.substring(0, dash).trim()));
+            config.setPassivePortTo(Integer.parseInt(ports.substring(dash + 1).trim()));
+        }
+        config.setPassiveAddress(System.getProperty("ftp.passive.address"));
+        config.setDiskThreads(Integer.getInteger("ftp.disk.threads", config.getDiskThreads()));
+        config.setCommandThreads(Integer.getInteger("ftp.command.threads", config.getCommandThreads()));
+        config.setListingCacheBytes(Long.getLong("ftp.listing.cache.bytes", config.getListingCacheBytes()));
+        config.setFileCacheBytes(Long.getLong("ftp.file.cache.bytes", config.getFileCacheBytes()));
+        config.setFileCacheMaxFileBytes(Long.getLong("ftp.file.cache.max.file", config.getFileCacheMaxFileBytes()));
+        String excluded = System.getProperty("ftp.file.cache.exclude");
+        if (excluded != null && !excluded.trim().isEmpty()) {
+            config.setFileCacheExcluded(excluded.trim().split("\\s*,\\s*"));
+        }
+        config.setDeflateLevel(Integer.getInteger("ftp.deflate.level", config.getDeflateLevel()));
+        config.setGlobalWriteLimit(Long.getLong("ftp.limit.global.write", config.getGlobalWriteLimit()));
+        config.setGlobalReadLimit(Long.getLong("ftp.limit.global.read", config.getGlobalReadLimit()));
+        config.setUserWriteLimit(Long.getLong("ftp.limit.user.write", config.getUserWriteLimit()));
+        config.setUserReadLimit(Long.getLong("ftp.limit.user.read", config.getUserReadLimit()));
+        config.setSessionWriteLimit(Long.getLong("ftp.limit.session.write", config.getSessionWriteLimit()));
+        config.setSessionReadLimit(Long.getLong("ftp.limit.session.read", config.getSessionReadLimit()));
+        config.setMetricsPort(Integer.getInteger("ftp.metrics.port", config.getMetricsPort()));
+        config.setMetricsAddress(System.getProperty("ftp.metrics.address", config.getMetricsAddress()));
+        config.setUsersFile(System.getProperty("ftp.users.file"));
+        config.setUsername(System.getProperty("ftp.user", config.getUsername()));
+        config.setPassword(System.getProperty("ftp.password", config.getPassword()));
+        config.setAuthThreads(Integer.getInteger("ftp.auth.threads", config.getAuthThreads()));
+        config.setAuthCacheSeconds(Long.getLong("ftp.auth.cache.seconds", config.getAuthCacheSeconds()));
+        config.setAuthRate(Double.parseDouble(System.getProperty("ftp.auth.rate", String.valueOf(config.getAuthRate()))));
+        config.setMaxConnections(Integer.getInteger("ftp.max.connections", config.getMaxConnections()));
+        config.setMaxConnectionsPerAddress(Integer.getInteger("ftp.max.connections.per.ip",
+                config.getMaxConnectionsPerAddress()));
+        config.setControlIdleSeconds(Integer.getInteger("ftp.idle.control.seconds", config.getControlIdleSeconds()));
+        config.setDataIdleSeconds(Integer.getInteger("ftp.idle.data.seconds", config.getDataIdleSeconds()));
+        config.setHashThreads(Integer.getInteger("ftp.hash.threads", config.getHashThreads()));
+        config.setListThreads(Integer.getInteger("ftp.list.threads", config.getListThreads()));
+        config.setListMaxDepth(Integer.getInteger("ftp.list.recursive.depth", config.getListMaxDepth()));
+        config.setListMaxEntries(Integer.getInteger("ftp.list.recursive.entries", config.getListMaxEntries()));
+        config.setUploadChunkBytes(Integer.getInteger("ftp.upload.chunk.bytes", config.getUploadChunkBytes()));
+        String sync = System.getProperty("ftp.upload.fsync");
+        if (sync != null) {
+            config.setUploadSyncBytes(parseSync(sync.trim()));
+        }
+        config.setAccessLogFile(System.getProperty("ftp.access.log"));
+        config.setAccessLogBuffer(Integer.getInteger("ftp.access.log.buffer", config.getAccessLogBuffer()));
+        config.setAccessLogMaxBytes(Long.getLong("ftp.access.log.max.bytes", config.getAccessLogMaxBytes()));
+        config.setAccessLogFiles(Integer.getInteger("ftp.access.log.files", config.getAccessLogFiles()));
+        return config;
+    }
+
+    /**
+     * @param policy none, close or megabytes between syncs
+     * @return bytes between syncs, -1 for none, 0 for close
+     */
+    private static long parseSync(String policy) {
+        if ("none".equalsIgnoreCase(policy)) {
+            return -1;
+        }
+        if ("close".equalsIgnoreCase(policy)) {
+            return 0;
+        }
+        long megabytes = Long.parseLong(policy);
+        if (megabytes <= 0) {
+            throw new IllegalArgumentException("ftp.upload.fsync: none, close or megabytes, got " + policy);
+        }
+        return megabytes * 1024 * 1024;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    /**
+     * @return local directory served as "/", the working directory by default
+     */
+    public String getRootDir() {
+        return rootDir;
+    }
+
+    public void setRootDir(String rootDir) {
+        this.rootDir = rootDir;
+    }
+
+    /**
+     * @return "epoll", "nio" or "auto" (epoll when available)
+     */
+    public String getTransport() {
+        return transport;
+    }
+
+    public void setTransport(String transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * @return number of acceptor threads, also the number of SO_REUSEPORT sockets
+     */
+    public int getBossThreads() {
+        return bossThreads;
+    }
+
+    public void setBossThreads(int bossThreads) {
+        this.bossThreads = bossThreads;
+    }
+
+    /**
+     * @return number of I/O threads, 0 for the Netty default
+     */
+    public int getWorkerThreads() {
+        return workerThreads;
+    }
+
+    public void setWorkerThreads(int workerThreads) {
+        this.workerThreads = workerThreads;
+    }
+
+    /**
+     * @return bind one control socket per boss thread with SO_REUSEPORT (epoll only)
+     */
+    public boolean isReusePort() {
+        return reusePort;
+    }
+
+    public void setReusePort(boolean reusePort) {
+        this.reusePort = reusePort;
+    }
+
+    public boolean isTcpNoDelay() {
+        return tcpNoDelay;
+    }
+
+    public void setTcpNoDelay(boolean tcpNoDelay) {
+        this.tcpNoDelay = tcpNoDelay;
+    }
+
+    /**
+     * @return SO_RCVBUF of connections, 0 for the OS default
+     */
+    public int getReceiveBufferSize() {
+        return receiveBufferSize;
+    }
+
+    public void setReceiveBufferSize(int receiveBufferSize) {
+        this.receiveBufferSize = receiveBufferSize;
+    }
+
+    /**
+     * @return SO_SNDBUF of connections, 0 for the OS default
+     */
+    public int getSendBufferSize() {
+        return sendBufferSize;
+    }
+
+    public void setSendBufferSize(int sendBufferSize) {
+        this.sendBufferSize = sendBufferSize;
+    }
+
+    public boolean isPooledAllocator() {
+        return pooledAllocator;
+    }
+
+    public void setPooledAllocator(boolean pooledAllocator) {
+        this.pooledAllocator = pooledAllocator;
+    }
+
+    public int getPassivePortFrom() {
+        return passivePortFrom;
+    }
+
+    public void setPassivePortFrom(int passivePortFrom) {
+        this.passivePortFrom = passivePortFrom;
+    }
+
+    public int getPassivePortTo() {
+        return passivePortTo;
+    }
+
+    public void setPassivePortTo(int passivePortTo) {
+        this.passivePortTo = passivePortTo;
+    }
+
+    /**
+     * @return address announced in PASV replies (NAT), null for the local address
+     */
+    public String getPassiveAddress() {
+        return passiveAddress;
+    }
+
+    public void setPassiveAddress(String passiveAddress) {
+        this.passiveAddress = passiveAddress;
+    }
+
+    /**
+     * @return number of threads writing uploaded files
+     */
+    public int getDiskThreads() {
+        return diskThreads;
+    }
+
+    public void setDiskThreads(int diskThreads) {
+        this.diskThreads = diskThreads;
+    }
+
+    /**
+     * @return number of threads running commands, 0 runs them on the I/O threads
+     */
+    public int getCommandThreads() {
+        return commandThreads;
+    }
+
+    public void setCommandThreads(int commandThreads) {
+        this.commandThreads = commandThreads;
+    }
+
+    /**
+     * @return memory for cached directory listings, 0 disables the cache
+     */
+    public long getListingCacheBytes() {
+        return listingCacheBytes;
+    }
+
+    public void setListingCacheBytes(long listingCacheBytes) {
+        this.listingCacheBytes = listingCacheBytes;
+    }
+
+    /**
+     * @return off-heap memory for cached file contents, 0 disables the cache
+     */
+    public long getFileCacheBytes() {
+        return fileCacheBytes;
+    }
+
+    public void setFileCacheBytes(long fileCacheBytes) {
+        this.fileCacheBytes = fileCacheBytes;
+    }
+
+    /**
+     * @return larger files are always read from disk
+     */
+    public long getFileCacheMaxFileBytes() {
+        return fileCacheMaxFileBytes;
+    }
+
+    public void setFileCacheMaxFileBytes(long fileCacheMaxFileBytes) {
+        this.fileCacheMaxFileBytes = fileCacheMaxFileBytes;
+    }
+
+    /**
+     * @return directories, relative to the root, whose files are never cached
+     */
+    public String[] getFileCacheExcluded() {
+        return fileCacheExcluded;
+    }
+
+    public void setFileCacheExcluded(String[] fileCacheExcluded) {
+        this.fileCacheExcluded = fileCacheExcluded;
+    }
+
+    /**
+     * @return deflate level of MODE Z transfers, 0 (stored) to 9
+     */
+    public int getDeflateLevel() {
+        return deflateLevel;
+    }
+
+    public void setDeflateLevel(int deflateLevel) {
+        if (deflateLevel < 0 || deflateLevel > 9) {
+            throw new IllegalArgumentException("Deflate level must be 0-9: " + deflateLevel);
+        }
+        this.deflateLevel = deflateLevel;
+    }
+
+    /**
+     * @return bytes per second sent to all clients, 0 for unlimited
+     */
+    public long getGlobalWriteLimit() {
+        return globalWriteLimit;
+    }
+
+    public void setGlobalWriteLimit(long globalWriteLimit) {
+        this.globalWriteLimit = globalWriteLimit;
+    }
+
+    /**
+     * @return bytes per second received from all clients, 0 for unlimited
+     */
+    public long getGlobalReadLimit() {
+        return globalReadLimit;
+    }
+
+    public void setGlobalReadLimit(long globalReadLimit) {
+        this.globalReadLimit = globalReadLimit;
+    }
+
+    /**
+     * @return bytes per second sent to all sessions of one user, 0 for unlimited
+     */
+    public long getUserWriteLimit() {
+        return userWriteLimit;
+    }
+
+    public void setUserWriteLimit(long userWriteLimit) {
+        this.userWriteLimit = userWriteLimit;
+    }
+
+    /**
+     * @return bytes per second received from all sessions of one user, 0 for unlimited
+     */
+    public long getUserReadLimit() {
+        return userReadLimit;
+    }
+
+    public void setUserReadLimit(long userReadLimit) {
+        this.userReadLimit = userReadLimit;
+    }
+
+    /**
+     * @return bytes per second sent to one session, 0 for unlimited
+     */
+    public long getSessionWriteLimit() {
+        return sessionWriteLimit;
+    }
+
+    public void setSessionWriteLimit(long sessionWriteLimit) {
+        this.sessionWriteLimit = sessionWriteLimit;
+    }
+
+    /**
+     * @return bytes per second received from one session, 0 for unlimited
+     */
+    public long getSessionReadLimit() {
+        return sessionReadLimit;
+    }
+
+    public void setSessionReadLimit(long sessionReadLimit) {
+        this.sessionReadLimit = sessionReadLimit;
+    }
+
+    /**
+     * @return port of the plain-text metrics endpoint, 0 disables it
+     */
+    public int getMetricsPort() {
+        return metricsPort;
+    }
+
+    public void setMetricsPort(int metricsPort) {
+        this.metricsPort = metricsPort;
+    }
+
+    /**
+     * @return address the metrics endpoint listens on, loopback by default
+     */
+    public String getMetricsAddress() {
+        return metricsAddress;
+    }
+
+    public void setMetricsAddress(String metricsAddress) {
+        this.metricsAddress = metricsAddress;
+    }
+
+    /**
+     * @return file of accounts with hashed passwords, null for the single user/password account
+     */
+    public String getUsersFile() {
+        return usersFile;
+    }
+
+    public void setUsersFile(String usersFile) {
+        this.usersFile = usersFile;
+    }
+
+    /**
+     * @return name of the single account used without a users file
+     */
+    public String getUsername() {
+        return username;
+    }
+
+    public void setUsername(String username) {
+        this.username = username;
+    }
+
+    public String getPassword() {
+        return password;
+    }
+
+    public void setPassword(String password) {
+        this.password = password;
+    }
+
+    /**
+     * @return threads verifying passwords
+     */
+    public int getAuthThreads() {
+        return authThreads;
+    }
+
+    public void setAuthThreads(int authThreads) {
+        this.authThreads = authThreads;
+    }
+
+    /**
+     * @return how long verified credentials are remembered, 0 checks every login
+     */
+    public long getAuthCacheSeconds() {
+        return authCacheSeconds;
+    }
+
+    public void setAuthCacheSeconds(long authCacheSeconds) {
+        this.authCacheSeconds = authCacheSeconds;
+    }
+
+    /**
+     * @return password verifications per second of one remote address, 0 for unlimited
+     */
+    public double getAuthRate() {
+        return authRate;
+    }
+
+    public void setAuthRate(double authRate) {
+        this.authRate = authRate;
+    }
+
+    /**
+     * @return control connections of all clients, 0 for unlimited
+     */
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    /**
+     * @return control connections of one client address, 0 for unlimited
+     */
+    public int getMaxConnectionsPerAddress() {
+        return maxConnectionsPerAddress;
+    }
+
+    public void setMaxConnectionsPerAddress(int maxConnectionsPerAddress) {
+        this.maxConnectionsPerAddress = maxConnectionsPerAddress;
+    }
+
+    /**
+     * @return a session without commands or replies for this long is closed, 0 never
+     */
+    public int getControlIdleSeconds() {
+        return controlIdleSeconds;
+    }
+
+    public void setControlIdleSeconds(int controlIdleSeconds) {
+        this.controlIdleSeconds = controlIdleSeconds;
+    }
+
+    /**
+     * @return a data connection without progress for this long is closed, 0 never
+     */
+    public int getDataIdleSeconds() {
+        return dataIdleSeconds;
+    }
+
+    public void setDataIdleSeconds(int dataIdleSeconds) {
+        this.dataIdleSeconds = dataIdleSeconds;
+    }
+
+    /**
+     * @return threads computing checksums for HASH/XCRC/XMD5/XSHA256
+     */
+    public int getHashThreads() {
+        return hashThreads;
+    }
+
+    public void setHashThreads(int hashThreads) {
+        this.hashThreads = hashThreads;
+    }
+
+    /**
+     * @return threads walking trees for LIST -R and STAT -R
+     */
+    public int getListThreads() {
+        return listThreads;
+    }
+
+    public void setListThreads(int listThreads) {
+        this.listThreads = listThreads;
+    }
+
+    /**
+     * @return levels of subdirectories in a recursive listing
+     */
+    public int getListMaxDepth() {
+        return listMaxDepth;
+    }
+
+    public void setListMaxDepth(int listMaxDepth) {
+        this.listMaxDepth = listMaxDepth;
+    }
+
+    /**
+     * @return entries of a recursive listing, a longer one is cut off
+     */
+    public int getListMaxEntries() {
+        return listMaxEntries;
+    }
+
+    public void setListMaxEntries(int listMaxEntries) {
+        this.listMaxEntries = listMaxEntries;
+    }
+
+    /**
+     * @return bytes of uploaded data gathered per disk write
+     */
+    public int getUploadChunkBytes() {
+        return uploadChunkBytes;
+    }
+
+    public void setUploadChunkBytes(int uploadChunkBytes) {
+        this.uploadChunkBytes = uploadChunkBytes;
+    }
+
+    /**
+     * @return uploads are synced every this many bytes and on close, 0 only on close, -1 never
+     */
+    public long getUploadSyncBytes() {
+        return uploadSyncBytes;
+    }
+
+    public void setUploadSyncBytes(long uploadSyncBytes) {
+        this.uploadSyncBytes = uploadSyncBytes;
+    }
+
+    /**
+     * @return file of the access log, null when it is off
+     */
+    public String getAccessLogFile() {
+        return accessLogFile;
+    }
+
+    public void setAccessLogFile(String accessLogFile) {
+        this.accessLogFile = accessLogFile;
+    }
+
+    /**
+     * @return access log records waiting for the writer, more are dropped
+     */
+    public int getAccessLogBuffer() {
+        return accessLogBuffer;
+    }
+
+    public void setAccessLogBuffer(int accessLogBuffer) {
+        this.accessLogBuffer = accessLogBuffer;
+    }
+
+    /**
+     * @return size at which the access log is rotated
+     */
+    public long getAccessLogMaxBytes() {
+        return accessLogMaxBytes;
+    }
+
+    public void setAccessLogMaxBytes(long accessLogMaxBytes) {
+        this.accessLogMaxBytes = accessLogMaxBytes;
+    }
+
+    /**
+     * @return rotated access log files kept
+     */
+    public int getAccessLogFiles() {
+        return accessLogFiles;
+    }
+
+    public void setAccessLogFiles(int accessLogFiles) {
+        this.accessLogFiles = accessLogFiles;
+    }
+}
@@ -0,0 +1,275 @@
+package com.jetsnegovik.ftp.server;
+
+import com.jetsnegovik.ftp.server.auth.Authenticator;
+import com.jetsnegovik.ftp.server.auth.FileUserStore;
+import com.jetsnegovik.ftp.server.auth.SingleUserStore;
+import com.jetsnegovik.ftp.server.auth.UserStore;
+import com.jetsnegovik.ftp.server.data.PassiveListeners;
+import com.jetsnegovik.ftp.server.data.PassivePortPool;
+import com.jetsnegovik.ftp.server.data.TrafficShaping;
+import com.jetsnegovik.ftp.server.fs.FileCache;
+import com.jetsnegovik.ftp.server.fs.FileHasher;
+import com.jetsnegovik.ftp.server.fs.ListingCache;
+import com.jetsnegovik.ftp.server.log.AccessLog;
+import com.jetsnegovik.ftp.server.metrics.ServerMetrics;
+import com.jetsnegovik.ftp.server.utils.ExecutorStats;
+import io.netty.channel.EventLoopGroup;
+import io.netty.util.concurrent.DefaultEventExecutorGroup;
+import io.netty.util.concurrent.EventExecutorGroup;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Resources shared by all sessions of a running server
+ *
+ * @author Вадим
+ */
+public class ServerContext {
+
+    private static final Logger logger = LoggerFactory.getLogger(ServerContext.class);
+    private static final String TRAFFIC_SHAPING_NAME = "com.jetsnegovik.ftp:type=TrafficShaping";
+    private static final String METRICS_NAME = "com.jetsnegovik.ftp:type=Metrics";
+    private static final String FILE_CACHE_NAME = "com.jetsnegovik.ftp:type=FileCache";
+    private final ServerConfig config;
+    private final Transport transport;
+    private final EventLoopGroup bossGroup;
+    private final EventLoopGroup workerGroup;
+    private final PassivePortPool passivePortPool;
+    private final PassiveListeners passiveListeners;
+    private final EventExecutorGroup diskGroup;
+    private final EventExecutorGroup commandGroup;
+    private final ExecutorStats commandStats;
+    private final ListingCache listingCache;
+    private final FileCache fileCache;
+    private final TrafficShaping trafficShaping;
+    private final ServerMetrics metrics;
+    private final Authenticator authenticator;
+    private final ConnectionLimiter connectionLimiter;
+    private final FileHasher fileHasher;
+    private final ForkJoinPool listPool;
+    private final AccessLog accessLog;
+
+    public ServerContext(ServerConfig config, Transport transport, EventLoopGroup bossGroup,
+            EventLoopGroup workerGroup) {
+        this.config = config;
+        this.authenticator = new Authenticator(userStore(config), config.getAuthThreads(),
+                config.getAuthCacheSeconds() * 1000, config.getAuthRate());
+        this.connectionLimiter = new ConnectionLimiter(config.getMaxConnections(),
+                config.getMaxConnectionsPerAddress());
+        this.transport = transport;
+        this.bossGroup = bossGroup;
+        this.workerGroup = workerGroup;
+        this.passivePortPool = new PassivePortPool(config.getPassivePortFrom(), config.getPassivePortTo());
+        this.passiveListeners = new PassiveListeners(transport, bossGroup, passivePortPool);
+        this.diskGroup = new DefaultEventExecutorGroup(config.getDiskThreads());
+        if (config.getCommandThreads() > 0) {
+            this.commandGroup = new DefaultEventExecutorGroup(config.getCommandThreads());
+        } else {
+            this.commandGroup = null;
+        }
+        this.commandStats = new ExecutorStats(commandGroup);
+        if (config.getListingCacheBytes() > 0) {
+            this.listingCache = new ListingCache(config.getListingCacheBytes(), config.getListingCacheBytes() / 8);
+        } else {
+            this.listingCache = null;
+        }
+        if (config.getFileCacheBytes() > 0) {
+            Path root = Paths.get(config.getRootDir()).toAbsolutePath().normalize();
+            List<Path> excluded = new ArrayList<Path>();
+            for (String dir : config.getFileCacheExcluded()) {
+                excluded.add(root.resolve(dir.replaceFirst("^/+", "")).normalize());
+            }
+            this.fileCache = new FileCache(config.getFileCacheBytes(), config.getFileCacheMaxFileBytes(),
+                    transport.getAllocator(), excluded);
+        } else {
+            this.fileCache = null;
+        }
+        this.fileHasher = new FileHasher(config.getHashThreads());
+        this.listPool = new ForkJoinPool(config.getListThreads());
+        this.accessLog = accessLog(config);
+        this.trafficShaping = new TrafficShaping(config, workerGroup);
+        this.metrics = new ServerMetrics(commandStats, trafficShaping.getDataTraffic(), fileCache, accessLog);
+        register(trafficShaping, TRAFFIC_SHAPING_NAME);
+        register(metrics, METRICS_NAME);
+        if (fileCache != null) {
+            register(fileCache, FILE_CACHE_NAME);
+        }
+    }
+
+    private static UserStore userStore(ServerConfig config) {
+        if (config.getUsersFile() == null) {
+            return new SingleUserStore(config.getUsername(), config.getPassword());
+        }
+        try {
+            return new FileUserStore(Paths.get(config.getUsersFile()));
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Cannot read users file " + config.getUsersFile(), e);
+        }
+    }
+
+    private static AccessLog accessLog(ServerConfig config) {
+        if (config.getAccessLogFile() == null) {
+            return null;
+        }
+        try {
+            return new AccessLog(Paths.get(config.getAccessLogFile()), config.getAccessLogBuffer(),
+                    config.getAccessLogMaxBytes(), config.getAccessLogFiles());
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Cannot open access log " + config.getAccessLogFile(), e);
+        }
+    }
+
+    public ServerConfig getConfig() {
+        return config;
+    }
+
+    /**
+     * @return channel implementation of the event loop groups
+     */
+    public Transport getTransport() {
+        return transport;
+    }
+
+    public EventLoopGroup getBossGroup() {
+        return bossGroup;
+    }
+
+    public EventLoopGroup getWorkerGroup() {
+        return workerGroup;
+    }
+
+    public PassivePortPool getPassivePortPool() {
+        return passivePortPool;
+    }
+
+    /**
+     * @return listeners of the passive ports, bound once and kept
+     */
+    public PassiveListeners getPassiveListeners() {
+        return passiveListeners;
+    }
+
+    public EventExecutorGroup getDiskGroup() {
+        return diskGroup;
+    }
+
+    /**
+     * @return group running FtpHandler, each session stays on one executor;
+     * null when commands run on the I/O threads
+     */
+    public EventExecutorGroup getCommandGroup() {
+        return commandGroup;
+    }
+
+    public ExecutorStats getCommandStats() {
+        return commandStats;
+    }
+
+    /**
+     * @return cache of encoded listings, null when disabled
+     */
+    public ListingCache getListingCache() {
+        return listingCache;
+    }
+
+    /**
+     * @return off-heap cache of small files, null when disabled
+     */
+    public FileCache getFileCache() {
+        return fileCache;
+    }
+
+    /**
+     * @return checksums of files for HASH and the X* commands
+     */
+    public FileHasher getFileHasher() {
+        return fileHasher;
+    }
+
+    /**
+     * @return pool walking trees for recursive listings
+     */
+    public ForkJoinPool getListPool() {
+        return listPool;
+    }
+
+    /**
+     * @return rate limits of data channels, adjustable over JMX
+     */
+    public TrafficShaping getTrafficShaping() {
+        return trafficShaping;
+    }
+
+    /**
+     * @return log of completed commands, null when disabled
+     */
+    public AccessLog getAccessLog() {
+        return accessLog;
+    }
+
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return login checks, off the event loops
+     */
+    public Authenticator getAuthenticator() {
+        return authenticator;
+    }
+
+    /**
+     * @return caps on control connections, checked when they are accepted
+     */
+    public ConnectionLimiter getConnectionLimiter() {
+        return connectionLimiter;
+    }
+
+    public void shutdown() {
+        unregister(TRAFFIC_SHAPING_NAME);
+        unregister(METRICS_NAME);
+        passiveListeners.close();
+        trafficShaping.release();
+        if (listingCache != null) {
+            listingCache.close();
+        }
+        if (fileCache != null) {
+            unregister(FILE_CACHE_NAME);
+            fileCache.clear();
+        }
+        diskGroup.shutdownGracefully();
+        authenticator.shutdown();
+        fileHasher.shutdown();
+        listPool.shutdown();
+        if (commandGroup != null) {
+            commandGroup.shutdownGracefully();
+        }
+        if (accessLog != null) {
+            accessLog.shutdown();
+        }
+    }
+
+    private static void register(Object bean, String name) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(bean, new ObjectName(name));
+        } catch (JMException e) {
+            logger.warn("Cannot register " + name + " over JMX", e);
+        }
+    }
+
+    private static void unregister(String name) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(name));
+        } catch (JMException e) {
+        }
+    }
+}
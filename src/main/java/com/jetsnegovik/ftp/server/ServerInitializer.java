@@ -1,13 +1,19 @@
 package com.jetsnegovik.ftp.server;
 
+import com.jetsnegovik.ftp.server.handlers.FtpCommandDecoder;
 import com.jetsnegovik.ftp.server.handlers.FtpHandler;
+import com.jetsnegovik.ftp.server.utils.FtpReply;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelPipeline;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.handler.codec.DelimiterBasedFrameDecoder;
-import io.netty.handler.codec.Delimiters;
-import io.netty.handler.codec.string.StringDecoder;
-import io.netty.handler.codec.string.StringEncoder;
+import io.netty.handler.timeout.IdleStateHandler;
+import io.netty.util.ReferenceCountUtil;
+import java.net.InetAddress;
 
 /**
  *
@@ -15,15 +21,63 @@ import io.netty.handler.codec.string.StringEncoder;
  */
 public class ServerInitializer extends ChannelInitializer<SocketChannel> {
 
-    private static final StringDecoder DECODER = new StringDecoder();
-    private static final StringEncoder ENCODER = new StringEncoder();
+    private static final FtpReply REPLY_TOO_MANY_CONNECTIONS = new FtpReply(421,
+            "Too many connections, try again later.");
+    private final ServerContext context;
+    private final FtpHandler handler;
+
+    public ServerInitializer(ServerContext context) {
+        this.context = context;
+        this.handler = new FtpHandler(context);
+    }
 
     @Override
     public void initChannel(SocketChannel ch) throws Exception {
         ChannelPipeline p = ch.pipeline();
-        p.addLast("framer", new DelimiterBasedFrameDecoder(256, Delimiters.lineDelimiter()));
-        p.addLast("decoder", DECODER);
-        p.addLast("encoder", ENCODER);
-        p.addLast("handler", new FtpHandler());
+        final InetAddress address = ch.remoteAddress().getAddress();
+        final ConnectionLimiter limiter = context.getConnectionLimiter();
+        if (!limiter.acquire(address)) {
+            context.getMetrics().sessionRejected();
+            p.addLast("reject", RejectHandler.INSTANCE);
+            return;
+        }
+        ch.closeFuture().addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+                limiter.release(address);
+            }
+        });
+        int idleSeconds = context.getConfig().getControlIdleSeconds();
+        if (idleSeconds > 0) {
+            p.addLast("idle", new IdleStateHandler(0, 0, idleSeconds));
+        }
+        p.addLast("decoder", new FtpCommandDecoder());
+        // the handler queues commands per session and moves blocking ones off the I/O thread
+        p.addLast("handler", handler);
+    }
+
+    /**
+     * Answers a connection over the limits with 421 and closes it, no
+     * session is created
+     */
+    @Sharable
+    private static final class RejectHandler extends ChannelInboundHandlerAdapter {
+
+        static final RejectHandler INSTANCE = new RejectHandler();
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) throws Exception {
+            ctx.writeAndFlush(REPLY_TOO_MANY_CONNECTIONS.encoded()).addListener(ChannelFutureListener.CLOSE);
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            ReferenceCountUtil.release(msg);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+            ctx.close();
+        }
     }
 }
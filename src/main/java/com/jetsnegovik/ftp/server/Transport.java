@@ -0,0 +1,156 @@
+package com.jetsnegovik.ftp.server;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.channel.ChannelConfig;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Channel implementation and socket options shared by the control port,
+ * data connections and the metrics endpoint. Native epoll is used when
+ * asked for and available, NIO otherwise.
+ *
+ * @author Вадим
+ */
+public class Transport {
+
+    private static final Logger logger = LoggerFactory.getLogger(Transport.class);
+    private final ServerConfig config;
+    private final boolean epoll;
+    private final ByteBufAllocator allocator;
+
+    private Transport(ServerConfig config, boolean epoll) {
+        this.config = config;
+        this.epoll = epoll;
+        this.allocator = config.isPooledAllocator() ? PooledByteBufAllocator.DEFAULT : UnpooledByteBufAllocator.DEFAULT;
+    }
+
+    /**
+     * @param config transport is "epoll", "nio" or "auto"
+     * @return epoll transport if requested and available, NIO otherwise
+     */
+    public static Transport create(ServerConfig config) {
+        String name = config.getTransport();
+        if (name.equals("nio")) {
+            return new Transport(config, false);
+        }
+        if (Epoll.isAvailable()) {
+            return new Transport(config, true);
+        }
+        if (name.equals("epoll")) {
+            logger.warn("Native epoll is not available, falling back to NIO", Epoll.unavailabilityCause());
+        }
+        return new Transport(config, false);
+    }
+
+    public boolean isEpoll() {
+        return epoll;
+    }
+
+    /**
+     * @return allocator of all channels, pooled unless disabled
+     */
+    public ByteBufAllocator getAllocator() {
+        return allocator;
+    }
+
+    public String getName() {
+        return epoll ? "epoll" : "nio";
+    }
+
+    /**
+     * @param threads number of event loops, 0 for the Netty default
+     */
+    public EventLoopGroup newEventLoopGroup(int threads) {
+        return epoll ? new EpollEventLoopGroup(threads) : new NioEventLoopGroup(threads);
+    }
+
+    public Class<? extends ServerChannel> serverChannelClass() {
+        return epoll ? EpollServerSocketChannel.class : NioServerSocketChannel.class;
+    }
+
+    /**
+     * @return unregistered listening channel, for listeners bound without a bootstrap
+     */
+    public ServerChannel newServerChannel() {
+        ServerChannel channel = epoll ? new EpollServerSocketChannel() : new NioServerSocketChannel();
+        channel.config().setAllocator(allocator);
+        return channel;
+    }
+
+    public Class<? extends SocketChannel> socketChannelClass() {
+        return epoll ? EpollSocketChannel.class : NioSocketChannel.class;
+    }
+
+    /**
+     * Allocator and socket options of accepted connections
+     *
+     * @param b bootstrap of a listening port
+     * @param reusePort let several sockets bind the same port (epoll only)
+     */
+    public void configure(ServerBootstrap b, boolean reusePort) {
+        b.channel(serverChannelClass());
+        b.option(ChannelOption.ALLOCATOR, allocator);
+        b.childOption(ChannelOption.ALLOCATOR, allocator);
+        b.childOption(ChannelOption.TCP_NODELAY, config.isTcpNoDelay());
+        if (config.getReceiveBufferSize() > 0) {
+            b.childOption(ChannelOption.SO_RCVBUF, config.getReceiveBufferSize());
+        }
+        if (config.getSendBufferSize() > 0) {
+            b.childOption(ChannelOption.SO_SNDBUF, config.getSendBufferSize());
+        }
+        if (reusePort && epoll) {
+            b.option(EpollChannelOption.SO_REUSEPORT, true);
+        }
+    }
+
+    /**
+     * Allocator and socket options of a connection accepted without a
+     * bootstrap, the same as {@link #configure(ServerBootstrap, boolean)} sets
+     *
+     * @param child config of the accepted channel
+     */
+    public void configure(ChannelConfig child) {
+        child.setAllocator(allocator);
+        child.setOption(ChannelOption.TCP_NODELAY, config.isTcpNoDelay());
+        if (config.getReceiveBufferSize() > 0) {
+            child.setOption(ChannelOption.SO_RCVBUF, config.getReceiveBufferSize());
+        }
+        if (config.getSendBufferSize() > 0) {
+            child.setOption(ChannelOption.SO_SNDBUF, config.getSendBufferSize());
+        }
+    }
+
+    /**
+     * Allocator and socket options of outgoing connections
+     *
+     * @param b client bootstrap
+     */
+    public void configure(Bootstrap b) {
+        b.channel(socketChannelClass());
+        b.option(ChannelOption.ALLOCATOR, allocator);
+        b.option(ChannelOption.TCP_NODELAY, config.isTcpNoDelay());
+        if (config.getReceiveBufferSize() > 0) {
+            b.option(ChannelOption.SO_RCVBUF, config.getReceiveBufferSize());
+        }
+        if (config.getSendBufferSize() > 0) {
+            b.option(ChannelOption.SO_SNDBUF, config.getSendBufferSize());
+        }
+    }
+}
@@ -0,0 +1,276 @@
+package com.jetsnegovik.ftp.server.auth;
+
+import io.netty.util.CharsetUtil;
+import io.netty.util.concurrent.DefaultEventExecutorGroup;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.EventExecutorGroup;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.FutureListener;
+import io.netty.util.concurrent.Promise;
+import java.net.InetAddress;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Checks logins against a {@link UserStore} on its own threads, so slow
+ * hashes never stall an event loop. Verified credentials are remembered
+ * for a while as a keyed digest (never the password itself) and a repeated
+ * login is answered right away. Logins arriving together with the same
+ * credentials share one verification. Verifications of each remote
+ * address are limited to a number per second.
+ *
+ * @author Вадим
+ */
+public class Authenticator {
+
+    /**
+     * Outcome of a login
+     */
+    public enum Result {
+        SUCCESS, FAILED, RATE_LIMITED
+    }
+
+    private static final Logger logger = LoggerFactory.getLogger(Authenticator.class);
+    private static final int MAX_VERIFIED = 10000;
+    private static final long PURGE_SECONDS = 60;
+    private static final long RELOAD_SECONDS = 2;
+    private final UserStore store;
+    private final EventExecutorGroup group;
+    private final long ttlNanos;
+    private final double rate;
+    private final byte[] secret = new byte[32];
+    private volatile long generation;
+    private final ConcurrentMap<String, Verified> verified = new ConcurrentHashMap<String, Verified>();
+    private final ConcurrentMap<String, Future<Result>> pending = new ConcurrentHashMap<String, Future<Result>>();
+    private final ConcurrentMap<InetAddress, Bucket> buckets = new ConcurrentHashMap<InetAddress, Bucket>();
+    private final ThreadLocal<MessageDigest> digests = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    /**
+     * @param store accounts
+     * @param threads threads running the store
+     * @param ttlMillis how long verified credentials are remembered, 0 to verify every login
+     * @param rate verifications per second of one remote address, 0 for unlimited
+     */
+    public Authenticator(UserStore store, int threads, long ttlMillis, double rate) {
+        this.store = store;
+        this.group = new DefaultEventExecutorGroup(threads);
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        this.rate = rate;
+        new SecureRandom().nextBytes(secret);
+        group.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                purge();
+            }
+        }, PURGE_SECONDS, PURGE_SECONDS, TimeUnit.SECONDS);
+        if (ttlNanos > 0) {
+            group.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    reload();
+                }
+            }, RELOAD_SECONDS, RELOAD_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * @param username name sent with USER
+     * @param password password sent with PASS
+     * @param address remote address of the session
+     * @param executor executor notifying the listeners, the event loop of the session
+     * @return result, already done when the credentials were verified recently
+     */
+    public Future<Result> authenticate(final String username, final String password, InetAddress address,
+            EventExecutor executor) {
+        final String key = key(username, password);
+        Verified remembered = verified.get(key);
+        if (remembered != null && remembered.generation == generation
+                && remembered.expires - System.nanoTime() > 0) {
+            return executor.newSucceededFuture(Result.SUCCESS);
+        }
+        Future<Result> shared = pending.get(key);
+        if (shared == null) {
+            Bucket bucket = bucket(address);
+            if (bucket != null && !bucket.tryAcquire(rate, System.nanoTime())) {
+                return executor.newSucceededFuture(Result.RATE_LIMITED);
+            }
+            EventExecutor worker = group.next();
+            final Promise<Result> promise = worker.newPromise();
+            shared = pending.putIfAbsent(key, promise);
+            if (shared == null) {
+                shared = promise;
+                worker.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        Result outcome = Result.FAILED;
+                        try {
+                            outcome = verify(key, username, password);
+                        } catch (Throwable e) {
+                            // an Error escaping a task ends the worker thread, logins given to it would hang
+                            logger.error("User store failed", e);
+                        } finally {
+                            // the session holds its commands until PASS is answered
+                            promise.setSuccess(outcome);
+                        }
+                    }
+                });
+            }
+        }
+        final Promise<Result> result = executor.newPromise();
+        shared.addListener(new FutureListener<Result>() {
+            @Override
+            public void operationComplete(Future<Result> future) throws Exception {
+                result.setSuccess(future.getNow());
+            }
+        });
+        return result;
+    }
+
+    private Result verify(String key, String username, String password) {
+        // a result of accounts replaced meanwhile is never used from memory
+        long current = generation;
+        try {
+            if (!store.authenticate(username, password)) {
+                return Result.FAILED;
+            }
+            if (ttlNanos > 0) {
+                if (verified.size() >= MAX_VERIFIED) {
+                    purge();
+                }
+                if (verified.size() < MAX_VERIFIED) {
+                    verified.put(key, new Verified(System.nanoTime() + ttlNanos, current));
+                }
+            }
+            return Result.SUCCESS;
+        } catch (Exception e) {
+            logger.error("User store failed", e);
+            return Result.FAILED;
+        } finally {
+            pending.remove(key);
+        }
+    }
+
+    private String key(String username, String password) {
+        MessageDigest digest = digests.get();
+        digest.update(secret);
+        digest.update(username.getBytes(CharsetUtil.UTF_8));
+        digest.update((byte) 0);
+        digest.update(password.getBytes(CharsetUtil.UTF_8));
+        return Base64.getEncoder().encodeToString(digest.digest());
+    }
+
+    private Bucket bucket(InetAddress address) {
+        if (rate <= 0 || address == null) {
+            return null;
+        }
+        Bucket bucket = buckets.get(address);
+        if (bucket == null) {
+            Bucket created = new Bucket(rate, System.nanoTime());
+            bucket = buckets.putIfAbsent(address, created);
+            if (bucket == null) {
+                bucket = created;
+            }
+        }
+        return bucket;
+    }
+
+    /**
+     * Forget verified credentials when the accounts changed: a removed user
+     * or an old password must not log in from memory
+     */
+    private void reload() {
+        try {
+            long reloaded = store.reload();
+            if (reloaded != generation) {
+                generation = reloaded;
+                verified.clear();
+            }
+        } catch (Exception e) {
+            logger.error("User store failed", e);
+        }
+    }
+
+    /**
+     * Drop expired credentials and buckets that refilled
+     */
+    private void purge() {
+        long now = System.nanoTime();
+        for (Iterator<Verified> it = verified.values().iterator(); it.hasNext();) {
+            Verified remembered = it.next();
+            if (remembered.expires - now <= 0 || remembered.generation != generation) {
+                it.remove();
+            }
+        }
+        for (Iterator<Map.Entry<InetAddress, Bucket>> it = buckets.entrySet().iterator(); it.hasNext();) {
+            if (it.next().getValue().isFull(rate, now)) {
+                it.remove();
+            }
+        }
+    }
+
+    public void shutdown() {
+        group.shutdownGracefully();
+    }
+
+    private static final class Verified {
+
+        final long expires;
+        final long generation;
+
+        Verified(long expires, long generation) {
+            this.expires = expires;
+            this.generation = generation;
+        }
+    }
+
+    /**
+     * Token bucket of one address holding up to one second of verifications
+     */
+    private static final class Bucket {
+
+        private double tokens;
+        private long updated;
+
+        Bucket(double rate, long now) {
+            this.tokens = Math.max(1, rate);
+            this.updated = now;
+        }
+
+        synchronized boolean tryAcquire(double rate, long now) {
+            refill(rate, now);
+            if (tokens < 1) {
+                return false;
+            }
+            tokens--;
+            return true;
+        }
+
+        synchronized boolean isFull(double rate, long now) {
+            refill(rate, now);
+            return tokens >= Math.max(1, rate);
+        }
+
+        private void refill(double rate, long now) {
+            tokens = Math.min(Math.max(1, rate), tokens + (now - updated) / 1e9 * rate);
+            updated = now;
+        }
+    }
+}
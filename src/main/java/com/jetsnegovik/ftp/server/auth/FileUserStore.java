@@ -0,0 +1,116 @@
+package com.jetsnegovik.ftp.server.auth;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Accounts from a text file, one per line:
+ *
+ * username:pbkdf2-sha256:iterations:salt:hash
+ *
+ * Empty lines and lines starting with # are skipped. The file is read
+ * again when its mtime changes; if it is malformed then, the accounts
+ * read before stay in use. A line for a new user is printed by
+ *
+ * java -cp ftp_server.jar com.jetsnegovik.ftp.server.auth.FileUserStore username password
+ *
+ * @author Вадим
+ */
+public class FileUserStore implements UserStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(FileUserStore.class);
+    private final Path file;
+    private final PasswordHash unknownUser = PasswordHash.create("", PasswordHash.DEFAULT_ITERATIONS);
+    private volatile Map<String, PasswordHash> users;
+    private volatile long modified;
+    private volatile long generation;
+
+    /**
+     * @param file users file
+     * @throws IOException if the file cannot be read or has a malformed line
+     */
+    public FileUserStore(Path file) throws IOException {
+        this.file = file;
+        load();
+    }
+
+    @Override
+    public boolean authenticate(String username, String password) throws IOException {
+        if (Files.getLastModifiedTime(file).toMillis() != modified) {
+            load();
+        }
+        PasswordHash hash = users.get(username);
+        if (hash == null) {
+            // as slow as a wrong password, the time does not reveal which user names exist
+            unknownUser.matches(password);
+            return false;
+        }
+        return hash.matches(password);
+    }
+
+    @Override
+    public long reload() throws IOException {
+        load();
+        return generation;
+    }
+
+    private synchronized void load() throws IOException {
+        long lastModified = Files.getLastModifiedTime(file).toMillis();
+        if (users != null && lastModified == modified) {
+            return;
+        }
+        List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        Map<String, PasswordHash> loaded;
+        try {
+            loaded = parse(lines);
+        } catch (IllegalArgumentException e) {
+            if (users == null) {
+                throw new IOException(e.getMessage(), e);
+            }
+            // a file saved half edited must not lock everybody out, it is read again once it changes
+            logger.error("Keeping the previous accounts: {}", e.getMessage());
+            modified = lastModified;
+            return;
+        }
+        users = loaded;
+        modified = lastModified;
+        generation++;
+    }
+
+    private Map<String, PasswordHash> parse(List<String> lines) {
+        Map<String, PasswordHash> parsed = new HashMap<String, PasswordHash>();
+        int number = 0;
+        for (String line : lines) {
+            number++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            int colon = line.indexOf(':');
+            if (colon < 1) {
+                throw new IllegalArgumentException(file + ":" + number + ": expected username:hash");
+            }
+            try {
+                parsed.put(line.substring(0, colon), PasswordHash.parse(line.substring(colon + 1)));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException(file + ":" + number + ": " + e.getMessage(), e);
+            }
+        }
+        return parsed;
+    }
+
+    public static void main(String[] args) {
+        if (args.length != 2) {
+            System.err.println("Usage: FileUserStore username password");
+            System.exit(1);
+        }
+        System.out.println(args[0] + ":" + PasswordHash.create(args[1], PasswordHash.DEFAULT_ITERATIONS));
+    }
+}
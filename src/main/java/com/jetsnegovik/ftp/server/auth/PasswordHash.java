@@ -0,0 +1,89 @@
+package com.jetsnegovik.ftp.server.auth;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * Salted PBKDF2-HMAC-SHA256 password hash, written as
+ * pbkdf2-sha256:iterations:salt:hash with Base64 salt and hash
+ *
+ * @author Вадим
+ */
+public final class PasswordHash {
+
+    public static final String SCHEME = "pbkdf2-sha256";
+    public static final int DEFAULT_ITERATIONS = 100000;
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final int SALT_BYTES = 16;
+    private static final int HASH_BITS = 256;
+    private static final SecureRandom random = new SecureRandom();
+    private final int iterations;
+    private final byte[] salt;
+    private final byte[] hash;
+
+    private PasswordHash(int iterations, byte[] salt, byte[] hash) {
+        this.iterations = iterations;
+        this.salt = salt;
+        this.hash = hash;
+    }
+
+    /**
+     * Hash a password with a new random salt
+     *
+     * @param password clear text password
+     * @param iterations PBKDF2 iterations
+     * @return new hash
+     */
+    public static PasswordHash create(String password, int iterations) {
+        byte[] salt = new byte[SALT_BYTES];
+        random.nextBytes(salt);
+        return new PasswordHash(iterations, salt, derive(password, salt, iterations));
+    }
+
+    /**
+     * @param text hash in the form of {@link #toString()}
+     * @return parsed hash
+     * @throws IllegalArgumentException if the text is not a pbkdf2-sha256 hash
+     */
+    public static PasswordHash parse(String text) {
+        String[] parts = text.split(":");
+        if (parts.length != 4 || !parts[0].equals(SCHEME)) {
+            throw new IllegalArgumentException("Expected " + SCHEME + ":iterations:salt:hash");
+        }
+        int iterations = Integer.parseInt(parts[1]);
+        if (iterations < 1) {
+            throw new IllegalArgumentException("Iterations must be positive: " + iterations);
+        }
+        Base64.Decoder decoder = Base64.getDecoder();
+        return new PasswordHash(iterations, decoder.decode(parts[2]), decoder.decode(parts[3]));
+    }
+
+    /**
+     * @param password clear text password
+     * @return true if the password has this hash, always takes the full time of a hash
+     */
+    public boolean matches(String password) {
+        return MessageDigest.isEqual(hash, derive(password, salt, iterations));
+    }
+
+    private static byte[] derive(String password, byte[] salt, int iterations) {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BITS);
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(ALGORITHM + " is not available", e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    @Override
+    public String toString() {
+        Base64.Encoder encoder = Base64.getEncoder();
+        return SCHEME + ":" + iterations + ":" + encoder.encodeToString(salt) + ":" + encoder.encodeToString(hash);
+    }
+}
@@ -0,0 +1,33 @@
+package com.jetsnegovik.ftp.server.auth;
+
+import io.netty.util.CharsetUtil;
+import java.security.MessageDigest;
+
+/**
+ * One account given in the configuration, used when no users file is set
+ *
+ * @author Вадим
+ */
+public class SingleUserStore implements UserStore {
+
+    private final String username;
+    private final byte[] password;
+
+    public SingleUserStore(String username, String password) {
+        this.username = username;
+        this.password = password.getBytes(CharsetUtil.UTF_8);
+    }
+
+    @Override
+    public boolean authenticate(String username, String password) {
+        // compare every byte, the time taken tells nothing about the password
+        return MessageDigest.isEqual(this.password, password.getBytes(CharsetUtil.UTF_8))
+                && this.username.equals(username);
+    }
+
+    @Override
+    public long reload() {
+        // the configuration does not change while running
+        return 0;
+    }
+}
@@ -0,0 +1,30 @@
+package com.jetsnegovik.ftp.server.auth;
+
+import java.io.IOException;
+
+/**
+ * Source of user accounts. Implementations may block (files, directories,
+ * slow password hashes): the server calls them on its authentication
+ * threads, never on an event loop.
+ *
+ * @author Вадим
+ */
+public interface UserStore {
+
+    /**
+     * @param username name sent with USER
+     * @param password password sent with PASS
+     * @return true if the user exists and the password is right
+     * @throws IOException if the store cannot be read
+     */
+    boolean authenticate(String username, String password) throws IOException;
+
+    /**
+     * Read the accounts again if their source changed, called every few
+     * seconds while logins are remembered
+     *
+     * @return generation of the accounts, it changes whenever they do
+     * @throws IOException if the store cannot be read
+     */
+    long reload() throws IOException;
+}
@@ -0,0 +1,71 @@
+package com.jetsnegovik.ftp.server.data;
+
+import com.jetsnegovik.ftp.server.Transport;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoop;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+import java.net.InetSocketAddress;
+
+/**
+ * Active mode (PORT): server dials the client
+ *
+ * @author Вадим
+ */
+public class ActiveDataConnection implements DataConnection {
+
+    public static final int WRITE_BUFFER_HIGH_WATER_MARK = 256 * 1024;
+    public static final int WRITE_BUFFER_LOW_WATER_MARK = 64 * 1024;
+    private static final int CONNECT_TIMEOUT_MILLIS = 10000;
+    private final Transport transport;
+    private final InetSocketAddress address;
+
+    public ActiveDataConnection(Transport transport, InetSocketAddress address) {
+        this.transport = transport;
+        this.address = address;
+    }
+
+    public InetSocketAddress getAddress() {
+        return address;
+    }
+
+    @Override
+    public Future<Channel> open(EventLoop loop) {
+        final Promise<Channel> promise = loop.newPromise();
+        Bootstrap b = new Bootstrap();
+        transport.configure(b);
+        b.group(loop)
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, CONNECT_TIMEOUT_MILLIS)
+                .option(ChannelOption.AUTO_READ, false)
+                .option(ChannelOption.ALLOW_HALF_CLOSURE, true)
+                .option(ChannelOption.WRITE_BUFFER_HIGH_WATER_MARK, WRITE_BUFFER_HIGH_WATER_MARK)
+                .option(ChannelOption.WRITE_BUFFER_LOW_WATER_MARK, WRITE_BUFFER_LOW_WATER_MARK)
+                .handler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel ch) throws Exception {
+                        ch.pipeline().addLast("gate", new DataInboundGate());
+                        ch.pipeline().addLast("data", DataChannelHandler.INSTANCE);
+                    }
+                });
+        b.connect(address).addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+                if (future.isSuccess()) {
+                    promise.setSuccess(future.channel());
+                } else {
+                    promise.setFailure(future.cause());
+                }
+            }
+        });
+        return promise;
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,160 @@
+package com.jetsnegovik.ftp.server.data;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufProcessor;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelPipeline;
+import io.netty.handler.codec.MessageToByteEncoder;
+
+/**
+ * TYPE A line endings: LF in files, CRLF on the wire. The conversion
+ * works on bytes, segments between line ends are copied in bulk and no
+ * charset is involved, so any ASCII-compatible encoding passes through.
+ * Listings are CRLF already and are never converted.
+ *
+ * @author Вадим
+ */
+public final class AsciiConversion {
+
+    private static final byte CR = '\r';
+    private static final byte LF = '\n';
+
+    private AsciiConversion() {
+    }
+
+    /**
+     * Convert LF to CRLF in everything written to the data channel
+     *
+     * @param channel data channel
+     * @return the encoder, it counts the bytes it produced
+     */
+    public static LineEncoder toNetwork(Channel channel) {
+        LineEncoder encoder = new LineEncoder();
+        ChannelPipeline p = channel.pipeline();
+        p.addBefore(p.context(DataChannelHandler.INSTANCE).name(), "asciiEncoder", encoder);
+        return encoder;
+    }
+
+    /**
+     * Convert CRLF to LF in everything read from the data channel
+     *
+     * @param channel data channel
+     */
+    public static void fromNetwork(Channel channel) {
+        ChannelPipeline p = channel.pipeline();
+        p.addBefore(p.context(DataChannelHandler.INSTANCE).name(), "asciiDecoder", new LineDecoder());
+    }
+
+    /**
+     * LF not preceded by CR becomes CRLF, existing CRLF is left alone
+     */
+    public static final class LineEncoder extends MessageToByteEncoder<ByteBuf> {
+
+        private boolean lastCr;
+        private volatile long encodedBytes;
+
+        /**
+         * @return bytes written to the network so far, line ends included
+         */
+        public long getEncodedBytes() {
+            return encodedBytes;
+        }
+
+        @Override
+        protected ByteBuf allocateBuffer(ChannelHandlerContext ctx, ByteBuf msg, boolean preferDirect) {
+            // text lines are rarely shorter than 32 bytes, grown on demand otherwise
+            int size = msg.readableBytes() + (msg.readableBytes() >> 5) + 16;
+            return preferDirect ? ctx.alloc().ioBuffer(size) : ctx.alloc().heapBuffer(size);
+        }
+
+        @Override
+        protected void encode(ChannelHandlerContext ctx, ByteBuf in, ByteBuf out) {
+            int start = in.readerIndex();
+            int from = start;
+            int end = in.writerIndex();
+            if (from == end) {
+                return;
+            }
+            while (from < end) {
+                int lf = in.forEachByte(from, end - from, ByteBufProcessor.FIND_LF);
+                if (lf < 0) {
+                    out.writeBytes(in, from, end - from);
+                    break;
+                }
+                out.writeBytes(in, from, lf - from);
+                boolean cr = lf > start ? in.getByte(lf - 1) == CR : lastCr;
+                if (!cr) {
+                    out.writeByte(CR);
+                }
+                out.writeByte(LF);
+                from = lf + 1;
+            }
+            lastCr = in.getByte(end - 1) == CR;
+            in.readerIndex(end);
+            encodedBytes += out.readableBytes();
+        }
+    }
+
+    /**
+     * CRLF becomes LF, a lone CR is kept. A CR ending one read is held
+     * back until the next read shows whether LF follows.
+     */
+    static final class LineDecoder extends ChannelInboundHandlerAdapter {
+
+        private boolean pendingCr;
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            if (!(msg instanceof ByteBuf)) {
+                ctx.fireChannelRead(msg);
+                return;
+            }
+            ByteBuf in = (ByteBuf) msg;
+            try {
+                int from = in.readerIndex();
+                int end = in.writerIndex();
+                if (from == end) {
+                    return;
+                }
+                ByteBuf out = ctx.alloc().buffer(in.readableBytes() + 1);
+                if (pendingCr && in.getByte(from) != LF) {
+                    out.writeByte(CR);
+                }
+                pendingCr = false;
+                while (from < end) {
+                    int cr = in.forEachByte(from, end - from, ByteBufProcessor.FIND_CR);
+                    if (cr < 0) {
+                        out.writeBytes(in, from, end - from);
+                        break;
+                    }
+                    out.writeBytes(in, from, cr - from);
+                    if (cr + 1 == end) {
+                        pendingCr = true;
+                    } else if (in.getByte(cr + 1) != LF) {
+                        out.writeByte(CR);
+                    }
+                    from = cr + 1;
+                }
+                if (out.isReadable()) {
+                    ctx.fireChannelRead(out);
+                } else {
+                    out.release();
+                }
+            } finally {
+                in.release();
+            }
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            if (pendingCr) {
+                pendingCr = false;
+                ctx.fireChannelRead(ctx.alloc().buffer(1).writeByte(CR));
+                ctx.fireChannelReadComplete();
+            }
+            ctx.fireChannelInactive();
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.jetsnegovik.ftp.server.data;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelPromise;
+import io.netty.util.concurrent.EventExecutor;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * Sends a file region as pooled buffers, for data channels behind traffic
+ * shaping handlers which do not see FileRegion messages. Only a few chunks
+ * are in flight, the next one is read when a write completes, so delayed
+ * writes of the shaper do not pile up the whole file in memory. Chunks
+ * are read on a disk executor, a slow disk never stalls the event loop
+ * of the data channel.
+ *
+ * @author Вадим
+ */
+public class ChunkedFileWriter implements DataWriter, ChannelFutureListener {
+
+    public static final int CHUNK_SIZE = 64 * 1024;
+    private static final int WINDOW = 4;
+    private final FileChannel file;
+    private final long end;
+    private final EventExecutor reader;
+    private final Runnable readChunks = new Runnable() {
+        @Override
+        public void run() {
+            readChunks();
+        }
+    };
+    // the fields below are used on the reader only
+    private long position;
+    private int inFlight;
+    private Channel channel;
+    private ChannelPromise done;
+
+    /**
+     * @param file source, closed by this writer
+     * @param offset first byte to send
+     * @param length number of bytes to send
+     * @param reader executor reading the file
+     */
+    public ChunkedFileWriter(FileChannel file, long offset, long length, EventExecutor reader) {
+        this.file = file;
+        this.position = offset;
+        this.end = offset + length;
+        this.reader = reader;
+    }
+
+    @Override
+    public ChannelFuture write(Channel channel) {
+        this.channel = channel;
+        this.done = channel.newPromise();
+        reader.execute(readChunks);
+        return done;
+    }
+
+    @Override
+    public void discard() {
+        closeFile();
+    }
+
+    @Override
+    public void operationComplete(final ChannelFuture future) throws Exception {
+        // notified on the event loop, the next chunk is read on the reader
+        reader.execute(new Runnable() {
+            @Override
+            public void run() {
+                inFlight--;
+                if (!future.isSuccess()) {
+                    fail(future.cause());
+                    return;
+                }
+                readChunks();
+            }
+        });
+    }
+
+    private void readChunks() {
+        while (inFlight < WINDOW && position < end && !done.isDone()) {
+            int length = (int) Math.min(CHUNK_SIZE, end - position);
+            ByteBuf chunk = channel.alloc().buffer(length);
+            try {
+                while (chunk.readableBytes() < length) {
+                    int read = file.read(chunk.nioBuffer(chunk.writerIndex(), length - chunk.readableBytes()),
+                            position + chunk.readableBytes());
+                    if (read < 0) {
+                        throw new EOFException("File truncated during transfer");
+                    }
+                    chunk.writerIndex(chunk.writerIndex() + read);
+                }
+            } catch (IOException e) {
+                chunk.release();
+                fail(e);
+                return;
+            }
+            position += length;
+            inFlight++;
+            channel.writeAndFlush(chunk).addListener(this);
+        }
+        if (position >= end && inFlight == 0 && !done.isDone()) {
+            closeFile();
+            done.trySuccess();
+        }
+    }
+
+    private void fail(Throwable cause) {
+        closeFile();
+        done.tryFailure(cause);
+    }
+
+    private void closeFile() {
+        try {
+            file.close();
+        } catch (IOException e) {
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package com.jetsnegovik.ftp.server.data;
+
+import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.util.ReferenceCountUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tail handler of every data channel, drops input no transfer consumes
+ * and closes the channel on errors
+ *
+ * @author Вадим
+ */
+@Sharable
+public class DataChannelHandler extends ChannelInboundHandlerAdapter {
+
+    public static final DataChannelHandler INSTANCE = new DataChannelHandler();
+    private static final Logger logger = LoggerFactory.getLogger(DataChannelHandler.class);
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        ReferenceCountUtil.release(msg);
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+        logger.debug("Data channel error", cause);
+        ctx.channel().close();
+    }
+}
@@ -0,0 +1,26 @@
+package com.jetsnegovik.ftp.server.data;
+
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoop;
+import io.netty.util.concurrent.Future;
+
+/**
+ * Source of data channels for file transfers and listings
+ *
+ * @author Вадим
+ */
+public interface DataConnection {
+
+    /**
+     * Open data channel on the given event loop
+     *
+     * @param loop event loop of the control channel
+     * @return future notified with connected data channel
+     */
+    Future<Channel> open(EventLoop loop);
+
+    /**
+     * Release resources held by this connection
+     */
+    void close();
+}
@@ -0,0 +1,46 @@
+package com.jetsnegovik.ftp.server.data;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundBuffer;
+import io.netty.channel.FileRegion;
+import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.handler.timeout.IdleStateHandler;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Closes a data channel that makes no progress for the timeout, the
+ * transfer using it fails and the session gets its reply. Reads, finished
+ * writes and bytes of a file region being sent all count as progress, a
+ * large RETR to a slow client is one write for its whole duration.
+ *
+ * @author Вадим
+ */
+public class DataIdleHandler extends IdleStateHandler {
+
+    private static final Logger logger = LoggerFactory.getLogger(DataIdleHandler.class);
+    private long lastTransferred = -1;
+
+    /**
+     * @param idleSeconds timeout without any progress
+     */
+    public DataIdleHandler(int idleSeconds) {
+        super(true, 0, 0, idleSeconds, TimeUnit.SECONDS);
+    }
+
+    @Override
+    protected void channelIdle(ChannelHandlerContext ctx, IdleStateEvent evt) throws Exception {
+        ChannelOutboundBuffer buffer = ctx.channel().unsafe().outboundBuffer();
+        Object current = buffer == null ? null : buffer.current();
+        if (current instanceof FileRegion) {
+            long transferred = ((FileRegion) current).transfered();
+            if (transferred != lastTransferred) {
+                lastTransferred = transferred;
+                return;
+            }
+        }
+        logger.debug("Closing idle data channel {}", ctx.channel());
+        ctx.channel().close();
+    }
+}
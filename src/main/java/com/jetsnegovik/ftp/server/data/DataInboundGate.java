@@ -0,0 +1,95 @@
+package com.jetsnegovik.ftp.server.data;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.socket.ChannelInputShutdownEvent;
+import io.netty.util.ReferenceCountUtil;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Holds inbound data of a fresh data channel until the transfer has set
+ * up its pipeline. The native transport reads whatever is pending when
+ * the peer shuts down its side even with auto-read off, so a small
+ * upload may arrive, and end, before STOR has added its receiver. Data
+ * channels allow half-closure: the end of input is held as well and
+ * turned into a close once the gate is open.
+ *
+ * @author Вадим
+ */
+public class DataInboundGate extends ChannelInboundHandlerAdapter {
+
+    private final List<Object> held = new ArrayList<Object>();
+    private boolean open;
+    private boolean inputShutdown;
+
+    /**
+     * Pass held and further input on to the transfer handlers. Call on the
+     * event loop of the channel after the pipeline is complete.
+     *
+     * @param channel data channel
+     */
+    public static void open(Channel channel) {
+        ChannelHandlerContext ctx = channel.pipeline().context(DataInboundGate.class);
+        if (ctx != null) {
+            ((DataInboundGate) ctx.handler()).open(ctx);
+        }
+    }
+
+    private void open(ChannelHandlerContext ctx) {
+        if (open) {
+            return;
+        }
+        open = true;
+        if (!held.isEmpty()) {
+            for (Object msg : held) {
+                ctx.fireChannelRead(msg);
+            }
+            held.clear();
+            ctx.fireChannelReadComplete();
+        }
+        if (inputShutdown) {
+            ctx.channel().close();
+        }
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (open) {
+            ctx.fireChannelRead(msg);
+        } else {
+            held.add(msg);
+        }
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+        if (open) {
+            ctx.fireChannelReadComplete();
+        }
+    }
+
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+        if (evt instanceof ChannelInputShutdownEvent) {
+            // the peer is done sending, for FTP data that is the end of the transfer
+            if (open) {
+                ctx.channel().close();
+            } else {
+                inputShutdown = true;
+            }
+            return;
+        }
+        ctx.fireUserEventTriggered(evt);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        for (Object msg : held) {
+            ReferenceCountUtil.release(msg);
+        }
+        held.clear();
+        ctx.fireChannelInactive();
+    }
+}
@@ -0,0 +1,29 @@
+package com.jetsnegovik.ftp.server.data;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+
+/**
+ * Content of one outgoing transfer
+ *
+ * @author Вадим
+ */
+public interface DataWriter {
+
+    /**
+     * Write the content, called on the session's command executor once the
+     * data channel is open. Must not wait for the channel to become
+     * writable, the executor is shared with other sessions; content that
+     * does not fit continues from the futures of its writes.
+     *
+     * @param channel data channel
+     * @return future of the last write
+     * @throws Exception when the content cannot be produced
+     */
+    ChannelFuture write(Channel channel) throws Exception;
+
+    /**
+     * Release the content when the data channel could not be opened
+     */
+    void discard();
+}
@@ -0,0 +1,159 @@
+package com.jetsnegovik.ftp.server.data;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.Promise;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes inbound data to an upload file. Buffers of one read batch go to
+ * the file on the disk executor, which publishes the file once the data
+ * channel closes cleanly; socket reads are paused while too many bytes
+ * wait for the disk.
+ *
+ * @author Вадим
+ */
+public class FileReceiveHandler extends ChannelInboundHandlerAdapter {
+
+    public static final int HIGH_WATER_MARK = 4 * 1024 * 1024;
+    public static final int LOW_WATER_MARK = 1024 * 1024;
+    private final UploadFile file;
+    private final EventExecutor diskExecutor;
+    private final Promise<Long> promise;
+    private List<ByteBuf> batch = new ArrayList<ByteBuf>();
+    private long pendingBytes;
+    private long receivedBytes;
+    private volatile IOException failure;
+    private boolean finished;
+
+    /**
+     * @param file destination, committed or aborted by this handler
+     * @param diskExecutor executor running the writes, one per file so writes stay ordered
+     * @param promise notified with number of written bytes
+     */
+    public FileReceiveHandler(UploadFile file, EventExecutor diskExecutor, Promise<Long> promise) {
+        this.file = file;
+        this.diskExecutor = diskExecutor;
+        this.promise = promise;
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+        if (ctx.channel().isActive()) {
+            ctx.channel().config().setAutoRead(true);
+        } else {
+            finish(ctx);
+        }
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        ByteBuf buf = (ByteBuf) msg;
+        if (failure != null) {
+            buf.release();
+            return;
+        }
+        batch.add(buf);
+        pendingBytes += buf.readableBytes();
+        receivedBytes += buf.readableBytes();
+        if (pendingBytes > HIGH_WATER_MARK) {
+            ctx.channel().config().setAutoRead(false);
+        }
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+        flushBatch(ctx);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        finish(ctx);
+        ctx.fireChannelInactive();
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+        if (failure == null) {
+            failure = cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        }
+        ctx.channel().close();
+    }
+
+    private void flushBatch(final ChannelHandlerContext ctx) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        final List<ByteBuf> buffers = batch;
+        batch = new ArrayList<ByteBuf>();
+        diskExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final long written = write(buffers);
+                ctx.channel().eventLoop().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        pendingBytes -= written;
+                        if (failure != null) {
+                            ctx.channel().close();
+                        } else if (pendingBytes < LOW_WATER_MARK && !finished
+                                && !ctx.channel().config().isAutoRead()) {
+                            ctx.channel().config().setAutoRead(true);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private long write(List<ByteBuf> buffers) {
+        long total = 0;
+        try {
+            if (failure != null) {
+                return 0;
+            }
+            for (ByteBuf buf : buffers) {
+                total += buf.readableBytes();
+            }
+            file.write(buffers);
+        } catch (IOException e) {
+            failure = e;
+        } finally {
+            for (ByteBuf buf : buffers) {
+                buf.release();
+            }
+        }
+        return total;
+    }
+
+    private void finish(ChannelHandlerContext ctx) {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        flushBatch(ctx);
+        diskExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (failure != null) {
+                    file.abort();
+                } else {
+                    try {
+                        file.commit();
+                    } catch (IOException e) {
+                        failure = e;
+                    }
+                }
+                if (failure != null) {
+                    promise.tryFailure(failure);
+                } else {
+                    promise.trySuccess(receivedBytes);
+                }
+            }
+        });
+    }
+}
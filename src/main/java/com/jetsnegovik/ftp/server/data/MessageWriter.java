@@ -0,0 +1,39 @@
+package com.jetsnegovik.ftp.server.data;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.FileRegion;
+import io.netty.util.ReferenceCountUtil;
+
+/**
+ * Transfer of a ready message: ByteBuf or FileRegion
+ *
+ * @author Вадим
+ */
+public class MessageWriter implements DataWriter {
+
+    private final Object message;
+
+    public MessageWriter(Object message) {
+        this.message = message;
+    }
+
+    @Override
+    public ChannelFuture write(Channel channel) {
+        return channel.writeAndFlush(message);
+    }
+
+    /**
+     * Traffic counters see only ByteBufs, sendfile passes them uncounted
+     *
+     * @return bytes of a FileRegion message written so far, 0 for a buffer
+     */
+    public long getFileRegionBytes() {
+        return message instanceof FileRegion ? ((FileRegion) message).transfered() : 0;
+    }
+
+    @Override
+    public void discard() {
+        ReferenceCountUtil.release(message);
+    }
+}
@@ -0,0 +1,132 @@
+package com.jetsnegovik.ftp.server.data;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelPipeline;
+import io.netty.handler.codec.compression.JdkZlibDecoder;
+import io.netty.handler.codec.compression.JdkZlibEncoder;
+import io.netty.handler.codec.compression.ZlibWrapper;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * MODE Z: data channel content is a zlib stream. Deflate and inflate are
+ * pipeline stages in front of {@link DataChannelHandler}, so traffic
+ * shaping counts compressed bytes.
+ *
+ * @author Вадим
+ */
+public final class ModeZ {
+
+    /**
+     * Files smaller than this gain nothing from compression
+     */
+    public static final long MIN_SIZE = 512;
+    private static final int MAGIC_BYTES = 8;
+    private static final Set<String> COMPRESSED_EXTENSIONS = new HashSet<String>(Arrays.asList(
+            "gz", "tgz", "zip", "jar", "war", "bz2", "tbz", "xz", "txz", "lz4", "zst", "7z", "rar", "z",
+            "jpg", "jpeg", "png", "gif", "webp", "mp3", "mp4", "m4a", "mkv", "avi", "mov", "webm", "ogg", "flac",
+            "pdf", "docx", "xlsx", "pptx"));
+    private static final byte[][] COMPRESSED_MAGIC = {
+        {0x1f, (byte) 0x8b},
+        {'P', 'K', 3, 4},
+        {'B', 'Z', 'h'},
+        {(byte) 0xfd, '7', 'z', 'X', 'Z', 0},
+        {'7', 'z', (byte) 0xbc, (byte) 0xaf},
+        {0x28, (byte) 0xb5, 0x2f, (byte) 0xfd},
+        {(byte) 0x89, 'P', 'N', 'G'},
+        {(byte) 0xff, (byte) 0xd8, (byte) 0xff},
+        {'R', 'a', 'r', '!'}
+    };
+
+    private ModeZ() {
+    }
+
+    /**
+     * Deflate level of a file: stored (0) for small files and for files
+     * already compressed, judged by extension and leading bytes
+     *
+     * @param name file name
+     * @param file open file, read at position 0 without moving it
+     * @param size file size
+     * @param level configured level
+     * @return level to use
+     */
+    public static int level(String name, FileChannel file, long size, int level) {
+        ByteBuffer head = ByteBuffer.allocate(MAGIC_BYTES);
+        try {
+            file.read(head, 0);
+        } catch (IOException e) {
+            // judged by name and size only
+        }
+        head.flip();
+        return level(name, size, head, level);
+    }
+
+    /**
+     * @param name file name
+     * @param data file content
+     * @param level configured level
+     * @return level to use, see {@link #level(String, FileChannel, long, int)}
+     */
+    public static int level(String name, ByteBuf data, int level) {
+        return level(name, data.readableBytes(),
+                data.nioBuffer(data.readerIndex(), Math.min(MAGIC_BYTES, data.readableBytes())), level);
+    }
+
+    /**
+     * Compress everything written to the data channel; the zlib trailer is
+     * written when the channel is closed
+     *
+     * @param channel data channel
+     * @param level deflate level 0-9
+     */
+    public static void deflate(Channel channel, int level) {
+        ChannelPipeline p = channel.pipeline();
+        p.addBefore(p.context(DataChannelHandler.INSTANCE).name(), "deflater",
+                new JdkZlibEncoder(ZlibWrapper.ZLIB, level));
+    }
+
+    /**
+     * Decompress everything read from the data channel
+     *
+     * @param channel data channel
+     */
+    public static void inflate(Channel channel) {
+        ChannelPipeline p = channel.pipeline();
+        p.addBefore(p.context(DataChannelHandler.INSTANCE).name(), "inflater", new JdkZlibDecoder(ZlibWrapper.ZLIB));
+    }
+
+    private static int level(String name, long size, ByteBuffer head, int level) {
+        if (level == 0 || size < MIN_SIZE) {
+            return 0;
+        }
+        int dot = name.lastIndexOf('.');
+        if (dot >= 0 && COMPRESSED_EXTENSIONS.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT))) {
+            return 0;
+        }
+        for (byte[] magic : COMPRESSED_MAGIC) {
+            if (startsWith(head, magic)) {
+                return 0;
+            }
+        }
+        return level;
+    }
+
+    private static boolean startsWith(ByteBuffer head, byte[] magic) {
+        if (head.remaining() < magic.length) {
+            return false;
+        }
+        for (int i = 0; i < magic.length; i++) {
+            if (head.get(head.position() + i) != magic[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,166 @@
+package com.jetsnegovik.ftp.server.data;
+
+import com.jetsnegovik.ftp.server.ServerContext;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelConfig;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoop;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Passive mode (PASV/EPSV): client dials a port taken from the pool. The
+ * port's listener stays bound, it hands this connection exactly one
+ * accepted channel and the port goes back to the pool right after.
+ *
+ * @author Вадим
+ */
+public class PassiveDataConnection implements DataConnection {
+
+    private static final int BIND_ATTEMPTS = 8;
+    private static final long ACCEPT_TIMEOUT_SECONDS = 60;
+    private final ServerContext context;
+    private final InetAddress clientAddress;
+    private final EventLoop loop;
+    private final Promise<Channel> accepted;
+    private volatile int port;
+
+    private PassiveDataConnection(ServerContext context, InetAddress clientAddress, EventLoop loop) {
+        this.context = context;
+        this.clientAddress = clientAddress;
+        this.loop = loop;
+        this.accepted = loop.newPromise();
+    }
+
+    /**
+     * Wait on a free pooled port, bound if it is not yet
+     *
+     * @param context server context
+     * @param localAddress address of the control connection
+     * @param clientAddress only this host may connect
+     * @param loop event loop of the control channel
+     * @return future notified when the port is ready
+     */
+    public static Future<PassiveDataConnection> bind(ServerContext context, InetAddress localAddress,
+            InetAddress clientAddress, EventLoop loop) {
+        PassiveDataConnection connection = new PassiveDataConnection(context, clientAddress, loop);
+        Promise<PassiveDataConnection> promise = loop.newPromise();
+        connection.bind(localAddress, promise, BIND_ATTEMPTS);
+        return promise;
+    }
+
+    private void bind(final InetAddress localAddress, final Promise<PassiveDataConnection> promise, final int attempts) {
+        final PassiveListeners listeners = context.getPassiveListeners();
+        final int candidate = listeners.acquire();
+        if (candidate < 0) {
+            promise.setFailure(new IllegalStateException("No free passive ports"));
+            return;
+        }
+        listeners.listen(localAddress, candidate).addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+                if (!future.isSuccess()) {
+                    listeners.release(candidate, null);
+                    if (attempts > 1) {
+                        bind(localAddress, promise, attempts - 1);
+                    } else {
+                        promise.setFailure(future.cause());
+                    }
+                    return;
+                }
+                port = candidate;
+                listeners.await(candidate, PassiveDataConnection.this);
+                if (accepted.isDone()) {
+                    // closed while the port was being bound
+                    listeners.release(candidate, PassiveDataConnection.this);
+                }
+                loop.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        accepted.tryFailure(new IllegalStateException("Passive connection timed out"));
+                        listeners.release(candidate, PassiveDataConnection.this);
+                    }
+                }, ACCEPT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                promise.setSuccess(PassiveDataConnection.this);
+            }
+        });
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    @Override
+    public Future<Channel> open(EventLoop loop) {
+        return accepted;
+    }
+
+    @Override
+    public void close() {
+        if (!accepted.isDone()) {
+            accepted.tryFailure(new IllegalStateException("Passive connection closed"));
+        } else if (accepted.isSuccess()) {
+            accepted.getNow().close();
+        }
+        if (port > 0) {
+            context.getPassiveListeners().release(port, this);
+        }
+    }
+
+    /**
+     * Take a channel accepted on the port, called by its listener
+     *
+     * @param child accepted channel, not registered yet
+     * @param remote address of the peer
+     * @return false if the channel is not for this connection and has to be closed
+     */
+    boolean accept(Channel child, InetAddress remote) {
+        if (!remote.equals(clientAddress) || accepted.isDone()) {
+            return false;
+        }
+        context.getPassiveListeners().release(port, this);
+        ChannelConfig config = child.config();
+        context.getTransport().configure(config);
+        config.setAutoRead(false);
+        config.setOption(ChannelOption.ALLOW_HALF_CLOSURE, true);
+        config.setWriteBufferHighWaterMark(ActiveDataConnection.WRITE_BUFFER_HIGH_WATER_MARK);
+        config.setWriteBufferLowWaterMark(ActiveDataConnection.WRITE_BUFFER_LOW_WATER_MARK);
+        child.pipeline().addLast(new AcceptHandler());
+        // the data channel shares the event loop of the control channel: the transfer sets up its
+        // pipeline from listeners running on that loop, with no race against the data channel
+        loop.register(child).addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+                if (!future.isSuccess()) {
+                    future.channel().unsafe().closeForcibly();
+                    accepted.tryFailure(future.cause());
+                }
+            }
+        });
+        return true;
+    }
+
+    private final class AcceptHandler extends ChannelInboundHandlerAdapter {
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) throws Exception {
+            Channel channel = ctx.channel();
+            if (accepted.isDone()) {
+                channel.close();
+                return;
+            }
+            // the pipeline has to be complete before listeners of the promise see the channel
+            ctx.pipeline().addBefore(ctx.name(), "gate", new DataInboundGate());
+            ctx.pipeline().replace(this, "data", DataChannelHandler.INSTANCE);
+            if (!accepted.trySuccess(channel)) {
+                channel.close();
+            }
+        }
+    }
+}
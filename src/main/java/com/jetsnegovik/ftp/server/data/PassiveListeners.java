@@ -0,0 +1,183 @@
+package com.jetsnegovik.ftp.server.data;
+
+import com.jetsnegovik.ftp.server.Transport;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelConfig;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Listeners of the passive port range. A port is bound the first time it
+ * is handed out and stays bound, so PASV/EPSV costs no bind and close;
+ * a connection accepted on a port goes to the session waiting on it, if
+ * it comes from that session's client.
+ *
+ * @author Вадим
+ */
+public class PassiveListeners {
+
+    private static final Logger logger = LoggerFactory.getLogger(PassiveListeners.class);
+    private final Transport transport;
+    private final EventLoopGroup group;
+    private final PassivePortPool ports;
+    private final ConcurrentMap<InetSocketAddress, ChannelFuture> listeners
+            = new ConcurrentHashMap<InetSocketAddress, ChannelFuture>();
+    private final ConcurrentMap<Integer, PassiveDataConnection> waiting
+            = new ConcurrentHashMap<Integer, PassiveDataConnection>();
+
+    /**
+     * @param transport channel implementation
+     * @param group event loops accepting the connections
+     * @param ports passive port range
+     */
+    public PassiveListeners(Transport transport, EventLoopGroup group, PassivePortPool ports) {
+        this.transport = transport;
+        this.group = group;
+        this.ports = ports;
+    }
+
+    /**
+     * @return free port, -1 if all ports are in use
+     */
+    public int acquire() {
+        return ports.acquire();
+    }
+
+    /**
+     * Listener of a port, bound on first use
+     *
+     * @param localAddress address of the control connection
+     * @param port taken with {@link #acquire()}
+     * @return future notified when the port is bound
+     */
+    public ChannelFuture listen(InetAddress localAddress, int port) {
+        final InetSocketAddress address = new InetSocketAddress(localAddress, port);
+        ChannelFuture listener = listeners.get(address);
+        if (listener != null) {
+            return listener;
+        }
+        final ServerChannel channel = transport.newServerChannel();
+        channel.config().setOption(ChannelOption.SO_REUSEADDR, true);
+        channel.config().setOption(ChannelOption.SO_BACKLOG, 1);
+        channel.pipeline().addLast(new Acceptor(port, channel));
+        // the port is held by the caller, nobody else binds it meanwhile
+        final ChannelPromise bound = channel.newPromise();
+        listeners.put(address, bound);
+        bound.addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+                if (!future.isSuccess()) {
+                    // tried again when the port is handed out next time
+                    listeners.remove(address, bound);
+                    if (channel.isRegistered()) {
+                        channel.close();
+                    }
+                    return;
+                }
+                channel.closeFuture().addListener(new ChannelFutureListener() {
+                    @Override
+                    public void operationComplete(ChannelFuture future) throws Exception {
+                        listeners.remove(address, bound);
+                    }
+                });
+            }
+        });
+        group.register(channel).addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+                if (future.isSuccess()) {
+                    channel.bind(address, bound);
+                } else {
+                    channel.unsafe().closeForcibly();
+                    bound.setFailure(future.cause());
+                }
+            }
+        });
+        return bound;
+    }
+
+    /**
+     * Hand the next connection to a port to a session
+     *
+     * @param port bound port
+     * @param connection session waiting on it
+     */
+    void await(int port, PassiveDataConnection connection) {
+        waiting.put(port, connection);
+    }
+
+    /**
+     * Stop waiting on a port and give it back, at most once per connection
+     *
+     * @param port port taken with {@link #acquire()}
+     * @param connection session that waited on it, null if it never did
+     */
+    void release(int port, PassiveDataConnection connection) {
+        if (connection == null || waiting.remove(port, connection)) {
+            ports.release(port);
+        }
+    }
+
+    /**
+     * Close all listeners
+     */
+    public void close() {
+        for (ChannelFuture listener : listeners.values()) {
+            listener.channel().close();
+        }
+    }
+
+    /**
+     * Passes accepted connections of one port to the waiting session
+     */
+    private final class Acceptor extends ChannelInboundHandlerAdapter {
+
+        private final int port;
+        private final Runnable enableAutoRead;
+
+        Acceptor(int port, final Channel listener) {
+            this.port = port;
+            // created up front, loading a class may fail once file descriptors run out
+            this.enableAutoRead = new Runnable() {
+                @Override
+                public void run() {
+                    listener.config().setAutoRead(true);
+                }
+            };
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            Channel child = (Channel) msg;
+            PassiveDataConnection connection = waiting.get(port);
+            InetAddress remote = ((InetSocketAddress) child.remoteAddress()).getAddress();
+            if (connection == null || !connection.accept(child, remote)) {
+                child.unsafe().closeForcibly();
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+            // accept failed, most likely out of file descriptors: pause like the bootstrap does
+            ChannelConfig config = ctx.channel().config();
+            if (config.isAutoRead()) {
+                config.setAutoRead(false);
+                ctx.channel().eventLoop().schedule(enableAutoRead, 1, TimeUnit.SECONDS);
+            }
+            logger.warn("Passive port {} failed to accept", port, cause);
+        }
+    }
+}
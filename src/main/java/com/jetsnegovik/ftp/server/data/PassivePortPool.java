@@ -0,0 +1,55 @@
+package com.jetsnegovik.ftp.server.data;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Lock-free pool of passive mode ports
+ *
+ * @author Вадим
+ */
+public class PassivePortPool {
+
+    private static final int FREE = 0;
+    private static final int USED = 1;
+    private final int from;
+    private final AtomicIntegerArray ports;
+    private final AtomicInteger cursor = new AtomicInteger();
+
+    public PassivePortPool(int from, int to) {
+        if (from <= 0 || to > 65535 || from > to) {
+            throw new IllegalArgumentException("Invalid passive port range: " + from + "-" + to);
+        }
+        this.from = from;
+        this.ports = new AtomicIntegerArray(to - from + 1);
+    }
+
+    /**
+     * Take free port, scanning from a rotating cursor so that concurrent
+     * callers start at different slots and recently released ports rest a bit
+     *
+     * @return port or -1 if all ports are in use
+     */
+    public int acquire() {
+        int size = ports.length();
+        int start = (cursor.getAndIncrement() & Integer.MAX_VALUE) % size;
+        for (int i = 0; i < size; i++) {
+            int index = start + i;
+            if (index >= size) {
+                index -= size;
+            }
+            if (ports.get(index) == FREE && ports.compareAndSet(index, FREE, USED)) {
+                return from + index;
+            }
+        }
+        return -1;
+    }
+
+    public void release(int port) {
+        ports.set(port - from, FREE);
+    }
+
+    public int size() {
+        return ports.length();
+    }
+}
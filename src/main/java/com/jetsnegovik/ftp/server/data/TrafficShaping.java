@@ -0,0 +1,210 @@
+package com.jetsnegovik.ftp.server.data;
+
+import com.jetsnegovik.ftp.server.ServerConfig;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelPipeline;
+import io.netty.handler.traffic.ChannelTrafficShapingHandler;
+import io.netty.handler.traffic.GlobalTrafficShapingHandler;
+import io.netty.handler.traffic.TrafficCounter;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Global, per-user and per-session rate limits of data channels. Every
+ * data channel gets the global handler, the handler shared by all
+ * channels of its user and one handler of its own. A user's handler lives
+ * while the user has open data channels.
+ *
+ * @author Вадим
+ */
+public class TrafficShaping implements TrafficShapingMBean {
+
+    private static final long CHECK_INTERVAL = 1000;
+    private final ScheduledExecutorService executor;
+    private final GlobalTrafficShapingHandler global;
+    // guarded by itself
+    private final Map<String, UserShaper> users = new HashMap<String, UserShaper>();
+    private final Set<ChannelTrafficShapingHandler> sessions
+            = Collections.newSetFromMap(new ConcurrentHashMap<ChannelTrafficShapingHandler, Boolean>());
+    private volatile long globalWriteLimit;
+    private volatile long globalReadLimit;
+    private volatile long userWriteLimit;
+    private volatile long userReadLimit;
+    private volatile long sessionWriteLimit;
+    private volatile long sessionReadLimit;
+
+    /**
+     * @param config initial limits
+     * @param executor runs the traffic counters
+     */
+    public TrafficShaping(ServerConfig config, ScheduledExecutorService executor) {
+        this.executor = executor;
+        this.globalWriteLimit = config.getGlobalWriteLimit();
+        this.globalReadLimit = config.getGlobalReadLimit();
+        this.userWriteLimit = config.getUserWriteLimit();
+        this.userReadLimit = config.getUserReadLimit();
+        this.sessionWriteLimit = config.getSessionWriteLimit();
+        this.sessionReadLimit = config.getSessionReadLimit();
+        this.global = new GlobalTrafficShapingHandler(executor, globalWriteLimit, globalReadLimit, CHECK_INTERVAL);
+    }
+
+    /**
+     * Add the shaping handlers in front of the data channel pipeline
+     *
+     * @param channel data channel
+     * @param username owner of the session
+     */
+    public void attach(Channel channel, final String username) {
+        final ChannelTrafficShapingHandler session
+                = new ChannelTrafficShapingHandler(sessionWriteLimit, sessionReadLimit, CHECK_INTERVAL);
+        sessions.add(session);
+        GlobalTrafficShapingHandler user = acquire(username);
+        channel.closeFuture().addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+                sessions.remove(session);
+                if (session.trafficCounter() != null) {
+                    session.trafficCounter().stop();
+                }
+                release(username);
+            }
+        });
+        ChannelPipeline p = channel.pipeline();
+        p.addFirst("sessionShaper", session);
+        p.addFirst("userShaper", user);
+        p.addFirst("globalShaper", global);
+    }
+
+    /**
+     * Netty counts only ByteBuf messages, file regions pass the shapers
+     * unthrottled
+     *
+     * @return true when outgoing transfers have to be written in buffers
+     */
+    public boolean isWriteLimited() {
+        return globalWriteLimit > 0 || userWriteLimit > 0 || sessionWriteLimit > 0;
+    }
+
+    @Override
+    public long getGlobalWriteLimit() {
+        return globalWriteLimit;
+    }
+
+    @Override
+    public long getGlobalReadLimit() {
+        return globalReadLimit;
+    }
+
+    @Override
+    public void setGlobalLimits(long writeLimit, long readLimit) {
+        globalWriteLimit = writeLimit;
+        globalReadLimit = readLimit;
+        global.configure(writeLimit, readLimit);
+    }
+
+    @Override
+    public long getUserWriteLimit() {
+        return userWriteLimit;
+    }
+
+    @Override
+    public long getUserReadLimit() {
+        return userReadLimit;
+    }
+
+    @Override
+    public void setUserLimits(long writeLimit, long readLimit) {
+        synchronized (users) {
+            userWriteLimit = writeLimit;
+            userReadLimit = readLimit;
+            for (UserShaper user : users.values()) {
+                user.handler.configure(writeLimit, readLimit);
+            }
+        }
+    }
+
+    @Override
+    public long getSessionWriteLimit() {
+        return sessionWriteLimit;
+    }
+
+    @Override
+    public long getSessionReadLimit() {
+        return sessionReadLimit;
+    }
+
+    @Override
+    public void setSessionLimits(long writeLimit, long readLimit) {
+        sessionWriteLimit = writeLimit;
+        sessionReadLimit = readLimit;
+        for (ChannelTrafficShapingHandler handler : sessions) {
+            handler.configure(writeLimit, readLimit);
+        }
+    }
+
+    /**
+     * @return counter of all data channels
+     */
+    public TrafficCounter getDataTraffic() {
+        return global.trafficCounter();
+    }
+
+    public void release() {
+        global.release();
+        synchronized (users) {
+            for (UserShaper user : users.values()) {
+                user.handler.release();
+            }
+            users.clear();
+        }
+    }
+
+    @Override
+    public int getUserCount() {
+        synchronized (users) {
+            return users.size();
+        }
+    }
+
+    private GlobalTrafficShapingHandler acquire(String username) {
+        synchronized (users) {
+            UserShaper user = users.get(username);
+            if (user == null) {
+                user = new UserShaper(
+                        new GlobalTrafficShapingHandler(executor, userWriteLimit, userReadLimit, CHECK_INTERVAL));
+                users.put(username, user);
+            }
+            user.channels++;
+            return user.handler;
+        }
+    }
+
+    private void release(String username) {
+        synchronized (users) {
+            UserShaper user = users.get(username);
+            if (user != null && --user.channels == 0) {
+                users.remove(username);
+                user.handler.release();
+            }
+        }
+    }
+
+    /**
+     * Handler of one user and the number of data channels using it
+     */
+    private static final class UserShaper {
+
+        final GlobalTrafficShapingHandler handler;
+        int channels;
+
+        UserShaper(GlobalTrafficShapingHandler handler) {
+            this.handler = handler;
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package com.jetsnegovik.ftp.server.data;
+
+/**
+ * Rate limits of data transfers in bytes per second, 0 means unlimited.
+ * Changes apply to running transfers.
+ *
+ * @author Вадим
+ */
+public interface TrafficShapingMBean {
+
+    long getGlobalWriteLimit();
+
+    long getGlobalReadLimit();
+
+    void setGlobalLimits(long writeLimit, long readLimit);
+
+    long getUserWriteLimit();
+
+    long getUserReadLimit();
+
+    void setUserLimits(long writeLimit, long readLimit);
+
+    long getSessionWriteLimit();
+
+    long getSessionReadLimit();
+
+    void setSessionLimits(long writeLimit, long readLimit);
+
+    int getUserCount();
+}
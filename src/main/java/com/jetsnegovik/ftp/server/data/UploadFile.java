@@ -0,0 +1,283 @@
+package com.jetsnegovik.ftp.server.data;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Destination of an upload. A new file is written under a hidden
+ * temporary name next to the target and linked into place once complete,
+ * so nobody sees it half-written and a file created meanwhile under the
+ * same name is never replaced; REST+STOR and APPE continue the existing
+ * file in place. Received buffers are gathered into chunks written at
+ * chunk-aligned file offsets, and the file is synced by policy: never, on
+ * close, or every N bytes and on close. Used by one disk executor thread.
+ *
+ * @author Вадим
+ */
+public class UploadFile {
+
+    /**
+     * Sync policy: never call fsync
+     */
+    public static final long SYNC_NEVER = -1;
+    /**
+     * Sync policy: fsync once when the upload completes
+     */
+    public static final long SYNC_ON_CLOSE = 0;
+    private final Path target;
+    private final Path temp;
+    private final FileChannel channel;
+    private final int chunkSize;
+    private final long syncBytes;
+    private final ByteBuf chunk;
+    private long position;
+    private int limit;
+    private long unsynced;
+    private long allocated;
+
+    private UploadFile(Path target, Path temp, FileChannel channel, long position, int chunkSize, long syncBytes,
+            ByteBufAllocator alloc) {
+        this.target = target;
+        this.temp = temp;
+        this.channel = channel;
+        this.position = position;
+        this.chunkSize = chunkSize;
+        this.syncBytes = syncBytes;
+        this.chunk = alloc.directBuffer(chunkSize, chunkSize);
+        this.limit = chunkSize - (int) (position % chunkSize);
+    }
+
+    /**
+     * New file written under a temporary name
+     *
+     * @param target final path
+     * @param allocate size announced with ALLO, 0 if unknown
+     * @param chunkSize bytes per disk write
+     * @param syncBytes {@link #SYNC_NEVER}, {@link #SYNC_ON_CLOSE} or bytes between syncs
+     * @param alloc allocator of the chunk buffer
+     * @return open upload
+     * @throws IOException if the temporary file cannot be created
+     */
+    public static UploadFile create(Path target, long allocate, int chunkSize, long syncBytes, ByteBufAllocator alloc)
+            throws IOException {
+        Path temp = null;
+        FileChannel channel = null;
+        for (int attempt = 0; channel == null; attempt++) {
+            // a name of fixed length, the target name may already be as long as the file system allows
+            temp = target.resolveSibling(String.format(".upload-%016x", ThreadLocalRandom.current().nextLong()));
+            try {
+                channel = FileChannel.open(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            } catch (FileAlreadyExistsException e) {
+                if (attempt == 2) {
+                    throw e;
+                }
+            }
+        }
+        UploadFile upload;
+        try {
+            upload = new UploadFile(target, temp, channel, 0, chunkSize, syncBytes, alloc);
+        } catch (RuntimeException e) {
+            channel.close();
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        if (allocate > 0) {
+            try {
+                upload.allocate(allocate);
+            } catch (IOException e) {
+                upload.abort();
+                throw e;
+            }
+        }
+        return upload;
+    }
+
+    /**
+     * Existing file continued in place from an offset (REST+STOR), or from
+     * its end (APPE, created if missing)
+     *
+     * @param target file
+     * @param offset restart offset, -1 to append
+     * @param chunkSize bytes per disk write
+     * @param syncBytes {@link #SYNC_NEVER}, {@link #SYNC_ON_CLOSE} or bytes between syncs
+     * @param alloc allocator of the chunk buffer
+     * @return open upload
+     * @throws IOException if the file cannot be opened
+     * @throws IllegalArgumentException if the offset is beyond the end of the file
+     */
+    public static UploadFile resume(Path target, long offset, int chunkSize, long syncBytes, ByteBufAllocator alloc)
+            throws IOException {
+        FileChannel channel = offset < 0
+                ? FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE)
+                : FileChannel.open(target, StandardOpenOption.WRITE);
+        try {
+            long size = channel.size();
+            if (offset > size) {
+                throw new IllegalArgumentException("Restart offset " + offset + " is beyond end of file.");
+            }
+            if (offset >= 0) {
+                // everything after the restart point is sent again
+                channel.truncate(offset);
+            }
+            return new UploadFile(target, null, channel, offset < 0 ? size : offset, chunkSize, syncBytes, alloc);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        } catch (RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Add received data, full chunks go to disk
+     *
+     * @param buffers received data, not released
+     * @throws IOException if a write fails
+     */
+    public void write(List<ByteBuf> buffers) throws IOException {
+        for (ByteBuf buf : buffers) {
+            int index = buf.readerIndex();
+            int end = buf.writerIndex();
+            while (index < end) {
+                int length = Math.min(end - index, limit - chunk.readableBytes());
+                chunk.writeBytes(buf, index, length);
+                index += length;
+                if (chunk.readableBytes() == limit) {
+                    writeChunk();
+                }
+            }
+        }
+    }
+
+    /**
+     * Write what is left, sync by policy and publish the file under its
+     * final name
+     *
+     * @return size of the file
+     * @throws FileAlreadyExistsException if the target was created during the upload
+     * @throws IOException if a write, the sync or the publishing fails, the upload is aborted then
+     */
+    public long commit() throws IOException {
+        try {
+            if (chunk.isReadable()) {
+                writeChunk();
+            }
+            if (allocated > position) {
+                channel.truncate(position);
+            }
+            if (syncBytes != SYNC_NEVER) {
+                channel.force(true);
+            }
+            channel.close();
+            if (temp != null) {
+                publish();
+            }
+            return position;
+        } catch (IOException e) {
+            abort();
+            throw e;
+        } finally {
+            if (chunk.refCnt() > 0) {
+                chunk.release();
+            }
+        }
+    }
+
+    /**
+     * Close without publishing, a temporary file is removed
+     */
+    public void abort() {
+        if (chunk.refCnt() > 0) {
+            chunk.release();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+        }
+        if (temp != null) {
+            try {
+                Files.deleteIfExists(temp);
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    /**
+     * Give the finished temporary file its name, failing if the name was
+     * taken: a hard link is created only when the name is free, a rename
+     * would replace the other file
+     */
+    private void publish() throws IOException {
+        try {
+            Files.createLink(target, temp);
+        } catch (FileAlreadyExistsException e) {
+            throw e;
+        } catch (UnsupportedOperationException e) {
+            moveIfAbsent();
+            return;
+        } catch (FileSystemException e) {
+            // file systems without hard links
+            moveIfAbsent();
+            return;
+        }
+        try {
+            Files.delete(temp);
+        } catch (IOException e) {
+            // the file is published, only its temporary name is left over
+        }
+    }
+
+    private void moveIfAbsent() throws IOException {
+        // uploads of this server publish one at a time here, the check and the rename cannot interleave
+        synchronized (UploadFile.class) {
+            if (Files.exists(target, LinkOption.NOFOLLOW_LINKS)) {
+                throw new FileAlreadyExistsException(target.toString());
+            }
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    /**
+     * Reserve the blocks of the announced size. The JDK has no fallocate,
+     * so zeros are written like glibc does where the file system lacks it;
+     * a hole would reserve nothing. The surplus is cut on commit.
+     */
+    private void allocate(long size) throws IOException {
+        chunk.setZero(0, chunkSize);
+        long offset = 0;
+        while (offset < size) {
+            ByteBuffer zeros = chunk.nioBuffer(0, (int) Math.min(chunkSize, size - offset));
+            while (zeros.hasRemaining()) {
+                offset += channel.write(zeros, offset);
+            }
+        }
+        allocated = size;
+    }
+
+    private void writeChunk() throws IOException {
+        ByteBuffer buffer = chunk.nioBuffer();
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+        unsynced += chunk.readableBytes();
+        chunk.clear();
+        limit = chunkSize;
+        if (syncBytes > 0 && unsynced >= syncBytes) {
+            channel.force(false);
+            unsynced = 0;
+        }
+    }
+}
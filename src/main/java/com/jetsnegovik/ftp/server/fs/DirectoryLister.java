@@ -0,0 +1,231 @@
+package com.jetsnegovik.ftp.server.fs;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelPromise;
+import io.netty.util.concurrent.EventExecutor;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+
+/**
+ * Streams a directory listing to a channel in pooled chunks, so memory
+ * stays constant whatever the size of the directory. A few chunks are
+ * encoded per step on the executor given to {@link #write}; while the
+ * channel is not writable the next step waits for the last write to
+ * complete instead of a thread, so a client that does not read never
+ * holds up other sessions of the executor.
+ *
+ * @author Вадим
+ */
+public class DirectoryLister {
+
+    public static final int CHUNK_SIZE = 64 * 1024;
+    private static final int FLUSH_CHUNKS = 4;
+    private final ListFormat format;
+    private final int copyLimit;
+    private final StringBuilder scratch = new StringBuilder(32);
+    private ByteArrayOutputStream copy;
+    private final Runnable step = new Runnable() {
+        @Override
+        public void run() {
+            writeChunks();
+        }
+    };
+    private final ChannelFutureListener resume = new ChannelFutureListener() {
+        @Override
+        public void operationComplete(ChannelFuture future) throws Exception {
+            executor.execute(step);
+        }
+    };
+    // the fields below are used by one step at a time
+    private Channel channel;
+    private EventExecutor executor;
+    private DirectoryStream<Path> stream;
+    private Iterator<Path> iterator;
+    private long now;
+    private ChannelFuture last;
+    private ChannelPromise done;
+
+    /**
+     * @param format listing format
+     * @param copyLimit keep a copy of the listing up to this many bytes, 0 for none
+     */
+    public DirectoryLister(ListFormat format, int copyLimit) {
+        this.format = format;
+        this.copyLimit = copyLimit;
+        if (copyLimit > 0) {
+            copy = new ByteArrayOutputStream(Math.min(copyLimit, CHUNK_SIZE));
+        }
+    }
+
+    /**
+     * Write listing of a directory, or the entry itself for a file. The
+     * first chunks are written right away, the rest in later steps.
+     *
+     * @param path directory or file
+     * @param channel destination
+     * @param executor runs the steps reading the directory, never waits on the channel
+     * @return future notified once the last write completed
+     * @throws IOException when the directory cannot be opened
+     */
+    public ChannelFuture write(Path path, Channel channel, EventExecutor executor) throws IOException {
+        this.channel = channel;
+        this.executor = executor;
+        this.now = System.currentTimeMillis();
+        if (!Files.isDirectory(path)) {
+            ByteBuf chunk = channel.alloc().buffer(512);
+            try {
+                encode(path, now, chunk);
+            } catch (RuntimeException e) {
+                chunk.release();
+                throw e;
+            }
+            keepCopy(chunk);
+            return channel.writeAndFlush(chunk.isReadable() ? chunk : releaseEmpty(chunk));
+        }
+        stream = Files.newDirectoryStream(path);
+        iterator = stream.iterator();
+        done = channel.newPromise();
+        writeChunks();
+        return done;
+    }
+
+    /**
+     * @return complete listing if it fit into the copy limit, otherwise
+     * null; valid once the future of {@link #write} is done
+     */
+    public byte[] getCopy() {
+        return copy == null ? null : copy.toByteArray();
+    }
+
+    /**
+     * Encode and write up to {@link #FLUSH_CHUNKS} chunks, then continue
+     * in another step: right away if the channel takes more, once the last
+     * write completed otherwise
+     */
+    private void writeChunks() {
+        ByteBufAllocator alloc = channel.alloc();
+        ByteBuf chunk = null;
+        try {
+            for (int chunks = 0; chunks < FLUSH_CHUNKS; chunks++) {
+                if (!channel.isActive()) {
+                    closeStream();
+                    done.tryFailure(new ClosedChannelException());
+                    return;
+                }
+                chunk = alloc.buffer(CHUNK_SIZE);
+                while (chunk.readableBytes() < CHUNK_SIZE - 512 && iterator.hasNext()) {
+                    encode(iterator.next(), now, chunk);
+                }
+                if (!iterator.hasNext()) {
+                    closeStream();
+                    finish(chunk);
+                    return;
+                }
+                keepCopy(chunk);
+                last = channel.write(chunk);
+                chunk = null;
+                if (!channel.isWritable()) {
+                    break;
+                }
+            }
+        } catch (DirectoryIteratorException e) {
+            fail(chunk, e);
+            return;
+        } catch (RuntimeException e) {
+            fail(chunk, e);
+            return;
+        }
+        channel.flush();
+        if (channel.isWritable()) {
+            // take turns with the other sessions of the executor
+            executor.execute(step);
+        } else {
+            last.addListener(resume);
+        }
+    }
+
+    private void finish(ByteBuf chunk) {
+        if (chunk.isReadable() || last == null) {
+            keepCopy(chunk);
+            last = channel.writeAndFlush(chunk.isReadable() ? chunk : releaseEmpty(chunk));
+        } else {
+            chunk.release();
+            channel.flush();
+        }
+        last.addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+                if (future.isSuccess()) {
+                    done.trySuccess();
+                } else {
+                    done.tryFailure(future.cause());
+                }
+            }
+        });
+    }
+
+    private void fail(ByteBuf chunk, Throwable cause) {
+        if (chunk != null) {
+            chunk.release();
+        }
+        closeStream();
+        channel.flush();
+        copy = null;
+        done.tryFailure(cause);
+    }
+
+    private void closeStream() {
+        try {
+            stream.close();
+        } catch (IOException e) {
+        }
+    }
+
+    private void encode(Path entry, long now, ByteBuf chunk) {
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(entry, BasicFileAttributes.class);
+        } catch (IOException e) {
+            // dangling link or entry removed while listing
+            try {
+                attrs = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            } catch (IOException ex) {
+                return;
+            }
+        }
+        format.encode(entry.getFileName().toString(), attrs, now, scratch, chunk);
+    }
+
+    private void keepCopy(ByteBuf chunk) {
+        if (copy == null) {
+            return;
+        }
+        if (copy.size() + chunk.readableBytes() > copyLimit) {
+            copy = null;
+            return;
+        }
+        try {
+            chunk.getBytes(chunk.readerIndex(), copy, chunk.readableBytes());
+        } catch (IOException e) {
+            copy = null;
+        }
+    }
+
+    private static ByteBuf releaseEmpty(ByteBuf chunk) {
+        chunk.release();
+        return Unpooled.EMPTY_BUFFER;
+    }
+}
@@ -0,0 +1,199 @@
+package com.jetsnegovik.ftp.server.fs;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Contents of small, frequently downloaded files in direct buffers. An
+ * entry is valid while the file keeps its mtime and size and is evicted
+ * least recently used first once the total size exceeds the limit.
+ * Readers get a retained duplicate, so an evicted buffer is freed only
+ * after the last transfer using it has released it.
+ *
+ * @author Вадим
+ */
+public class FileCache implements FileCacheMXBean {
+
+    private final long maxBytes;
+    private final long maxFileBytes;
+    private final ByteBufAllocator allocator;
+    private final List<Path> excluded;
+    private final LinkedHashMap<Path, Entry> entries = new LinkedHashMap<Path, Entry>(64, 0.75f, true);
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private long bytes;
+
+    /**
+     * @param maxBytes total size of cached files
+     * @param maxFileBytes larger files are not cached
+     * @param allocator allocator of the direct buffers
+     * @param excluded normalized absolute directories whose files are never cached
+     */
+    public FileCache(long maxBytes, long maxFileBytes, ByteBufAllocator allocator, List<Path> excluded) {
+        this.maxBytes = maxBytes;
+        this.maxFileBytes = Math.min(maxFileBytes, maxBytes);
+        this.allocator = allocator;
+        this.excluded = excluded;
+    }
+
+    /**
+     * @param file normalized absolute file
+     * @param size current size of the file
+     * @return true if the file may be served from the cache
+     */
+    public boolean isCacheable(Path file, long size) {
+        if (size > maxFileBytes) {
+            return false;
+        }
+        for (Path dir : excluded) {
+            if (file.startsWith(dir)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Cached contents, loaded from disk on a miss. Call only for files
+     * accepted by {@link #isCacheable}.
+     *
+     * @param file normalized absolute file
+     * @param modified current mtime of the file
+     * @param size current size of the file
+     * @return retained buffer owned by the caller
+     * @throws IOException if the file cannot be read
+     */
+    public ByteBuf get(Path file, long modified, long size) throws IOException {
+        synchronized (this) {
+            Entry entry = entries.get(file);
+            if (entry != null) {
+                if (entry.modified == modified && entry.size == size) {
+                    hits.increment();
+                    return entry.data.duplicate().retain();
+                }
+                remove(file);
+            }
+        }
+        misses.increment();
+        ByteBuf data = load(file, size);
+        if (file.toFile().lastModified() != modified || data.readableBytes() != size) {
+            // changed while reading: serve what was read, do not keep it
+            return data;
+        }
+        synchronized (this) {
+            Entry previous = entries.put(file, new Entry(data, modified, size));
+            if (previous != null) {
+                bytes -= previous.size;
+                previous.data.release();
+            }
+            bytes += size;
+            Iterator<Entry> it = entries.values().iterator();
+            while (bytes > maxBytes && it.hasNext()) {
+                Entry eldest = it.next();
+                if (eldest.data == data) {
+                    break;
+                }
+                it.remove();
+                bytes -= eldest.size;
+                eldest.data.release();
+                evictions.increment();
+            }
+            return data.duplicate().retain();
+        }
+    }
+
+    /**
+     * @param file normalized absolute file
+     */
+    public synchronized void invalidate(Path file) {
+        remove(file);
+    }
+
+    @Override
+    public long getHits() {
+        return hits.sum();
+    }
+
+    @Override
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    @Override
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    @Override
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    @Override
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    @Override
+    public synchronized int getEntries() {
+        return entries.size();
+    }
+
+    @Override
+    public synchronized void clear() {
+        for (Entry entry : entries.values()) {
+            entry.data.release();
+        }
+        entries.clear();
+        bytes = 0;
+    }
+
+    private void remove(Path file) {
+        Entry entry = entries.remove(file);
+        if (entry != null) {
+            bytes -= entry.size;
+            entry.data.release();
+        }
+    }
+
+    private ByteBuf load(Path file, long size) throws IOException {
+        ByteBuf data = allocator.directBuffer((int) size, (int) size);
+        RandomAccessFile raf = new RandomAccessFile(file.toFile(), "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            while (data.isWritable()) {
+                if (data.writeBytes(channel, data.writableBytes()) < 0) {
+                    break;
+                }
+            }
+            return data;
+        } catch (IOException e) {
+            data.release();
+            throw e;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static final class Entry {
+
+        private final ByteBuf data;
+        private final long modified;
+        private final long size;
+
+        private Entry(ByteBuf data, long modified, long size) {
+            this.data = data;
+            this.modified = modified;
+            this.size = size;
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package com.jetsnegovik.ftp.server.fs;
+
+/**
+ * Statistics of the file content cache over JMX
+ *
+ * @author Вадим
+ */
+public interface FileCacheMXBean {
+
+    long getHits();
+
+    long getMisses();
+
+    long getEvictions();
+
+    long getBytes();
+
+    long getMaxBytes();
+
+    int getEntries();
+
+    void clear();
+}
@@ -0,0 +1,260 @@
+package com.jetsnegovik.ftp.server.fs;
+
+import io.netty.buffer.ByteBufUtil;
+import io.netty.util.concurrent.DefaultEventExecutorGroup;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.EventExecutorGroup;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+import io.netty.util.internal.PlatformDependent;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+/**
+ * Checksums of served files for HASH/XCRC/XMD5/XSHA256, computed on its
+ * own threads from memory-mapped chunks. CRC32 chunks are hashed in
+ * parallel and combined, message digests are sequential by nature and
+ * walk the chunks in order on one thread. Results are remembered while
+ * the file keeps its size and mtime.
+ *
+ * @author Вадим
+ */
+public class FileHasher {
+
+    /**
+     * Supported checksums, with their names in HASH replies
+     */
+    public enum Algorithm {
+        CRC32("CRC32"), MD5("MD5"), SHA_1("SHA-1"), SHA_256("SHA-256"), SHA_512("SHA-512");
+
+        private final String name;
+
+        private Algorithm(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+    }
+
+    private static final int CHUNK_SIZE = 16 * 1024 * 1024;
+    private static final int MAX_CACHED = 4096;
+    private final EventExecutorGroup group;
+    private final Map<String, Checksum> cache = new LinkedHashMap<String, Checksum>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Checksum> eldest) {
+            return size() > MAX_CACHED;
+        }
+    };
+
+    /**
+     * @param threads threads hashing chunks
+     */
+    public FileHasher(int threads) {
+        this.group = new DefaultEventExecutorGroup(threads);
+    }
+
+    /**
+     * @param file regular file
+     * @param algorithm checksum
+     * @param executor executor notifying the listeners, the event loop of the session
+     * @return lower-case hex checksum, already done when cached
+     * @throws IOException if the attributes of the file cannot be read
+     */
+    public Future<String> hash(final Path file, final Algorithm algorithm, EventExecutor executor) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        final long size = attributes.size();
+        final long modified = attributes.lastModifiedTime().toMillis();
+        final String key = algorithm.name() + ':' + file;
+        synchronized (cache) {
+            Checksum cached = cache.get(key);
+            if (cached != null && cached.size == size && cached.modified == modified) {
+                return executor.newSucceededFuture(cached.value);
+            }
+        }
+        final Promise<String> promise = executor.newPromise();
+        final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        final Runnable done = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                }
+                if (promise.isSuccess()) {
+                    synchronized (cache) {
+                        cache.put(key, new Checksum(size, modified, promise.getNow()));
+                    }
+                }
+            }
+        };
+        if (algorithm == Algorithm.CRC32) {
+            crc(channel, size, promise, done);
+        } else {
+            group.next().execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        promise.trySuccess(ByteBufUtil.hexDump(digest(channel, size, algorithm)));
+                    } catch (Throwable t) {
+                        promise.tryFailure(t);
+                    } finally {
+                        done.run();
+                    }
+                }
+            });
+        }
+        return promise;
+    }
+
+    private void crc(final FileChannel channel, final long size, final Promise<String> promise, final Runnable done) {
+        final int chunks = (int) Math.max(1, (size + CHUNK_SIZE - 1) / CHUNK_SIZE);
+        final long[] crcs = new long[chunks];
+        final AtomicInteger remaining = new AtomicInteger(chunks);
+        for (int i = 0; i < chunks; i++) {
+            final int index = i;
+            group.next().execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (!promise.isDone()) {
+                            long position = (long) index * CHUNK_SIZE;
+                            CRC32 crc = new CRC32();
+                            MappedByteBuffer chunk = map(channel, position, Math.min(CHUNK_SIZE, size - position));
+                            if (chunk != null) {
+                                crc.update(chunk);
+                                PlatformDependent.freeDirectBuffer(chunk);
+                            }
+                            crcs[index] = crc.getValue();
+                        }
+                    } catch (Throwable t) {
+                        promise.tryFailure(t);
+                    }
+                    // the last chunk combines the others, the counter publishes their values
+                    if (remaining.decrementAndGet() == 0) {
+                        long value = crcs[0];
+                        for (int i = 1; i < chunks; i++) {
+                            long position = (long) i * CHUNK_SIZE;
+                            value = combine(value, crcs[i], Math.min(CHUNK_SIZE, size - position));
+                        }
+                        promise.trySuccess(String.format("%08x", value));
+                        done.run();
+                    }
+                }
+            });
+        }
+    }
+
+    private static byte[] digest(FileChannel channel, long size, Algorithm algorithm)
+            throws IOException, NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance(algorithm.getName());
+        for (long position = 0; position < size; position += CHUNK_SIZE) {
+            MappedByteBuffer chunk = map(channel, position, Math.min(CHUNK_SIZE, size - position));
+            if (chunk == null) {
+                break;
+            }
+            digest.update(chunk);
+            PlatformDependent.freeDirectBuffer(chunk);
+        }
+        return digest.digest();
+    }
+
+    /**
+     * @return mapped chunk, null past the end of a file that shrank
+     */
+    private static MappedByteBuffer map(FileChannel channel, long position, long length) throws IOException {
+        long available = Math.min(length, channel.size() - position);
+        if (available <= 0) {
+            return null;
+        }
+        return channel.map(FileChannel.MapMode.READ_ONLY, position, available);
+    }
+
+    /**
+     * CRC32 of two concatenated blocks from the CRC32 of each, as zlib's
+     * crc32_combine: the first CRC is advanced over length2 zero bytes by
+     * squaring the GF(2) matrix of the one-zero-bit operator.
+     *
+     * @param crc1 CRC32 of the first block
+     * @param crc2 CRC32 of the second block
+     * @param length2 length of the second block
+     * @return CRC32 of both blocks
+     */
+    static long combine(long crc1, long crc2, long length2) {
+        if (length2 <= 0) {
+            return crc1;
+        }
+        long[] even = new long[32];
+        long[] odd = new long[32];
+        odd[0] = 0xEDB88320L;
+        long row = 1;
+        for (int n = 1; n < 32; n++) {
+            odd[n] = row;
+            row <<= 1;
+        }
+        // operators for two and four zero bits
+        square(even, odd);
+        square(odd, even);
+        do {
+            square(even, odd);
+            if ((length2 & 1) != 0) {
+                crc1 = times(even, crc1);
+            }
+            length2 >>= 1;
+            if (length2 == 0) {
+                break;
+            }
+            square(odd, even);
+            if ((length2 & 1) != 0) {
+                crc1 = times(odd, crc1);
+            }
+            length2 >>= 1;
+        } while (length2 != 0);
+        return crc1 ^ crc2;
+    }
+
+    private static long times(long[] matrix, long vector) {
+        long sum = 0;
+        for (int i = 0; vector != 0; i++, vector >>>= 1) {
+            if ((vector & 1) != 0) {
+                sum ^= matrix[i];
+            }
+        }
+        return sum;
+    }
+
+    private static void square(long[] square, long[] matrix) {
+        for (int n = 0; n < 32; n++) {
+            square[n] = times(matrix, matrix[n]);
+        }
+    }
+
+    public void shutdown() {
+        group.shutdownGracefully();
+    }
+
+    private static final class Checksum {
+
+        final long size;
+        final long modified;
+        final String value;
+
+        Checksum(long size, long modified, String value) {
+            this.size = size;
+            this.modified = modified;
+            this.value = value;
+        }
+    }
+}
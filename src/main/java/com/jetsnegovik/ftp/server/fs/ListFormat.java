@@ -0,0 +1,145 @@
+package com.jetsnegovik.ftp.server.fs;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.util.CharsetUtil;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+
+/**
+ * Formats of directory listings, each entry is encoded straight into a
+ * ByteBuf and terminated with CRLF
+ *
+ * @author Вадим
+ */
+public enum ListFormat {
+
+    /**
+     * ls -l style for LIST
+     */
+    LIST {
+        @Override
+        public void encode(String name, BasicFileAttributes attrs, long now, StringBuilder scratch, ByteBuf out) {
+            out.writeByte(attrs.isDirectory() ? 'd' : '-');
+            out.writeBytes(LIST_FIELDS);
+            long size = attrs.size();
+            for (int pad = 8 - digits(size); pad > 0; pad--) {
+                out.writeByte(' ');
+            }
+            writeNumber(size, out);
+            out.writeByte(' ');
+            long modified = attrs.lastModifiedTime().toMillis();
+            scratch.setLength(0);
+            if (Math.abs(now - modified) < SIX_MONTHS) {
+                RECENT_DATE.formatTo(Instant.ofEpochMilli(modified), scratch);
+            } else {
+                OLD_DATE.formatTo(Instant.ofEpochMilli(modified), scratch);
+            }
+            writeAscii(scratch, out);
+            out.writeByte(' ');
+            writeName(name, out);
+            out.writeBytes(CRLF);
+        }
+    },
+    /**
+     * Names only for NLST
+     */
+    NLST {
+        @Override
+        public void encode(String name, BasicFileAttributes attrs, long now, StringBuilder scratch, ByteBuf out) {
+            writeName(name, out);
+            out.writeBytes(CRLF);
+        }
+    },
+    /**
+     * Machine-readable facts for MLSD and MLST (RFC 3659)
+     */
+    MLSD {
+        @Override
+        public void encode(String name, BasicFileAttributes attrs, long now, StringBuilder scratch, ByteBuf out) {
+            out.writeBytes(attrs.isDirectory() ? TYPE_DIR : TYPE_FILE);
+            out.writeBytes(SIZE_FACT);
+            writeNumber(attrs.size(), out);
+            out.writeBytes(MODIFY_FACT);
+            scratch.setLength(0);
+            MLSD_DATE.formatTo(attrs.lastModifiedTime().toInstant(), scratch);
+            writeAscii(scratch, out);
+            out.writeBytes(FACTS_END);
+            writeName(name, out);
+            out.writeBytes(CRLF);
+        }
+    };
+
+    private static final long SIX_MONTHS = 183L * 24 * 60 * 60 * 1000;
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] LIST_FIELDS = ascii("rwxrwxrwx 1 ftp ftp ");
+    private static final byte[] TYPE_DIR = ascii("type=dir;");
+    private static final byte[] TYPE_FILE = ascii("type=file;");
+    private static final byte[] SIZE_FACT = ascii("size=");
+    private static final byte[] MODIFY_FACT = ascii(";modify=");
+    private static final byte[] FACTS_END = ascii("; ");
+    private static final DateTimeFormatter RECENT_DATE = DateTimeFormatter.ofPattern("MMM dd HH:mm", Locale.US)
+            .withZone(ZoneId.systemDefault());
+    private static final DateTimeFormatter OLD_DATE = DateTimeFormatter.ofPattern("MMM dd  yyyy", Locale.US)
+            .withZone(ZoneId.systemDefault());
+    private static final DateTimeFormatter MLSD_DATE = DateTimeFormatter.ofPattern("yyyyMMddHHmmss", Locale.US)
+            .withZone(ZoneOffset.UTC);
+
+    /**
+     * Encode one entry
+     *
+     * @param name file name
+     * @param attrs file attributes
+     * @param now current time in millis, picks the ls date style
+     * @param scratch reusable builder for dates
+     * @param out destination
+     */
+    public abstract void encode(String name, BasicFileAttributes attrs, long now, StringBuilder scratch, ByteBuf out);
+
+    private static byte[] ascii(String text) {
+        byte[] bytes = new byte[text.length()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) text.charAt(i);
+        }
+        return bytes;
+    }
+
+    private static int digits(long value) {
+        int digits = 1;
+        while (value >= 10) {
+            value /= 10;
+            digits++;
+        }
+        return digits;
+    }
+
+    private static void writeNumber(long value, ByteBuf out) {
+        int length = digits(value);
+        out.ensureWritable(length);
+        int index = out.writerIndex() + length;
+        out.writerIndex(index);
+        do {
+            out.setByte(--index, (int) ('0' + value % 10));
+            value /= 10;
+        } while (value > 0);
+    }
+
+    private static void writeAscii(CharSequence text, ByteBuf out) {
+        for (int i = 0; i < text.length(); i++) {
+            out.writeByte(text.charAt(i));
+        }
+    }
+
+    private static void writeName(String name, ByteBuf out) {
+        for (int i = 0; i < name.length(); i++) {
+            if (name.charAt(i) >= 0x80) {
+                out.writeBytes(name.getBytes(CharsetUtil.UTF_8));
+                return;
+            }
+        }
+        writeAscii(name, out);
+    }
+}
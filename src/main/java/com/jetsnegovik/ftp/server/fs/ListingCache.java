@@ -0,0 +1,269 @@
+package com.jetsnegovik.ftp.server.fs;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Encoded directory listings, evicted least recently used first once the
+ * total size exceeds the limit. A directory is watched while it has an
+ * entry or is being listed, and the entry is dropped on any WatchService
+ * event; the directory mtime is checked as well for file systems that do
+ * not deliver events.
+ *
+ * @author Вадим
+ */
+public class ListingCache {
+
+    public static final int MAX_FORMATS = 4;
+    private static final Logger logger = LoggerFactory.getLogger(ListingCache.class);
+    private final long maxBytes;
+    private final long maxEntryBytes;
+    // the fields below are guarded by this
+    private final LinkedHashMap<Path, Entry> entries = new LinkedHashMap<Path, Entry>(64, 0.75f, true);
+    private final Map<Path, Watch> watches = new HashMap<Path, Watch>();
+    private long invalidations;
+    private long bytes;
+    private final WatchService watchService;
+
+    /**
+     * @param maxBytes total size of cached listings
+     * @param maxEntryBytes larger listings are not cached
+     */
+    public ListingCache(long maxBytes, long maxEntryBytes) {
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = maxEntryBytes;
+        WatchService service = null;
+        try {
+            service = FileSystems.getDefault().newWatchService();
+        } catch (IOException e) {
+            logger.warn("WatchService is not available, listings are validated by mtime only", e);
+        }
+        this.watchService = service;
+        if (watchService != null) {
+            Thread watcher = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    watch();
+                }
+            }, "listing-cache-watcher");
+            watcher.setDaemon(true);
+            watcher.start();
+        }
+    }
+
+    /**
+     * @param dir normalized absolute directory
+     * @param format listing format, 0 to MAX_FORMATS - 1
+     * @return encoded listing or null
+     */
+    public byte[] get(Path dir, int format) {
+        byte[] data;
+        long modified;
+        synchronized (this) {
+            Entry entry = entries.get(dir);
+            if (entry == null || entry.data[format] == null) {
+                return null;
+            }
+            data = entry.data[format];
+            modified = entry.modified[format];
+        }
+        if (dir.toFile().lastModified() != modified) {
+            invalidate(dir);
+            return null;
+        }
+        return data;
+    }
+
+    /**
+     * Start watching the directory and take a stamp before reading it,
+     * {@link #put} ignores the listing if the directory was invalidated in
+     * between. Every stamp has to be followed by a put.
+     *
+     * @param dir normalized absolute directory
+     * @return stamp
+     */
+    public synchronized long stamp(Path dir) {
+        Watch watch = watches.get(dir);
+        if (watch == null) {
+            watch = new Watch(register(dir), invalidations);
+            watches.put(dir, watch);
+        }
+        watch.listings++;
+        return watch.stamp;
+    }
+
+    /**
+     * @param dir normalized absolute directory
+     * @param format listing format, 0 to MAX_FORMATS - 1
+     * @param modified directory mtime read before the listing
+     * @param stamp value of {@link #stamp(Path)} taken before the listing
+     * @param data encoded listing, must not be modified afterwards; null
+     * if the listing failed or was too large to copy
+     */
+    public synchronized void put(Path dir, int format, long modified, long stamp, byte[] data) {
+        Watch watch = watches.get(dir);
+        if (watch == null) {
+            return;
+        }
+        watch.listings--;
+        if (data == null || data.length > maxEntryBytes || watch.stamp != stamp) {
+            unwatchIfUnused(dir, watch);
+            return;
+        }
+        Entry entry = entries.get(dir);
+        if (entry == null) {
+            entry = new Entry(dir);
+            entries.put(dir, entry);
+        } else if (entry.data[format] != null) {
+            bytes -= entry.data[format].length;
+        }
+        entry.data[format] = data;
+        entry.modified[format] = modified;
+        bytes += data.length;
+        Iterator<Entry> it = entries.values().iterator();
+        while (bytes > maxBytes && it.hasNext()) {
+            Entry eldest = it.next();
+            it.remove();
+            bytes -= eldest.bytes();
+            unwatchIfUnused(eldest.dir, watches.get(eldest.dir));
+        }
+    }
+
+    /**
+     * Drop the listings of a directory, listings of it in progress are not kept
+     *
+     * @param dir normalized absolute directory
+     */
+    public synchronized void invalidate(Path dir) {
+        Watch watch = watches.get(dir);
+        if (watch == null) {
+            return;
+        }
+        // only stamps of this directory become stale, listings elsewhere are still kept
+        watch.stamp = ++invalidations;
+        Entry entry = entries.remove(dir);
+        if (entry != null) {
+            bytes -= entry.bytes();
+        }
+        unwatchIfUnused(dir, watch);
+    }
+
+    public long getMaxEntryBytes() {
+        return maxEntryBytes;
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return directories watched, cached ones and those being listed
+     */
+    public synchronized int getWatched() {
+        return watches.size();
+    }
+
+    public void close() {
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    private WatchKey register(Path dir) {
+        if (watchService == null) {
+            return null;
+        }
+        try {
+            return dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException e) {
+            logger.debug("Cannot watch {}", dir, e);
+            return null;
+        }
+    }
+
+    /**
+     * Stop watching a directory with no entry and no listing in progress,
+     * called holding the lock
+     */
+    private void unwatchIfUnused(Path dir, Watch watch) {
+        if (watch == null || watch.listings > 0 || entries.containsKey(dir)) {
+            return;
+        }
+        watches.remove(dir);
+        if (watch.key != null) {
+            watch.key.cancel();
+        }
+    }
+
+    private void watch() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                key.pollEvents();
+                invalidate((Path) key.watchable());
+                // a directory still being listed keeps its key, it has to signal again
+                key.reset();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ClosedWatchServiceException e) {
+            // shutdown
+        }
+    }
+
+    /**
+     * Watch of a directory that has an entry or listings in progress
+     */
+    private static final class Watch {
+
+        private final WatchKey key;
+        // value of invalidations when the directory was last invalidated
+        private long stamp;
+        private int listings;
+
+        private Watch(WatchKey key, long stamp) {
+            this.key = key;
+            this.stamp = stamp;
+        }
+    }
+
+    private static final class Entry {
+
+        private final Path dir;
+        private final byte[][] data = new byte[MAX_FORMATS][];
+        private final long[] modified = new long[MAX_FORMATS];
+
+        private Entry(Path dir) {
+            this.dir = dir;
+        }
+
+        private long bytes() {
+            long total = 0;
+            for (byte[] listing : data) {
+                if (listing != null) {
+                    total += listing.length;
+                }
+            }
+            return total;
+        }
+    }
+}
@@ -0,0 +1,503 @@
+package com.jetsnegovik.ftp.server.fs;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelPromise;
+import io.netty.buffer.Unpooled;
+import io.netty.util.CharsetUtil;
+import io.netty.util.concurrent.EventExecutor;
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Recursive listing (ls -lR) of a tree for LIST -R and STAT -R. Every
+ * directory is read by its own task on the pool, which submits the
+ * subdirectories it finds, so a wide tree is read by all threads of the
+ * pool at once. A directory is encoded in chunks, the first one starting
+ * with its "./path:" header, and a writer streams the directories out
+ * one after the other in the order they were started.
+ *
+ * Memory is bounded per chunk: the first chunk of a directory needs room
+ * in a byte budget before it is encoded, further chunks are encoded only
+ * while the directory is the one being written and at most
+ * {@link #HEAD_CHUNKS} of them wait for the channel. A task that has to
+ * wait does not hold a pool thread, it is parked and submitted again by
+ * the writer, so a slow client never holds up the listings of others.
+ * The writer runs in steps on the executor given to {@link #write}: it
+ * goes idle when no chunk is ready and is started again by the task
+ * publishing the next one, and while the channel is not writable it waits
+ * for the last write to complete, never holding the executor's thread.
+ *
+ * @author Вадим
+ */
+public class TreeLister {
+
+    public static final int BUDGET_BYTES = 4 * 1024 * 1024;
+    private static final int CHUNK_SIZE = DirectoryLister.CHUNK_SIZE;
+    private static final int HEAD_CHUNKS = 2;
+    private static final int FLUSH_BYTES = 256 * 1024;
+    private static final byte[] CRLF = {'\r', '\n'};
+    private final ForkJoinPool pool;
+    private final ListFormat format;
+    private final int maxDepth;
+    private final int maxEntries;
+    private final Object lock = new Object();
+    // guarded by lock: directories with a written first chunk in output order, the first is being written
+    private final ArrayDeque<DirectoryTask> order = new ArrayDeque<DirectoryTask>();
+    // guarded by lock: tasks waiting for budget to start
+    private final ArrayDeque<DirectoryTask> waiting = new ArrayDeque<DirectoryTask>();
+    // guarded by lock
+    private int budget = BUDGET_BYTES;
+    // guarded by lock: submitted tasks that have not ended
+    private int pending;
+    // guarded by lock: the writer waits for a chunk to be published
+    private boolean idle;
+    private final AtomicInteger entries = new AtomicInteger();
+    private volatile boolean truncated;
+    private volatile boolean cancelled;
+    private ByteBufAllocator alloc;
+    private Channel channel;
+    private EventExecutor executor;
+    private ChannelPromise done;
+    // the fields below are used by one writer step at a time
+    private ChannelFuture last;
+    private int unflushed;
+    private final Runnable step = new Runnable() {
+        @Override
+        public void run() {
+            writeChunks();
+        }
+    };
+    private final ChannelFutureListener resume = new ChannelFutureListener() {
+        @Override
+        public void operationComplete(ChannelFuture future) throws Exception {
+            executor.execute(step);
+        }
+    };
+
+    /**
+     * @param pool pool reading the directories
+     * @param format format of the entries
+     * @param maxDepth levels of subdirectories below the root, deeper ones are not listed
+     * @param maxEntries the listing stops after this many entries
+     */
+    public TreeLister(ForkJoinPool pool, ListFormat format, int maxDepth, int maxEntries) {
+        this.pool = pool;
+        this.format = format;
+        this.maxDepth = maxDepth;
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Walk the tree and write its listing, called once per instance
+     *
+     * @param root directory to list
+     * @param channel destination
+     * @param executor runs the writer steps, never waits on the channel
+     * @return future notified once the last write completed
+     */
+    public ChannelFuture write(Path root, Channel channel, EventExecutor executor) {
+        this.alloc = channel.alloc();
+        this.channel = channel;
+        this.executor = executor;
+        this.done = channel.newPromise();
+        synchronized (lock) {
+            pending = 1;
+            // started by the first chunk published
+            idle = true;
+        }
+        pool.execute(new DirectoryTask(root, ".", 0));
+        return done;
+    }
+
+    /**
+     * @return true if the entry limit cut the listing short
+     */
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    /**
+     * @return entries listed
+     */
+    public int getEntries() {
+        return Math.min(entries.get(), maxEntries);
+    }
+
+    /**
+     * @param written future of the last write
+     * @param channel destination
+     * @return future failing when the listing was truncated, so the transfer reports an abort
+     */
+    public ChannelFuture completion(ChannelFuture written, Channel channel) {
+        final ChannelPromise promise = channel.newPromise();
+        written.addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+                if (!future.isSuccess()) {
+                    promise.tryFailure(future.cause());
+                } else if (truncated) {
+                    promise.tryFailure(new IOException("Listing truncated at " + maxEntries + " entries"));
+                } else {
+                    promise.trySuccess();
+                }
+            }
+        });
+        return promise;
+    }
+
+    /**
+     * Write the chunks ready, up to {@link #FLUSH_BYTES} per step, then
+     * continue in another step: right away if the channel takes more, once
+     * the last write completed otherwise, or when the next chunk is
+     * published if none is ready
+     */
+    private void writeChunks() {
+        if (cancelled) {
+            return;
+        }
+        for (;;) {
+            if (!channel.isActive()) {
+                cancel();
+                return;
+            }
+            ByteBuf chunk;
+            boolean end;
+            synchronized (lock) {
+                chunk = poll();
+                end = chunk == null && order.isEmpty() && pending == 0;
+                if (chunk == null && !end) {
+                    idle = true;
+                }
+            }
+            if (chunk == null) {
+                if (end) {
+                    finish();
+                } else {
+                    channel.flush();
+                    unflushed = 0;
+                }
+                return;
+            }
+            int size = chunk.readableBytes();
+            last = channel.write(chunk);
+            written(size);
+            unflushed += size;
+            if (unflushed >= FLUSH_BYTES || !channel.isWritable()) {
+                channel.flush();
+                unflushed = 0;
+                if (channel.isWritable()) {
+                    // take turns with the other sessions of the executor
+                    executor.execute(step);
+                } else {
+                    last.addListener(resume);
+                }
+                return;
+            }
+        }
+    }
+
+    private void finish() {
+        if (last == null) {
+            last = channel.write(Unpooled.EMPTY_BUFFER);
+        }
+        channel.flush();
+        last.addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+                if (future.isSuccess()) {
+                    done.trySuccess();
+                } else {
+                    done.tryFailure(future.cause());
+                }
+            }
+        });
+    }
+
+    private void cancel() {
+        cancelled = true;
+        drain();
+        done.tryFailure(new ClosedChannelException());
+    }
+
+    /**
+     * @return next chunk of the directory being written, null if none is
+     * ready; called holding the lock
+     */
+    private ByteBuf poll() {
+        DirectoryTask head;
+        while ((head = order.peekFirst()) != null) {
+            ByteBuf chunk = head.chunks.pollFirst();
+            if (chunk != null) {
+                return chunk;
+            }
+            if (!head.ended) {
+                return null;
+            }
+            order.pollFirst();
+            resumeHead();
+        }
+        return null;
+    }
+
+    /**
+     * Give back what a chunk of the head directory held, the next chunks can be encoded
+     */
+    private void written(int size) {
+        synchronized (lock) {
+            DirectoryTask head = order.peekFirst();
+            if (!head.firstWritten) {
+                head.firstWritten = true;
+                release(permits(size));
+            } else {
+                head.unwritten--;
+            }
+            resumeHead();
+        }
+    }
+
+    private void drain() {
+        // parked tasks are submitted once more to see the flag and close their directories,
+        // running ones release what they publish from now on
+        synchronized (lock) {
+            for (DirectoryTask task : waiting) {
+                pool.execute(task);
+            }
+            waiting.clear();
+            for (DirectoryTask task : order) {
+                ByteBuf chunk;
+                while ((chunk = task.chunks.pollFirst()) != null) {
+                    chunk.release();
+                }
+                if (task.parked) {
+                    task.parked = false;
+                    pool.execute(task);
+                }
+            }
+            order.clear();
+        }
+    }
+
+    /**
+     * Start the writer if it waits for a chunk, called holding the lock
+     */
+    private void wakeWriter() {
+        if (idle) {
+            idle = false;
+            executor.execute(step);
+        }
+    }
+
+    /**
+     * Return budget and start waiting tasks it is enough for, called holding the lock
+     */
+    private void release(int bytes) {
+        budget += bytes;
+        while (budget >= CHUNK_SIZE && !waiting.isEmpty()) {
+            DirectoryTask task = waiting.pollFirst();
+            budget -= CHUNK_SIZE;
+            task.reserved = true;
+            pool.execute(task);
+        }
+    }
+
+    /**
+     * Continue the directory being written if it waits for its turn, called holding the lock
+     */
+    private void resumeHead() {
+        DirectoryTask head = order.peekFirst();
+        if (head != null && head.parked && head.unwritten < HEAD_CHUNKS) {
+            head.parked = false;
+            pool.execute(head);
+        }
+    }
+
+    private static int permits(int size) {
+        return Math.min(size, CHUNK_SIZE);
+    }
+
+    /**
+     * Reads one directory, one chunk per run, and submits its
+     * subdirectories
+     */
+    private final class DirectoryTask implements Runnable {
+
+        private final Path dir;
+        private final String name;
+        private final int depth;
+        private final List<DirectoryTask> children = new ArrayList<DirectoryTask>();
+        // guarded by lock
+        private final ArrayDeque<ByteBuf> chunks = new ArrayDeque<ByteBuf>();
+        private DirectoryStream<Path> stream;
+        private Iterator<Path> iterator;
+        private ByteBuf block;
+        // the fields below are guarded by lock
+        private boolean reserved;
+        private boolean started;
+        private boolean parked;
+        private boolean ended;
+        private boolean firstWritten;
+        // chunks after the first one not written yet
+        private int unwritten;
+
+        DirectoryTask(Path dir, String name, int depth) {
+            this.dir = dir;
+            this.name = name;
+            this.depth = depth;
+        }
+
+        @Override
+        public void run() {
+            boolean done = true;
+            try {
+                done = cancelled || truncated || list();
+            } finally {
+                if (done) {
+                    end();
+                }
+            }
+        }
+
+        /**
+         * @return true when the directory is done, false if it continues in another run
+         */
+        private boolean list() {
+            synchronized (lock) {
+                if (!started && !reserved) {
+                    if (!waiting.isEmpty() || budget < CHUNK_SIZE) {
+                        waiting.addLast(this);
+                        return false;
+                    }
+                    budget -= CHUNK_SIZE;
+                    reserved = true;
+                }
+            }
+            block = alloc.buffer(CHUNK_SIZE);
+            boolean more = false;
+            try {
+                if (iterator == null) {
+                    if (depth > 0) {
+                        block.writeBytes(CRLF);
+                    }
+                    block.writeBytes(name.getBytes(CharsetUtil.UTF_8));
+                    block.writeByte(':');
+                    block.writeBytes(CRLF);
+                    stream = Files.newDirectoryStream(dir);
+                    iterator = stream.iterator();
+                }
+                StringBuilder scratch = new StringBuilder(32);
+                long now = System.currentTimeMillis();
+                while (block.readableBytes() < CHUNK_SIZE && !cancelled && iterator.hasNext()) {
+                    Path entry = iterator.next();
+                    if (entries.incrementAndGet() > maxEntries) {
+                        truncated = true;
+                        break;
+                    }
+                    BasicFileAttributes attrs = attributes(entry);
+                    if (attrs == null) {
+                        continue;
+                    }
+                    String fileName = entry.getFileName().toString();
+                    format.encode(fileName, attrs, now, scratch, block);
+                    // symbolic links are listed but not followed, a loop would never end
+                    if (attrs.isDirectory() && depth < maxDepth && !Files.isSymbolicLink(entry)) {
+                        children.add(new DirectoryTask(entry, name + "/" + fileName, depth + 1));
+                    }
+                }
+                more = !cancelled && !truncated && iterator.hasNext();
+            } catch (IOException e) {
+                // unreadable or vanished directory, its header alone is listed
+            } catch (DirectoryIteratorException e) {
+                // the directory changed while being read, what was read is listed
+            }
+            ByteBuf chunk = block;
+            block = null;
+            return publish(chunk, more);
+        }
+
+        private boolean publish(ByteBuf chunk, boolean more) {
+            synchronized (lock) {
+                if (cancelled) {
+                    chunk.release();
+                    return true;
+                }
+                if (!started) {
+                    started = true;
+                    reserved = false;
+                    release(CHUNK_SIZE - permits(chunk.readableBytes()));
+                    order.addLast(this);
+                } else {
+                    unwritten++;
+                }
+                chunks.addLast(chunk);
+                pending += children.size();
+                for (DirectoryTask child : children) {
+                    pool.execute(child);
+                }
+                children.clear();
+                wakeWriter();
+                if (!more) {
+                    return true;
+                }
+                // one chunk per run, a big directory takes turns with the other tasks
+                if (order.peekFirst() == this && unwritten < HEAD_CHUNKS) {
+                    pool.execute(this);
+                } else {
+                    parked = true;
+                }
+                return false;
+            }
+        }
+
+        private void end() {
+            if (block != null) {
+                block.release();
+                block = null;
+            }
+            if (stream != null) {
+                try {
+                    stream.close();
+                } catch (IOException e) {
+                }
+                stream = null;
+            }
+            synchronized (lock) {
+                if (reserved) {
+                    reserved = false;
+                    release(CHUNK_SIZE);
+                }
+                ended = true;
+                pending--;
+                wakeWriter();
+            }
+        }
+
+        private BasicFileAttributes attributes(Path entry) {
+            try {
+                return Files.readAttributes(entry, BasicFileAttributes.class);
+            } catch (IOException e) {
+                // dangling link or entry removed while listing
+                try {
+                    return Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                } catch (IOException ex) {
+                    return null;
+                }
+            }
+        }
+    }
+}
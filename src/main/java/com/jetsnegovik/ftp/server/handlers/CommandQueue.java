@@ -0,0 +1,98 @@
+package com.jetsnegovik.ftp.server.handlers;
+
+import com.jetsnegovik.ftp.server.utils.FtpRequest;
+import io.netty.util.concurrent.EventExecutor;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pipelined commands of one session. Commands run strictly one after
+ * another so replies keep the order of the requests; a command that
+ * blocks or completes later (file system work, transfers, PASV) holds
+ * the queue until it is done. The deque is only touched on the event
+ * loop of the control channel, holds may be released from any thread.
+ *
+ * @author Вадим
+ */
+public class CommandQueue {
+
+    /**
+     * Reading stops while this many commands wait and resumes at LOW_WATER_MARK
+     */
+    public static final int HIGH_WATER_MARK = 64;
+    public static final int LOW_WATER_MARK = 16;
+    private final ArrayDeque<FtpRequest> pending = new ArrayDeque<FtpRequest>();
+    private final AtomicInteger holds = new AtomicInteger();
+    private final EventExecutor executor;
+    private boolean closed;
+
+    /**
+     * @param executor runs blocking commands of the session, null to run everything on the event loop
+     */
+    public CommandQueue(EventExecutor executor) {
+        this.executor = executor;
+    }
+
+    public EventExecutor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * @param request retained request, released by the queue when closed
+     * @return number of waiting commands
+     */
+    public int add(FtpRequest request) {
+        if (closed) {
+            request.release();
+            return 0;
+        }
+        pending.add(request);
+        return pending.size();
+    }
+
+    /**
+     * @return next command or null when the queue is empty or held
+     */
+    public FtpRequest poll() {
+        if (holds.get() > 0) {
+            return null;
+        }
+        return pending.poll();
+    }
+
+    public int size() {
+        return pending.size();
+    }
+
+    /**
+     * Keep further commands waiting until {@link #release()}
+     */
+    public void hold() {
+        holds.incrementAndGet();
+    }
+
+    /**
+     * @return true while a command or transfer holds the queue
+     */
+    public boolean isHeld() {
+        return holds.get() > 0;
+    }
+
+    /**
+     * @return true if this was the last hold and the queue may run again
+     */
+    public boolean release() {
+        return holds.decrementAndGet() == 0;
+    }
+
+    /**
+     * Drop waiting commands, later ones are ignored (QUIT, closed connection)
+     */
+    public void close() {
+        closed = true;
+        FtpRequest request;
+        while ((request = pending.poll()) != null) {
+            request.release();
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.jetsnegovik.ftp.server.handlers;
+
+import com.jetsnegovik.ftp.server.utils.FtpCommand;
+import com.jetsnegovik.ftp.server.utils.FtpRequest;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.TooLongFrameException;
+import java.util.List;
+
+/**
+ * Splits control channel input into lines and decodes the verb straight
+ * from the bytes. The argument is passed on as a retained slice.
+ *
+ * @author Вадим
+ */
+public class FtpCommandDecoder extends ByteToMessageDecoder {
+
+    public static final int MAX_LINE_LENGTH = 1024;
+
+    @Override
+    protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
+        int eol = in.bytesBefore((byte) '\n');
+        if (eol < 0) {
+            if (in.readableBytes() > MAX_LINE_LENGTH) {
+                in.skipBytes(in.readableBytes());
+                throw new TooLongFrameException("Command line is longer than " + MAX_LINE_LENGTH);
+            }
+            return;
+        }
+        if (eol > MAX_LINE_LENGTH) {
+            in.skipBytes(eol + 1);
+            throw new TooLongFrameException("Command line is longer than " + MAX_LINE_LENGTH);
+        }
+        int start = in.readerIndex();
+        int length = eol;
+        if (length > 0 && in.getByte(start + length - 1) == '\r') {
+            length--;
+        }
+
+        long key = 0;
+        int verbLength = 0;
+        boolean valid = true;
+        while (verbLength < length) {
+            byte b = in.getByte(start + verbLength);
+            if (b == ' ') {
+                break;
+            }
+            if (verbLength >= FtpCommand.MAX_VERB_LENGTH || !isLetterOrDigit(b)) {
+                valid = false;
+            } else {
+                key = FtpCommand.appendKey(key, b);
+            }
+            verbLength++;
+        }
+        FtpCommand command = valid ? FtpCommand.lookup(key) : FtpCommand.UNKNOWN;
+
+        int argStart = 0;
+        if (command != FtpCommand.UNKNOWN) {
+            argStart = verbLength;
+            while (argStart < length && in.getByte(start + argStart) == ' ') {
+                argStart++;
+            }
+        }
+        in.skipBytes(eol + 1);
+        ByteBuf argument;
+        if (argStart == length) {
+            argument = Unpooled.EMPTY_BUFFER;
+        } else if (in.isReadable()) {
+            // the decoder compacts a cumulation that still holds bytes, a slice would move under us
+            argument = in.copy(start + argStart, length - argStart);
+        } else {
+            argument = in.slice(start + argStart, length - argStart).retain();
+        }
+        out.add(new FtpRequest(command, argument));
+    }
+
+    private static boolean isLetterOrDigit(byte b) {
+        return (b >= 'A' && b <= 'Z') || (b >= 'a' && b <= 'z') || (b >= '0' && b <= '9');
+    }
+}
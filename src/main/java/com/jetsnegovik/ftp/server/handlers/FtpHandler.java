@@ -1,34 +1,70 @@
 package com.jetsnegovik.ftp.server.handlers;
 
+import com.jetsnegovik.ftp.server.auth.Authenticator;
+import com.jetsnegovik.ftp.server.data.ActiveDataConnection;
+import com.jetsnegovik.ftp.server.data.AsciiConversion;
+import com.jetsnegovik.ftp.server.data.ChunkedFileWriter;
+import com.jetsnegovik.ftp.server.data.DataChannelHandler;
+import com.jetsnegovik.ftp.server.data.DataIdleHandler;
+import com.jetsnegovik.ftp.server.data.DataInboundGate;
+import com.jetsnegovik.ftp.server.data.DataWriter;
+import com.jetsnegovik.ftp.server.data.FileReceiveHandler;
+import com.jetsnegovik.ftp.server.data.MessageWriter;
+import com.jetsnegovik.ftp.server.data.ModeZ;
+import com.jetsnegovik.ftp.server.data.PassiveDataConnection;
+import com.jetsnegovik.ftp.server.data.UploadFile;
+import com.jetsnegovik.ftp.server.fs.DirectoryLister;
+import com.jetsnegovik.ftp.server.fs.FileCache;
+import com.jetsnegovik.ftp.server.fs.FileHasher;
+import com.jetsnegovik.ftp.server.fs.ListFormat;
+import com.jetsnegovik.ftp.server.fs.ListingCache;
+import com.jetsnegovik.ftp.server.fs.TreeLister;
+import com.jetsnegovik.ftp.server.log.AccessLog;
 import com.jetsnegovik.ftp.server.utils.CommandException;
+import com.jetsnegovik.ftp.server.utils.FtpCommand;
+import com.jetsnegovik.ftp.server.utils.FtpReply;
+import com.jetsnegovik.ftp.server.utils.FtpRequest;
 import com.jetsnegovik.ftp.server.utils.FtpType;
 import com.jetsnegovik.ftp.server.Server;
+import com.jetsnegovik.ftp.server.ServerConfig;
+import com.jetsnegovik.ftp.server.ServerContext;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
 import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler.Sharable;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.DefaultFileRegion;
 import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.EventExecutorGroup;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.FutureListener;
+import io.netty.util.concurrent.Promise;
+import java.io.Closeable;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
-import java.net.ConnectException;
+import java.io.RandomAccessFile;
+import java.net.Inet4Address;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.Socket;
 import java.net.UnknownHostException;
-import java.nio.charset.Charset;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.Enumeration;
-import java.util.Locale;
-import java.util.NoSuchElementException;
-import java.util.Stack;
-import java.util.StringTokenizer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.EnumSet;
+import java.util.Set;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -36,14 +72,19 @@ import org.slf4j.LoggerFactory;
  *
  * @author Вадим
  */
-public class FtpHandler extends SimpleChannelInboundHandler<String> {
+@Sharable
+public class FtpHandler extends SimpleChannelInboundHandler<FtpRequest> {
 
-    private static final Charset ASCII = Charset.forName("ASCII");
     private static final Logger logger = LoggerFactory.getLogger(FtpHandler.class);
     private static final int CODE_READ_DIR = 150;
+    private static final int CODE_OK = 200;
+    private static final int CODE_SYSTEM_STATUS = 211;
+    private static final int CODE_FILE_STATUS = 213;
     private static final int CODE_SYSTEM_TYPE = 215;
     private static final int CODE_CONNECT_SUCCESS = 220;
     private static final int CODE_OUT = 221;
+    private static final int CODE_PASSIVE_MODE = 227;
+    private static final int CODE_EXTENDED_PASSIVE_MODE = 229;
     private static final int CODE_LOGIN_SUCCESS = 230;
     private static final int CODE_COMMAND_SUCCESS = 215;
     private static final int CODE_ACTION_OK = 250;
@@ -51,25 +92,60 @@ public class FtpHandler extends SimpleChannelInboundHandler<String> {
     private static final int CODE_ROOT_DIRECTORY = 257;
     private static final int CODE_PASSWORD_NEEDED = 331;
     private static final int CODE_ACTION_PENDING = 350;
+    private static final int CODE_SERVICE_NOT_AVAILABLE = 421;
     private static final int CODE_ERROR_READ_DIR = 425;
+    private static final int CODE_LOCAL_ERROR = 451;
+    private static final int CODE_TRANSFER_ABORTED = 426;
     private static final int CODE_EXCEPTION = 500;
     private static final int CODE_IN_PARAMETERS = 501;
+    private static final int CODE_NOT_IMPLEMENTED = 502;
     private static final int CODE_USERNAME_NEEDED = 503;
+    private static final int CODE_PARAMETER_NOT_IMPLEMENTED = 504;
     private static final int CODE_NOT_LOGGED_IN = 530;
     private static final int CODE_NOT_FOUND = 550;
+    private static final int CODE_NO_SPACE = 552;
     private static final int CODE_IO_ERROR = 553;
-    private static String username;
-    private static String password;
-    private static InetSocketAddress addressClient = null;
-    private static final String baseDir = System.getProperty("user.dir");
-    private static String currentDir = "/";
-    private static FtpType ftpType;
-    private static File renameFile;
+    private static final Set<FtpCommand> BLOCKING = EnumSet.of(FtpCommand.CWD, FtpCommand.LIST, FtpCommand.NLST,
+            FtpCommand.MLSD, FtpCommand.MLST, FtpCommand.RETR, FtpCommand.STOR, FtpCommand.APPE, FtpCommand.SIZE,
+            FtpCommand.ALLO, FtpCommand.MKD, FtpCommand.RMD, FtpCommand.DELE, FtpCommand.RNFR, FtpCommand.RNTO,
+            FtpCommand.HASH, FtpCommand.XCRC, FtpCommand.XMD5, FtpCommand.XSHA256, FtpCommand.STAT);
+    private static final String[] FEATURES = {"EPSV", "PASV", "MLST type*;size*;modify*;", "MODE Z", "REST STREAM", "SIZE",
+        "UTF8", "HASH SHA-256*", "XCRC", "XMD5", "XSHA256"};
+    private static final FtpReply REPLY_READY = new FtpReply(CODE_CONNECT_SUCCESS,
+            "FTP server (" + Server.VERSION + ") ready.");
+    private static final FtpReply REPLY_PASSWORD_NEEDED = new FtpReply(CODE_PASSWORD_NEEDED, "Password required.");
+    private static final FtpReply REPLY_LOGIN_SUCCESS = new FtpReply(CODE_LOGIN_SUCCESS,
+            "Authorization has been successfully.");
+    private static final FtpReply REPLY_IDLE_TIMEOUT = new FtpReply(CODE_SERVICE_NOT_AVAILABLE,
+            "Idle timeout, closing control connection.");
+    private static final FtpReply REPLY_LOGIN_INCORRECT = new FtpReply(CODE_NOT_LOGGED_IN, "Login incorrect.");
+    private static final FtpReply REPLY_LOGIN_RATE_LIMITED = new FtpReply(CODE_NOT_LOGGED_IN,
+            "Too many login attempts, try again later.");
+    private static final FtpReply REPLY_SYSTEM_TYPE = new FtpReply(CODE_SYSTEM_TYPE, "UNIX");
+    private static final FtpReply REPLY_CLNT = new FtpReply(CODE_COMMAND_SUCCESS, "CLNT command successful.");
+    private static final FtpReply REPLY_NOOP = new FtpReply(CODE_OK, "NOOP command successful.");
+    private static final FtpReply REPLY_PORT = new FtpReply(CODE_COMMAND_SUCCESS, "PORT command successful.");
+    private static final FtpReply REPLY_EPSV_ALL = new FtpReply(CODE_OK, "EPSV ALL command successful.");
+    private static final FtpReply REPLY_FEATURES = FtpReply.multiLine(CODE_SYSTEM_STATUS, "Features:", FEATURES, "End");
+    private static final FtpReply REPLY_CWD = new FtpReply(CODE_ACTION_OK, "CWD command successful.");
+    private static final FtpReply REPLY_DELE = new FtpReply(CODE_ACTION_OK, "DELE command successful.");
+    private static final FtpReply REPLY_RMD = new FtpReply(CODE_ACTION_OK, "RMD command successful.");
+    private static final FtpReply REPLY_RNFR = new FtpReply(CODE_ACTION_PENDING, "Pending file");
+    private static final FtpReply REPLY_RNTO = new FtpReply(CODE_ACTION_OK, "CWD rnto success");
+    private static final FtpReply REPLY_GOODBYE = new FtpReply(CODE_OUT, "Goodbye...");
+    private static final FtpReply REPLY_OPENING = new FtpReply(CODE_READ_DIR, "Opening data connection.");
+    private static final FtpReply REPLY_CANT_OPEN = new FtpReply(CODE_ERROR_READ_DIR, "Can't open data connection.");
+    private static final FtpReply REPLY_TRANSFER_COMPLETE = new FtpReply(CODE_TRANSFER_COMPLETE, "Transfer complete.");
+    private static final FtpReply REPLY_TRANSFER_ABORTED = new FtpReply(CODE_TRANSFER_ABORTED,
+            "Connection closed; transfer aborted.");
+    private static final FtpReply REPLY_LOCAL_ERROR = new FtpReply(CODE_LOCAL_ERROR,
+            "Requested action aborted: local error in processing.");
 
-    /**
-     * Reflection
-     */
-    private final Class[] commandHandlerArgTypes = {String.class, StringTokenizer.class, ChannelHandlerContext.class};
+    private final ServerContext context;
+
+    public FtpHandler(ServerContext context) {
+        this.context = context;
+    }
 
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
@@ -83,208 +159,592 @@ public class FtpHandler extends SimpleChannelInboundHandler<String> {
         }
     }
 
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+        if (!(evt instanceof IdleStateEvent)) {
+            super.userEventTriggered(ctx, evt);
+            return;
+        }
+        FtpSession session = FtpSession.get(ctx.channel());
+        if (session == null || session.getCommandQueue().isHeld()) {
+            // a transfer keeps the control connection quiet, the data channel has a timeout of its own
+            return;
+        }
+        context.getMetrics().idleTimeout();
+        sendNow(REPLY_IDLE_TIMEOUT, ctx);
+        ctx.channel().close();
+    }
+
     @Override
     public void channelActive(ChannelHandlerContext ctx) throws Exception {
-        send(CODE_CONNECT_SUCCESS, "FTP server (" + Server.VERSION + ") ready.", ctx);
+        EventExecutorGroup commandGroup = context.getCommandGroup();
+        FtpSession.create(ctx.channel(), context.getConfig().getRootDir(),
+                new CommandQueue(commandGroup == null ? null : commandGroup.next()));
+        context.getMetrics().sessionOpened();
+        sendNow(REPLY_READY, ctx);
     }
 
     @Override
-    protected void channelRead0(ChannelHandlerContext ctx, String msg) throws Exception {
-        StringTokenizer st = new StringTokenizer(msg);
-        String command = st.nextToken().toLowerCase();
+    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+        // one flush for all replies of the batch: pipelined commands and multi-line replies share a syscall
+        ctx.flush();
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        FtpSession session = FtpSession.get(ctx.channel());
+        if (session != null) {
+            session.close();
+            context.getMetrics().sessionClosed();
+        }
+        super.channelInactive(ctx);
+    }
+
+    @Override
+    protected void channelRead0(ChannelHandlerContext ctx, FtpRequest request) throws Exception {
+        FtpSession session = FtpSession.get(ctx.channel());
+        request.retain();
+        if (session.getCommandQueue().add(request) >= CommandQueue.HIGH_WATER_MARK) {
+            // a client pipelining faster than the commands complete waits in its socket buffer
+            ctx.channel().config().setAutoRead(false);
+        }
+        runQueued(session, ctx);
+    }
+
+    /**
+     * Run waiting commands in order until the queue is empty or held. Cheap
+     * commands run right here on the event loop and their replies share the
+     * flush of the read batch; blocking ones go to the session's executor
+     * and hold the queue until they return.
+     */
+    private void runQueued(final FtpSession session, final ChannelHandlerContext ctx) {
+        final CommandQueue queue = session.getCommandQueue();
+        FtpRequest next;
+        while ((next = queue.poll()) != null) {
+            final FtpRequest request = next;
+            final long dequeued = System.nanoTime();
+            // time behind earlier commands of the session, a hold for a transfer included
+            context.getMetrics().recordQueueWait(dequeued - request.getReceivedNanos());
+            if (queue.size() < CommandQueue.LOW_WATER_MARK && !ctx.channel().config().isAutoRead()) {
+                ctx.channel().config().setAutoRead(true);
+            }
+            if (queue.getExecutor() == null || !BLOCKING.contains(request.getCommand())) {
+                try {
+                    execute(request, session, ctx);
+                } finally {
+                    request.release();
+                }
+                continue;
+            }
+            queue.hold();
+            queue.getExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    // time in the executor's task queue only
+                    context.getCommandStats().recordWait(System.nanoTime() - dequeued);
+                    try {
+                        execute(request, session, ctx);
+                    } finally {
+                        request.release();
+                        resume(session, ctx);
+                    }
+                }
+            });
+        }
+    }
 
-        logger.info("Line: {}", msg);
-        logger.info("Command: {}", command);
-        Object args[] = {msg, st, ctx};
+    /**
+     * Release a hold on the command queue, the next command runs once
+     * nothing holds it anymore
+     */
+    private void resume(final FtpSession session, final ChannelHandlerContext ctx) {
+        if (session.getCommandQueue().release()) {
+            ctx.executor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    runQueued(session, ctx);
+                    ctx.flush();
+                }
+            });
+        }
+    }
+
+    private void execute(FtpRequest request, FtpSession session, ChannelHandlerContext ctx) {
+        long start = System.nanoTime();
+        // the argument is only kept for the access log, the password never
+        session.beginCommand(request.getCommand(), context.getAccessLog() != null && request.hasArgument()
+                && request.getCommand() != FtpCommand.PASS ? request.getArgument() : null, start);
         try {
-            Method commandHandler = getClass().getMethod("command_" + command, commandHandlerArgTypes);
-            commandHandler.invoke(this, args);
-        } catch (InvocationTargetException e) {
-            CommandException ce = (CommandException) e.getTargetException();
-            send(ce.getCode(), ce.getText(), ctx);
-        } catch (NoSuchMethodException e) {
-            send(CODE_EXCEPTION, "'" + msg + "': command not support.", ctx);
+            switch (request.getCommand()) {
+                case USER:
+                    command_user(request, session, ctx);
+                    break;
+                case PASS:
+                    command_pass(request, session, ctx);
+                    break;
+                case QUIT:
+                    command_quit(request, session, ctx);
+                    break;
+                case SYST:
+                    command_syst(request, session, ctx);
+                    break;
+                case CLNT:
+                    command_clnt(request, session, ctx);
+                    break;
+                case NOOP:
+                    command_noop(request, session, ctx);
+                    break;
+                case PWD:
+                    command_pwd(request, session, ctx);
+                    break;
+                case CWD:
+                    command_cwd(request, session, ctx);
+                    break;
+                case TYPE:
+                    command_type(request, session, ctx);
+                    break;
+                case MODE:
+                    command_mode(request, session, ctx);
+                    break;
+                case PORT:
+                    command_port(request, session, ctx);
+                    break;
+                case PASV:
+                    command_pasv(request, session, ctx);
+                    break;
+                case EPSV:
+                    command_epsv(request, session, ctx);
+                    break;
+                case LIST:
+                    command_list(request, session, ctx);
+                    break;
+                case NLST:
+                    command_nlst(request, session, ctx);
+                    break;
+                case MLSD:
+                    command_mlsd(request, session, ctx);
+                    break;
+                case MLST:
+                    command_mlst(request, session, ctx);
+                    break;
+                case FEAT:
+                    command_feat(request, session, ctx);
+                    break;
+                case RETR:
+                    command_retr(request, session, ctx);
+                    break;
+                case STAT:
+                    command_stat(request, session, ctx);
+                    break;
+                case HASH:
+                    command_hash(request, session, ctx);
+                    break;
+                case XCRC:
+                    command_xcrc(request, session, ctx);
+                    break;
+                case XMD5:
+                    command_xmd5(request, session, ctx);
+                    break;
+                case XSHA256:
+                    command_xsha256(request, session, ctx);
+                    break;
+                case STOR:
+                    command_stor(request, session, ctx);
+                    break;
+                case APPE:
+                    command_appe(request, session, ctx);
+                    break;
+                case REST:
+                    command_rest(request, session, ctx);
+                    break;
+                case ALLO:
+                    command_allo(request, session, ctx);
+                    break;
+                case SIZE:
+                    command_size(request, session, ctx);
+                    break;
+                case MKD:
+                    command_mkd(request, session, ctx);
+                    break;
+                case RMD:
+                    command_rmd(request, session, ctx);
+                    break;
+                case DELE:
+                    command_dele(request, session, ctx);
+                    break;
+                case RNFR:
+                    command_rnfr(request, session, ctx);
+                    break;
+                case RNTO:
+                    command_rnto(request, session, ctx);
+                    break;
+                default:
+                    send(CODE_EXCEPTION, "'" + request.getArgument() + "': command not support.", ctx);
+            }
+        } catch (CommandException e) {
+            send(e.getCode(), e.getText(), ctx);
+        } catch (RuntimeException e) {
+            // an unexpected failure still gets a reply, the client would wait for it until the idle timeout
+            logger.error("Command " + request.getCommand() + " failed", e);
+            send(REPLY_LOCAL_ERROR, ctx);
         }
     }
 
     /**
      * Save username from client
      *
-     * @param line
-     * @param st
+     * @param request
+     * @param session
      * @param ctx
      * @throws CommandException
      */
-    public void command_user(String line, StringTokenizer st, ChannelHandlerContext ctx) throws CommandException {
-        username = st.nextToken();
-        logger.info("Username: {}", username);
-        send(CODE_PASSWORD_NEEDED, "Password required for " + username + ".", ctx);
+    public void command_user(FtpRequest request, FtpSession session, ChannelHandlerContext ctx) throws CommandException {
+        String username = argument(request);
+        session.setUsername(username);
+        logger.debug("Username: {}", username);
+        send(REPLY_PASSWORD_NEEDED, ctx);
     }
 
     /**
      * Check password from client
      *
-     * @param line
-     * @param st
+     * @param request
+     * @param session
      * @param ctx
      * @throws CommandException
      */
-    public void command_pass(String line, StringTokenizer st, ChannelHandlerContext ctx) throws CommandException {
+    public void command_pass(FtpRequest request, final FtpSession session, final ChannelHandlerContext ctx)
+            throws CommandException {
+        String username = session.getUsername();
         if (username == null) {
             throw new CommandException(CODE_USERNAME_NEEDED, "Login with username first.");
         }
-        if (st.hasMoreTokens()) {
-            password = st.nextToken();
+        String password;
+        if (request.hasArgument()) {
+            password = request.getArgument();
         } else {
             password = "";
         }
 
-        if (!(username.equals("morf") && password.equals("123"))) {
-            throw new CommandException(CODE_NOT_LOGGED_IN, "Login incorrect.");
+        InetAddress address = ((InetSocketAddress) ctx.channel().remoteAddress()).getAddress();
+        Future<Authenticator.Result> result = context.getAuthenticator().authenticate(username, password, address,
+                ctx.executor());
+        if (result.isDone()) {
+            // recently verified credentials, answered within the read batch
+            login(result.getNow(), session, ctx, false);
+            return;
+        }
+        session.getCommandQueue().hold();
+        result.addListener(new FutureListener<Authenticator.Result>() {
+            @Override
+            public void operationComplete(Future<Authenticator.Result> future) throws Exception {
+                try {
+                    login(future.getNow(), session, ctx, true);
+                } finally {
+                    resume(session, ctx);
+                }
+            }
+        });
+    }
+
+    private void login(Authenticator.Result result, FtpSession session, ChannelHandlerContext ctx, boolean flush) {
+        FtpReply reply;
+        switch (result) {
+            case SUCCESS:
+                session.setLoggedIn(true);
+                reply = REPLY_LOGIN_SUCCESS;
+                break;
+            case RATE_LIMITED:
+                reply = REPLY_LOGIN_RATE_LIMITED;
+                break;
+            default:
+                reply = REPLY_LOGIN_INCORRECT;
+                break;
+        }
+        if (flush) {
+            sendNow(reply, ctx);
+        } else {
+            send(reply, ctx);
         }
-        send(CODE_LOGIN_SUCCESS, "Authorization has been successfully.", ctx);
     }
 
     /**
      * Send system info
      *
-     * @param line
-     * @param st
+     * @param request
+     * @param session
      * @param ctx
      * @throws CommandException
      */
-    public void command_syst(String line, StringTokenizer st, ChannelHandlerContext ctx) throws CommandException {
-        checkLogin();
-        send(CODE_SYSTEM_TYPE, "UNIX", ctx);
+    public void command_syst(FtpRequest request, FtpSession session, ChannelHandlerContext ctx) throws CommandException {
+        checkLogin(session);
+        send(REPLY_SYSTEM_TYPE, ctx);
     }
 
     /**
      * Client info
      *
-     * @param line
-     * @param st
+     * @param request
+     * @param session
      * @param ctx
      * @throws CommandException
      */
-    public void command_clnt(String line, StringTokenizer st, ChannelHandlerContext ctx) throws CommandException {
-        checkLogin();
-        logger.debug("Client: {}", line);
-        send(CODE_COMMAND_SUCCESS, "CLNT command successful.", ctx);
+    public void command_clnt(FtpRequest request, FtpSession session, ChannelHandlerContext ctx) throws CommandException {
+        checkLogin(session);
+        logger.debug("Client: {}", request.getArgument());
+        send(REPLY_CLNT, ctx);
+    }
+
+    /**
+     * Keep connection alive
+     *
+     * @param request
+     * @param session
+     * @param ctx
+     * @throws CommandException
+     */
+    public void command_noop(FtpRequest request, FtpSession session, ChannelHandlerContext ctx) throws CommandException {
+        send(REPLY_NOOP, ctx);
     }
 
     /**
      * Print work directory
      *
-     * @param line
-     * @param st
+     * @param request
+     * @param session
      * @param ctx
      * @throws CommandException
      */
-    public void command_pwd(String line, StringTokenizer st, ChannelHandlerContext ctx) throws CommandException {
-        checkLogin();
-        send(CODE_ROOT_DIRECTORY, currentDir, ctx);
+    public void command_pwd(FtpRequest request, FtpSession session, ChannelHandlerContext ctx) throws CommandException {
+        checkLogin(session);
+        send(CODE_ROOT_DIRECTORY, session.getCurrentDir(), ctx);
     }
 
-    public void command_type(String line, StringTokenizer st, ChannelHandlerContext ctx) throws CommandException {
-        checkLogin();
-        String arg = st.nextToken().toUpperCase();
+    public void command_type(FtpRequest request, FtpSession session, ChannelHandlerContext ctx) throws CommandException {
+        checkLogin(session);
+        String arg = argument(request).toUpperCase();
+        int space = arg.indexOf(' ');
+        if (space > 0) {
+            // format control (TYPE A N) is ignored
+            arg = arg.substring(0, space);
+        }
         if (arg.length() != 1) {
             throw new CommandException(CODE_EXCEPTION, "TYPE: invalid argument '" + arg + "'");
         }
-        char code = arg.charAt(0);
-        ftpType = new FtpType(code);
-        send(CODE_COMMAND_SUCCESS, "Type set to " + code, ctx);
+        FtpType type = FtpType.valueOf(arg.charAt(0));
+        if (type == null) {
+            throw new CommandException(CODE_PARAMETER_NOT_IMPLEMENTED, "TYPE " + arg + " not implemented.");
+        }
+        session.setFtpType(type);
+        send(CODE_COMMAND_SUCCESS, "Type set to " + type.getType(), ctx);
+    }
+
+    /**
+     * Transfer mode: S (stream) or Z (deflate, draft-preston-ftpext-deflate)
+     *
+     * @param request
+     * @param session
+     * @param ctx
+     * @throws CommandException
+     */
+    public void command_mode(FtpRequest request, FtpSession session, ChannelHandlerContext ctx) throws CommandException {
+        checkLogin(session);
+        String arg = argument(request).toUpperCase();
+        if (arg.equals("S")) {
+            session.setModeZ(false);
+        } else if (arg.equals("Z")) {
+            session.setModeZ(true);
+        } else {
+            throw new CommandException(CODE_PARAMETER_NOT_IMPLEMENTED, "MODE " + arg + " not implemented.");
+        }
+        send(CODE_OK, "Mode set to " + arg + ".", ctx);
     }
 
     /**
      * Get address client
      *
-     * @param line
-     * @param st
+     * @param request
+     * @param session
      * @param ctx
      * @throws CommandException
      */
-    public void command_port(String line, StringTokenizer st, ChannelHandlerContext ctx) throws CommandException {
-        checkLogin();
-        addressClient = parsePortArgs(st.nextToken());
+    public void command_port(FtpRequest request, FtpSession session, ChannelHandlerContext ctx) throws CommandException {
+        checkLogin(session);
+        InetSocketAddress addressClient = parsePortArgs(argument(request));
         if (null == addressClient) {
             throw new CommandException(CODE_IN_PARAMETERS, "Syntax error in parameters or arguments");
         }
-        logger.info("Client host: {}, port: {}", addressClient.getAddress(), addressClient.getPort());
-        send(CODE_COMMAND_SUCCESS, "PORT command successful.", ctx);
+        logger.debug("Client host: {}, port: {}", addressClient.getAddress(), addressClient.getPort());
+        session.setDataConnection(new ActiveDataConnection(context.getTransport(), addressClient));
+        send(REPLY_PORT, ctx);
     }
 
     /**
-     * List files current directory
+     * Enter passive mode
      *
-     * @param line
-     * @param st
+     * @param request
+     * @param session
      * @param ctx
      * @throws CommandException
      */
-    public void command_list(String line, StringTokenizer st, ChannelHandlerContext ctx) throws CommandException {
-        checkLogin();
-        String path;
-        if (st.hasMoreTokens()) {
-            path = st.nextToken();
-        } else {
-            path = currentDir;
+    public void command_pasv(FtpRequest request, FtpSession session, ChannelHandlerContext ctx) throws CommandException {
+        checkLogin(session);
+        final ChannelHandlerContext control = ctx;
+        final FtpSession controlSession = session;
+        final InetAddress localAddress = ((InetSocketAddress) ctx.channel().localAddress()).getAddress();
+        if (!(localAddress instanceof Inet4Address) && context.getConfig().getPassiveAddress() == null) {
+            throw new CommandException(CODE_NOT_IMPLEMENTED, "PASV requires IPv4, use EPSV.");
         }
-        logger.info("Path: {}", path);
-        path = createNativePath(path);
-
-        Socket clientSocket = null;
-        try {
-            File dir = new File(path);
-            String fileNames[] = dir.list();
-            int numFiles = fileNames != null ? fileNames.length : 0;
-            clientSocket = new Socket(addressClient.getAddress(), addressClient.getPort());
-            OutputStreamWriter out = ftpType.getStreamWriter(clientSocket);
-            send(CODE_READ_DIR, "Opening data connection.", ctx);
-            out.write("total " + numFiles + "\n");
-            for (int i = 0; i < numFiles; i++) {
-                String fileName = fileNames[i];
-
-                File file = new File(dir, fileName);
-                listFile(file, out);
+        Future<PassiveDataConnection> bound = bindPassive(session, ctx);
+        // the next command needs the data connection, it waits for the reply
+        session.getCommandQueue().hold();
+        bound.addListener(new FutureListener<PassiveDataConnection>() {
+            @Override
+            public void operationComplete(Future<PassiveDataConnection> future) throws Exception {
+                if (!future.isSuccess()) {
+                    sendNow(REPLY_CANT_OPEN, control);
+                    resume(controlSession, control);
+                    return;
+                }
+                controlSession.setDataConnection(future.getNow());
+                int port = future.getNow().getPort();
+                String host = context.getConfig().getPassiveAddress();
+                if (host == null) {
+                    host = localAddress.getHostAddress();
+                }
+                sendNow(CODE_PASSIVE_MODE, "Entering Passive Mode (" + host.replace('.', ',') + ","
+                        + (port >> 8) + "," + (port & 0xff) + ").", control);
+                resume(controlSession, control);
             }
-            out.write("\r\n");
-            out.flush();
-
-            send(CODE_TRANSFER_COMPLETE, "Transfer complete.", ctx);
-        } catch (ConnectException e) {
-            throw new CommandException(CODE_ERROR_READ_DIR, "Can't open data connection.");
-        } catch (IOException ex) {
-            logger.error("Cannot write to client", ex);
-            throw new CommandException(CODE_NOT_FOUND, "No such directory.");
-        } finally {
-            try {
-                if (clientSocket != null) {
-                    clientSocket.close();
+        });
+    }
+
+    /**
+     * Enter extended passive mode (RFC 2428)
+     *
+     * @param request
+     * @param session
+     * @param ctx
+     * @throws CommandException
+     */
+    public void command_epsv(FtpRequest request, FtpSession session, ChannelHandlerContext ctx) throws CommandException {
+        checkLogin(session);
+        if (request.getArgument().equalsIgnoreCase("ALL")) {
+            send(REPLY_EPSV_ALL, ctx);
+            return;
+        }
+        final ChannelHandlerContext control = ctx;
+        final FtpSession controlSession = session;
+        Future<PassiveDataConnection> bound = bindPassive(session, ctx);
+        session.getCommandQueue().hold();
+        bound.addListener(new FutureListener<PassiveDataConnection>() {
+            @Override
+            public void operationComplete(Future<PassiveDataConnection> future) throws Exception {
+                if (!future.isSuccess()) {
+                    sendNow(REPLY_CANT_OPEN, control);
+                    resume(controlSession, control);
+                    return;
                 }
-            } catch (IOException e) {
+                controlSession.setDataConnection(future.getNow());
+                sendNow(CODE_EXTENDED_PASSIVE_MODE, "Entering Extended Passive Mode (|||"
+                        + future.getNow().getPort() + "|)", control);
+                resume(controlSession, control);
             }
+        });
+    }
+
+    /**
+     * List files current directory
+     *
+     * @param request
+     * @param session
+     * @param ctx
+     * @throws CommandException
+     */
+    public void command_list(FtpRequest request, FtpSession session, ChannelHandlerContext ctx) throws CommandException {
+        list(request, session, ctx, ListFormat.LIST);
+    }
+
+    /**
+     * List file names current directory
+     *
+     * @param request
+     * @param session
+     * @param ctx
+     * @throws CommandException
+     */
+    public void command_nlst(FtpRequest request, FtpSession session, ChannelHandlerContext ctx) throws CommandException {
+        list(request, session, ctx, ListFormat.NLST);
+    }
+
+    /**
+     * Machine-readable listing of a directory (RFC 3659)
+     *
+     * @param request
+     * @param session
+     * @param ctx
+     * @throws CommandException
+     */
+    public void command_mlsd(FtpRequest request, FtpSession session, ChannelHandlerContext ctx) throws CommandException {
+        list(request, session, ctx, ListFormat.MLSD);
+    }
+
+    /**
+     * Machine-readable facts of one file over the control connection
+     *
+     * @param request
+     * @param session
+     * @param ctx
+     * @throws CommandException
+     */
+    public void command_mlst(FtpRequest request, FtpSession session, ChannelHandlerContext ctx) throws CommandException {
+        checkLogin(session);
+        String path = request.hasArgument() ? request.getArgument() : session.getCurrentDir();
+        Path file = Paths.get(session.createNativePath(session.resolvePath(path)));
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(file, BasicFileAttributes.class);
+        } catch (IOException e) {
+            throw new CommandException(CODE_NOT_FOUND, path + ": no such file or directory");
         }
+        ByteBuf reply = ctx.alloc().buffer(128);
+        writeAscii(CODE_ACTION_OK + "-Listing\r\n ", reply);
+        ListFormat.MLSD.encode(path, attrs, System.currentTimeMillis(), new StringBuilder(), reply);
+        writeAscii(CODE_ACTION_OK + " End\r\n", reply);
+        replied(CODE_ACTION_OK, ctx);
+        ctx.write(reply);
+    }
+
+    /**
+     * List extensions supported by the server (RFC 2389)
+     *
+     * @param request
+     * @param session
+     * @param ctx
+     * @throws CommandException
+     */
+    public void command_feat(FtpRequest request, FtpSession session, ChannelHandlerContext ctx) throws CommandException {
+        send(REPLY_FEATURES, ctx);
     }
 
     /**
      * Get list is new dir
      *
-     * @param line
-     * @param st
+     * @param request
+     * @param session
      * @param ctx
      * @throws CommandException
      */
-    public void command_cwd(String line, StringTokenizer st, ChannelHandlerContext ctx) throws CommandException {
-        checkLogin();
-        String arg = st.nextToken();
+    public void command_cwd(FtpRequest request, FtpSession session, ChannelHandlerContext ctx) throws CommandException {
+        checkLogin(session);
+        String arg = argument(request);
         String newDir = arg;
         if (newDir.length() == 0) {
             newDir = "/";
         }
-        newDir = resolvePath(newDir);
+        newDir = session.resolvePath(newDir);
 
-        File file = new File(createNativePath(newDir));
+        File file = new File(session.createNativePath(newDir));
         if (!file.exists()) {
             throw new CommandException(CODE_NOT_FOUND, arg + ": no such directory");
         }
@@ -292,78 +752,287 @@ public class FtpHandler extends SimpleChannelInboundHandler<String> {
             throw new CommandException(CODE_NOT_FOUND, arg + ": not a directory");
         }
 
-        currentDir = newDir;
-        logger.info("New current dir: {}", currentDir);
-        send(CODE_ACTION_OK, "CWD command successful.", ctx);
+        session.setCurrentDir(newDir);
+        logger.debug("New current dir: {}", newDir);
+        send(REPLY_CWD, ctx);
     }
 
     /**
      * Send file to client
      *
-     * @param line
-     * @param st
+     * @param request
+     * @param session
      * @param ctx
      * @throws CommandException
      */
-    public void command_retr(String line, StringTokenizer st, ChannelHandlerContext ctx) throws CommandException {
-        checkLogin();
-        String path = null;
+    public void command_retr(FtpRequest request, FtpSession session, ChannelHandlerContext ctx) throws CommandException {
+        checkLogin(session);
+        long offset = takeRestartOffset(session);
+        String path = session.createNativePath(session.resolvePath(argument(request)));
+        logger.debug("Send try file: {}", path);
+
+        File file = new File(path);
+        if (!file.isFile()) {
+            throw new CommandException(CODE_NOT_FOUND, "Not a plain file.");
+        }
+        checkDataConnection(session);
+        FileCache cache = context.getFileCache();
+        if (cache != null) {
+            Path cached = file.toPath().toAbsolutePath().normalize();
+            long size = file.length();
+            if (cache.isCacheable(cached, size)) {
+                sendCached(cache, cached, file.lastModified(), size, offset, session, ctx);
+                return;
+            }
+        }
+        FileChannel fileChannel;
+        long length;
         try {
-            path = line.substring(5);
-        } catch (Exception e) {
-            throw new NoSuchElementException(e.getMessage());
+            fileChannel = new RandomAccessFile(file, "r").getChannel();
+            length = fileChannel.size();
+        } catch (FileNotFoundException e) {
+            throw new CommandException(CODE_NOT_FOUND, "No such file.");
+        } catch (IOException e) {
+            throw new CommandException(CODE_IO_ERROR, "IO exception");
+        }
+        if (offset > length) {
+            closeQuietly(fileChannel);
+            throw new CommandException(CODE_IN_PARAMETERS, "Restart offset " + offset + " is beyond end of file.");
         }
-        path = createNativePath(path);
-        logger.info("Send try file: {}", path);
+        int level = session.isModeZ()
+                ? ModeZ.level(file.getName(), fileChannel, length, context.getConfig().getDeflateLevel()) : -1;
+        boolean ascii = session.isAsciiTransfer();
+        session.setTransferredBytes(length - offset);
+        if (context.getTrafficShaping().isWriteLimited() || level >= 0 || ascii) {
+            // shapers, the deflater and the line converter only see ByteBufs
+            transfer(new ChunkedFileWriter(fileChannel, offset, length - offset, context.getDiskGroup().next()), level,
+                    ascii, session, ctx);
+        } else {
+            // zero-copy: the region is handed to sendfile and closes the file when released
+            transfer(new MessageWriter(new DefaultFileRegion(fileChannel, offset, length - offset)), -1, false,
+                    session, ctx);
+        }
+    }
 
-        FileInputStream fis = null;
-        Socket dataSocket = null;
+    /**
+     * Status of the session, or a listing over the control connection
+     * when a path is given (-R lists the whole tree)
+     *
+     * @param request
+     * @param session
+     * @param ctx
+     * @throws CommandException
+     */
+    public void command_stat(FtpRequest request, final FtpSession session, final ChannelHandlerContext ctx)
+            throws CommandException {
+        checkLogin(session);
+        if (!request.hasArgument()) {
+            replied(CODE_SYSTEM_STATUS, ctx);
+            ctx.write(encodeLines(CODE_SYSTEM_STATUS + "-FTP server status:\r\n"
+                    + " Logged in as " + session.getUsername() + "\r\n"
+                    + " TYPE: " + (session.getFtpType().isAscii() ? "ASCII" : "BINARY")
+                    + ", MODE: " + (session.isModeZ() ? "Z" : "S") + "\r\n"
+                    + CODE_SYSTEM_STATUS + " End of status\r\n", ctx));
+            return;
+        }
+        String path = listPath(request, session);
+        Path dir = Paths.get(session.createNativePath(session.resolvePath(path))).toAbsolutePath().normalize();
+        if (!Files.exists(dir)) {
+            throw new CommandException(CODE_NOT_FOUND, path + ": no such file or directory");
+        }
+        ctx.write(encodeLines(CODE_FILE_STATUS + "-Status of " + path + ":\r\n", ctx));
+        final TreeLister tree = hasListOption(request, 'R') && Files.isDirectory(dir) ? newTreeLister() : null;
+        EventExecutor executor = blockingExecutor(session, ctx);
+        ChannelFuture written;
         try {
-            File file = new File(path);
-            if (!file.isFile()) {
-                throw new CommandException(CODE_NOT_FOUND, "Not a plain file.");
+            written = tree != null
+                    ? tree.write(dir, ctx.channel(), executor)
+                    : new DirectoryLister(ListFormat.LIST, 0).write(dir, ctx.channel(), executor);
+        } catch (IOException e) {
+            send(CODE_FILE_STATUS, "End of status, directory could not be read", ctx);
+            return;
+        }
+        // the listing goes on in steps, later commands wait for its end
+        session.getCommandQueue().hold();
+        written.addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+                String end = "End of status";
+                if (!future.isSuccess()) {
+                    end = "End of status, directory could not be read";
+                } else if (tree != null && tree.isTruncated()) {
+                    end = "End of status, truncated at " + tree.getEntries() + " entries";
+                }
+                sendNow(CODE_FILE_STATUS, end, ctx);
+                resume(session, ctx);
             }
-            fis = new FileInputStream(file);
-            dataSocket = new Socket(addressClient.getAddress(), addressClient.getPort());
-            send(CODE_READ_DIR, "Opening data connection.", ctx);
-            OutputStream out = dataSocket.getOutputStream();
-            byte buf[] = new byte[1024 * 64]; //64 kb
-            int nread;
-            while ((nread = fis.read(buf)) > 0) {
-                out.write(buf, 0, nread);
+        });
+    }
+
+    /**
+     * Checksum of a file, the default algorithm of HASH is SHA-256
+     *
+     * @param request
+     * @param session
+     * @param ctx
+     * @throws CommandException
+     */
+    public void command_hash(FtpRequest request, FtpSession session, ChannelHandlerContext ctx) throws CommandException {
+        hash(request, FileHasher.Algorithm.SHA_256, true, session, ctx);
+    }
+
+    /**
+     * CRC32 of a file
+     *
+     * @param request
+     * @param session
+     * @param ctx
+     * @throws CommandException
+     */
+    public void command_xcrc(FtpRequest request, FtpSession session, ChannelHandlerContext ctx) throws CommandException {
+        hash(request, FileHasher.Algorithm.CRC32, false, session, ctx);
+    }
+
+    /**
+     * MD5 of a file
+     *
+     * @param request
+     * @param session
+     * @param ctx
+     * @throws CommandException
+     */
+    public void command_xmd5(FtpRequest request, FtpSession session, ChannelHandlerContext ctx) throws CommandException {
+        hash(request, FileHasher.Algorithm.MD5, false, session, ctx);
+    }
+
+    /**
+     * SHA-256 of a file
+     *
+     * @param request
+     * @param session
+     * @param ctx
+     * @throws CommandException
+     */
+    public void command_xsha256(FtpRequest request, FtpSession session, ChannelHandlerContext ctx)
+            throws CommandException {
+        hash(request, FileHasher.Algorithm.SHA_256, false, session, ctx);
+    }
+
+    /**
+     * Hash on the hasher threads and reply when done, the queue waits so
+     * later commands keep their order
+     */
+    private void hash(FtpRequest request, final FileHasher.Algorithm algorithm, final boolean hashReply,
+            final FtpSession session, final ChannelHandlerContext ctx) throws CommandException {
+        checkLogin(session);
+        final String arg = argument(request);
+        File file = new File(session.createNativePath(session.resolvePath(arg)));
+        if (!file.isFile()) {
+            throw new CommandException(CODE_NOT_FOUND, arg + ": not a plain file");
+        }
+        final long size = file.length();
+        Future<String> result;
+        try {
+            result = context.getFileHasher().hash(file.toPath(), algorithm, ctx.executor());
+        } catch (IOException e) {
+            throw new CommandException(CODE_NOT_FOUND, arg + ": cannot read file");
+        }
+        if (result.isDone()) {
+            replyHash(result, algorithm, hashReply, size, arg, ctx, false);
+            return;
+        }
+        session.getCommandQueue().hold();
+        result.addListener(new FutureListener<String>() {
+            @Override
+            public void operationComplete(Future<String> future) throws Exception {
+                replyHash(future, algorithm, hashReply, size, arg, ctx, true);
+                resume(session, ctx);
             }
-            out.close();
-            send(CODE_TRANSFER_COMPLETE, "Transfer complete.", ctx);
+        });
+    }
+
+    private void replyHash(Future<String> result, FileHasher.Algorithm algorithm, boolean hashReply, long size,
+            String path, ChannelHandlerContext ctx, boolean flush) {
+        int code;
+        String text;
+        if (!result.isSuccess()) {
+            logger.error("Hashing failed: " + path, result.cause());
+            code = CODE_LOCAL_ERROR;
+            text = REPLY_LOCAL_ERROR.getText();
+        } else if (hashReply) {
+            // draft-bryan-ftp-hash: algorithm, byte range, checksum, path
+            code = CODE_FILE_STATUS;
+            text = algorithm.getName() + " 0-" + size + " " + result.getNow() + " " + path;
+        } else {
+            code = CODE_ACTION_OK;
+            text = result.getNow();
+        }
+        if (flush) {
+            sendNow(code, text, ctx);
+        } else {
+            send(code, text, ctx);
+        }
+    }
+
+    /**
+     * Send a small file from the off-heap cache, loading it on a miss
+     *
+     * @param cache file cache
+     * @param file normalized absolute file
+     * @param modified mtime of the file
+     * @param size size of the file
+     * @param offset restart offset
+     * @param session
+     * @param ctx
+     * @throws CommandException
+     */
+    private void sendCached(FileCache cache, Path file, long modified, long size, long offset, FtpSession session,
+            ChannelHandlerContext ctx) throws CommandException {
+        ByteBuf data;
+        try {
+            data = cache.get(file, modified, size);
         } catch (FileNotFoundException e) {
             throw new CommandException(CODE_NOT_FOUND, "No such file.");
         } catch (IOException e) {
             throw new CommandException(CODE_IO_ERROR, "IO exception");
-        } finally {
-            try {
-                if (fis != null) {
-                    fis.close();
-                }
-                if (dataSocket != null) {
-                    dataSocket.close();
-                }
-            } catch (IOException e) {
-            }
+        }
+        if (offset > data.readableBytes()) {
+            data.release();
+            throw new CommandException(CODE_IN_PARAMETERS, "Restart offset " + offset + " is beyond end of file.");
+        }
+        // the duplicate has its own indices, skipping does not affect other readers
+        data.skipBytes((int) offset);
+        session.setTransferredBytes(data.readableBytes());
+        int level = session.isModeZ()
+                ? ModeZ.level(file.getFileName().toString(), data, context.getConfig().getDeflateLevel()) : -1;
+        transfer(new MessageWriter(data), level, session.isAsciiTransfer(), session, ctx);
+    }
+
+    /**
+     * Free the cached contents of a deleted or renamed file right away
+     *
+     * @param file native file
+     */
+    private void invalidateCached(File file) {
+        FileCache cache = context.getFileCache();
+        if (cache != null) {
+            cache.invalidate(file.toPath().toAbsolutePath().normalize());
         }
     }
 
     /**
      * Create directory
      *
-     * @param line
-     * @param st
+     * @param request
+     * @param session
      * @param ctx
      * @throws CommandException
      */
-    public void command_mkd(String line, StringTokenizer st, ChannelHandlerContext ctx) throws CommandException {
-        checkLogin();
-        String arg = st.nextToken();
-        String dirPath = resolvePath(arg);
-        File dir = new File(createNativePath(dirPath));
+    public void command_mkd(FtpRequest request, FtpSession session, ChannelHandlerContext ctx) throws CommandException {
+        checkLogin(session);
+        String arg = argument(request);
+        String dirPath = session.resolvePath(arg);
+        File dir = new File(session.createNativePath(dirPath));
         if (dir.exists()) {
             throw new CommandException(CODE_NOT_FOUND, arg + ": file exists");
         }
@@ -376,116 +1045,223 @@ public class FtpHandler extends SimpleChannelInboundHandler<String> {
     /**
      * Upload file to server
      *
-     * @param line
-     * @param st
+     * @param request
+     * @param session
      * @param ctx
      * @throws CommandException
      */
-    public void command_stor(String line, StringTokenizer st, ChannelHandlerContext ctx) throws CommandException {
-        checkLogin();
-        String path = null;
+    public void command_stor(FtpRequest request, FtpSession session, ChannelHandlerContext ctx) throws CommandException {
+        checkLogin(session);
+        long offset = takeRestartOffset(session);
+        long allocate = session.takeAllocateSize();
+        String path = session.createNativePath(session.resolvePath(argument(request)));
+        logger.debug("Upload file to: {}", path);
+
+        File file = new File(path);
+        if (offset == 0 && file.exists()) {
+            throw new CommandException(CODE_NOT_FOUND, "File exists in that location.");
+        }
+        if (offset > 0 && !file.isFile()) {
+            throw new CommandException(CODE_NOT_FOUND, "No such file to restart.");
+        }
+        checkDataConnection(session);
+        ServerConfig config = context.getConfig();
+        UploadFile upload;
         try {
-            path = line.substring(5);
-        } catch (Exception e) {
-            throw new NoSuchElementException(e.getMessage());
+            if (offset == 0) {
+                // a new file is written under a temporary name and appears complete
+                upload = UploadFile.create(file.toPath(), allocate, config.getUploadChunkBytes(),
+                        config.getUploadSyncBytes(), ctx.alloc());
+            } else {
+                upload = UploadFile.resume(file.toPath(), offset, config.getUploadChunkBytes(),
+                        config.getUploadSyncBytes(), ctx.alloc());
+            }
+        } catch (NoSuchFileException e) {
+            throw new CommandException(CODE_NOT_FOUND, "No such file.");
+        } catch (FileAlreadyExistsException e) {
+            throw new CommandException(CODE_NOT_FOUND, "File exists in that location.");
+        } catch (IllegalArgumentException e) {
+            throw new CommandException(CODE_IN_PARAMETERS, e.getMessage());
+        } catch (IOException e) {
+            throw new CommandException(CODE_IO_ERROR, "IO exception");
         }
-        path = createNativePath(path);
-        logger.info("Upload file to: {}", path);
+        receive(upload, file, session, ctx);
+    }
 
-        FileOutputStream out = null;
-        Socket dataSocket = null;
+    /**
+     * Append upload to the end of a file, the file is created if missing
+     *
+     * @param request
+     * @param session
+     * @param ctx
+     * @throws CommandException
+     */
+    public void command_appe(FtpRequest request, FtpSession session, ChannelHandlerContext ctx) throws CommandException {
+        checkLogin(session);
+        session.takeRestartOffset();
+        session.takeAllocateSize();
+        String path = session.createNativePath(session.resolvePath(argument(request)));
+        logger.debug("Append file: {}", path);
+
+        File file = new File(path);
+        if (file.isDirectory()) {
+            throw new CommandException(CODE_NOT_FOUND, "Not a plain file.");
+        }
+        checkDataConnection(session);
+        ServerConfig config = context.getConfig();
+        UploadFile upload;
         try {
-            File file = new File(path);
-            if (file.exists()) {
-                throw new CommandException(CODE_NOT_FOUND, "File exists in that location.");
-            }
-            out = new FileOutputStream(file);
-            dataSocket = new Socket(addressClient.getAddress(), addressClient.getPort());
-            send(CODE_READ_DIR, "Opening data connection.", ctx);
-
-            InputStream in = dataSocket.getInputStream();
-            int bufSize = 1024 * 64;
-            byte buf[] = new byte[bufSize];
-            int nread;
-            while ((nread = in.read(buf, 0, bufSize)) > 0) {
-                out.write(buf, 0, nread);
-            }
-            in.close();
-            send(CODE_TRANSFER_COMPLETE, "Transfer complete.", ctx);
-        } catch (FileNotFoundException e) {
+            upload = UploadFile.resume(file.toPath(), -1, config.getUploadChunkBytes(),
+                    config.getUploadSyncBytes(), ctx.alloc());
+        } catch (NoSuchFileException e) {
             throw new CommandException(CODE_NOT_FOUND, "No such file.");
         } catch (IOException e) {
             throw new CommandException(CODE_IO_ERROR, "IO exception");
-        } finally {
-            try {
-                if (out != null) {
-                    out.close();
-                }
-                if (dataSocket != null) {
-                    dataSocket.close();
-                }
-            } catch (IOException e) {
+        }
+        receive(upload, file, session, ctx);
+    }
+
+    /**
+     * Announce the size of the next STOR (RFC 959), checked against the
+     * free space and reserved when the upload starts
+     *
+     * @param request
+     * @param session
+     * @param ctx
+     * @throws CommandException
+     */
+    public void command_allo(FtpRequest request, FtpSession session, ChannelHandlerContext ctx) throws CommandException {
+        checkLogin(session);
+        String arg = argument(request).trim();
+        // "ALLO size [R record-size]", records do not apply to stream mode
+        int space = arg.indexOf(' ');
+        long size;
+        try {
+            size = Long.parseLong(space < 0 ? arg : arg.substring(0, space));
+        } catch (NumberFormatException e) {
+            size = -1;
+        }
+        if (size < 0) {
+            throw new CommandException(CODE_IN_PARAMETERS, "ALLO: invalid size '" + arg + "'");
+        }
+        try {
+            FileStore store = Files.getFileStore(Paths.get(session.createNativePath(session.getCurrentDir())));
+            if (store.getUsableSpace() < size) {
+                throw new CommandException(CODE_NO_SPACE, "Insufficient storage space for " + size + " bytes.");
             }
+        } catch (IOException e) {
+            throw new CommandException(CODE_LOCAL_ERROR, "Free space unknown.");
         }
+        session.setAllocateSize(size);
+        send(CODE_OK, "ALLO command successful.", ctx);
+    }
+
+    /**
+     * Set offset of the next RETR or STOR
+     *
+     * @param request
+     * @param session
+     * @param ctx
+     * @throws CommandException
+     */
+    public void command_rest(FtpRequest request, FtpSession session, ChannelHandlerContext ctx) throws CommandException {
+        checkLogin(session);
+        String arg = argument(request);
+        long offset;
+        try {
+            offset = Long.parseLong(arg.trim());
+        } catch (NumberFormatException e) {
+            offset = -1;
+        }
+        if (offset < 0) {
+            throw new CommandException(CODE_IN_PARAMETERS, "REST: invalid offset '" + arg + "'");
+        }
+        session.setRestartOffset(offset);
+        send(CODE_ACTION_PENDING, "Restarting at " + offset + ". Send STOR or RETR to initiate transfer.", ctx);
+    }
+
+    /**
+     * Size of a file in bytes (RFC 3659)
+     *
+     * @param request
+     * @param session
+     * @param ctx
+     * @throws CommandException
+     */
+    public void command_size(FtpRequest request, FtpSession session, ChannelHandlerContext ctx) throws CommandException {
+        checkLogin(session);
+        String arg = argument(request);
+        File file = new File(session.createNativePath(session.resolvePath(arg)));
+        if (!file.isFile()) {
+            throw new CommandException(CODE_NOT_FOUND, arg + ": not a plain file");
+        }
+        send(CODE_FILE_STATUS, Long.toString(file.length()), ctx);
     }
 
     /**
      * Remove file in server
      *
-     * @param line
-     * @param st
+     * @param request
+     * @param session
      * @param ctx
      * @throws CommandException
      */
-    public void command_dele(String line, StringTokenizer st, ChannelHandlerContext ctx) throws CommandException {
-        checkLogin();
-        String arg = st.nextToken();
-        String filePath = resolvePath(arg);
-        File file = new File(createNativePath(filePath));
+    public void command_dele(FtpRequest request, FtpSession session, ChannelHandlerContext ctx) throws CommandException {
+        checkLogin(session);
+        String arg = argument(request);
+        String filePath = session.resolvePath(arg);
+        File file = new File(session.createNativePath(filePath));
         if (!file.exists()) {
             throw new CommandException(CODE_NOT_FOUND, arg + ": file does not exist");
         }
         if (!file.delete()) {
             throw new CommandException(CODE_NOT_FOUND, arg + ": could not delete file");
         }
-        send(CODE_ACTION_OK, "DELE command successful.", ctx);
+        invalidateCached(file);
+        send(REPLY_DELE, ctx);
     }
 
     /**
      * Pending file to rename
      *
-     * @param line
-     * @param st
+     * @param request
+     * @param session
      * @param ctx
      * @throws CommandException
      */
-    public void command_rnfr(String line, StringTokenizer st, ChannelHandlerContext ctx) throws CommandException {
-        checkLogin();
-        String arg = st.nextToken();
-        String filePath = resolvePath(arg);
-        renameFile = new File(createNativePath(filePath));
+    public void command_rnfr(FtpRequest request, FtpSession session, ChannelHandlerContext ctx) throws CommandException {
+        checkLogin(session);
+        String arg = argument(request);
+        String filePath = session.resolvePath(arg);
+        File renameFile = new File(session.createNativePath(filePath));
         if (!renameFile.exists()) {
             throw new CommandException(CODE_NOT_FOUND, arg + ": file does not exist");
         }
-        send(CODE_ACTION_PENDING, "Pending file", ctx);
+        session.setRenameFile(renameFile);
+        send(REPLY_RNFR, ctx);
     }
 
     /**
      * Rename file
      *
-     * @param line
-     * @param st
+     * @param request
+     * @param session
      * @param ctx
      * @throws CommandException
      */
-    public void command_rnto(String line, StringTokenizer st, ChannelHandlerContext ctx) throws CommandException {
-        checkLogin();
-        String arg = st.nextToken();
-        String filePath = resolvePath(arg);
-        File newFile = new File(createNativePath(filePath));
+    public void command_rnto(FtpRequest request, FtpSession session, ChannelHandlerContext ctx) throws CommandException {
+        checkLogin(session);
+        String arg = argument(request);
+        String filePath = session.resolvePath(arg);
+        File newFile = new File(session.createNativePath(filePath));
+        File renameFile = session.getRenameFile();
+        if (renameFile == null) {
+            throw new CommandException(CODE_USERNAME_NEEDED, "RNFR required first.");
+        }
         if (renameFile.renameTo(newFile)) {
-            renameFile = null;
-            send(CODE_ACTION_OK, "CWD rnto success", ctx);
+            session.setRenameFile(null);
+            invalidateCached(renameFile);
+            send(REPLY_RNTO, ctx);
         } else {
             throw new CommandException(CODE_NOT_FOUND, arg + ": file does not exist");
         }
@@ -494,31 +1270,32 @@ public class FtpHandler extends SimpleChannelInboundHandler<String> {
     /**
      * Connection close
      *
-     * @param line
-     * @param st
+     * @param request
+     * @param session
      * @param ctx
      * @throws CommandException
      */
-    public void handle_quit(String line, StringTokenizer st, ChannelHandlerContext ctx) throws CommandException {
-        username = null;
-        password = null;
-        send(CODE_OUT, "Goodbye...", ctx);
+    public void command_quit(FtpRequest request, FtpSession session, ChannelHandlerContext ctx) throws CommandException {
+        session.setUsername(null);
+        session.getCommandQueue().close();
+        // close drops unflushed writes, the goodbye and earlier replies go out first
+        sendNow(REPLY_GOODBYE, ctx);
         ctx.channel().close();
     }
 
     /**
      * Detele directory
      *
-     * @param line
-     * @param st
+     * @param request
+     * @param session
      * @param ctx
      * @throws CommandException
      */
-    public void command_rmd(String line, StringTokenizer st, ChannelHandlerContext ctx) throws CommandException {
-        checkLogin();
-        String arg = st.nextToken();
-        String dirPath = resolvePath(arg);
-        File dir = new File(createNativePath(dirPath));
+    public void command_rmd(FtpRequest request, FtpSession session, ChannelHandlerContext ctx) throws CommandException {
+        checkLogin(session);
+        String arg = argument(request);
+        String dirPath = session.resolvePath(arg);
+        File dir = new File(session.createNativePath(dirPath));
         if (!dir.exists()) {
             throw new CommandException(CODE_NOT_FOUND, arg + ": directory does not exist");
         }
@@ -528,83 +1305,116 @@ public class FtpHandler extends SimpleChannelInboundHandler<String> {
         if (!dir.delete()) {
             throw new CommandException(CODE_NOT_FOUND, arg + ": could not remove directory");
         }
-        send(CODE_ACTION_OK, "RMD command successful.", ctx);
+        send(REPLY_RMD, ctx);
     }
 
-    private String resolvePath(String path) {
-        if (path.charAt(0) != '/') {
-            path = currentDir + "/" + path;
+    /**
+     * Stream a listing over the data channel, directories are served from
+     * the listing cache when possible
+     */
+    private void list(FtpRequest request, FtpSession session, ChannelHandlerContext ctx, final ListFormat format)
+            throws CommandException {
+        checkLogin(session);
+        String path = listPath(request, session);
+        final Path dir = Paths.get(session.createNativePath(session.resolvePath(path))).toAbsolutePath().normalize();
+        boolean directory = Files.isDirectory(dir);
+        if (!directory && !Files.exists(dir)) {
+            throw new CommandException(CODE_NOT_FOUND, path + ": no such file or directory");
         }
-        StringTokenizer pathSt = new StringTokenizer(path, "/");
-        Stack segments = new Stack();
-        while (pathSt.hasMoreTokens()) {
-            String segment = pathSt.nextToken();
-            if (segment.equals("..")) {
-                if (!segments.empty()) {
-                    segments.pop();
+        if (!directory && format == ListFormat.MLSD) {
+            throw new CommandException(CODE_IN_PARAMETERS, path + ": not a directory");
+        }
+        checkDataConnection(session);
+        // listings are written in steps on the executor, none waits for a slow client
+        final EventExecutor executor = blockingExecutor(session, ctx);
+        if (directory && format == ListFormat.LIST && hasListOption(request, 'R')) {
+            // the whole tree in one transfer, never cached
+            transfer(new DataWriter() {
+                @Override
+                public ChannelFuture write(Channel channel) throws Exception {
+                    TreeLister lister = newTreeLister();
+                    return lister.completion(lister.write(dir, channel, executor), channel);
                 }
-            } else if (segment.equals(".")) {
-                // skip
-            } else {
-                segments.push(segment);
+
+                @Override
+                public void discard() {
+                }
+            }, session, ctx);
+            return;
+        }
+        final ListingCache cache = directory ? context.getListingCache() : null;
+        if (cache != null) {
+            byte[] cached = cache.get(dir, format.ordinal());
+            if (cached != null) {
+                transfer(new MessageWriter(Unpooled.wrappedBuffer(cached)), session, ctx);
+                return;
             }
         }
+        transfer(new DataWriter() {
+            @Override
+            public ChannelFuture write(Channel channel) throws Exception {
+                if (cache == null) {
+                    return new DirectoryLister(format, 0).write(dir, channel, executor);
+                }
+                final long stamp = cache.stamp(dir);
+                final long modified = dir.toFile().lastModified();
+                final DirectoryLister lister = new DirectoryLister(format, (int) cache.getMaxEntryBytes());
+                ChannelFuture written = null;
+                try {
+                    written = lister.write(dir, channel, executor);
+                } finally {
+                    if (written == null) {
+                        // also without a copy, the directory is not watched for nothing
+                        cache.put(dir, format.ordinal(), modified, stamp, null);
+                    }
+                }
+                written.addListener(new ChannelFutureListener() {
+                    @Override
+                    public void operationComplete(ChannelFuture future) throws Exception {
+                        cache.put(dir, format.ordinal(), modified, stamp, future.isSuccess() ? lister.getCopy() : null);
+                    }
+                });
+                return written;
+            }
 
-        StringBuilder pathBuf = new StringBuilder("/");
-        Enumeration segmentsEn = segments.elements();
-        while (segmentsEn.hasMoreElements()) {
-            pathBuf.append(segmentsEn.nextElement());
-            if (segmentsEn.hasMoreElements()) {
-                pathBuf.append("/");
+            @Override
+            public void discard() {
             }
-        }
-        return pathBuf.toString();
+        }, session, ctx);
     }
 
-    private void listFile(File file, OutputStreamWriter out) throws IOException {
-        Date date = new Date(file.lastModified());
-        SimpleDateFormat dateFormat = new SimpleDateFormat("MMM dd hh:mm", new Locale("en", "US"));
-        String dateStr = dateFormat.format(date);
-
-        long size = file.length();
-        String sizeStr = Long.toString(size);
-        int sizePadLength = Math.max(8 - sizeStr.length(), 0);
-        String sizeField = pad(sizePadLength) + sizeStr;
-
-        out.write(file.isDirectory() ? 'd' : '-');
-        out.write("rwxrwxrwx");
-        out.write(" ");
-        out.write("1");
-        out.write(" ");
-        out.write("ftp"); //owner:group
-        out.write(" ");
-        out.write("ftp"); //group
-        out.write(" ");
-        out.write(sizeField);
-        out.write(" ");
-        out.write(dateStr);
-        out.write(" ");
-        out.write(file.getName());
-        out.write('\n');
+    private TreeLister newTreeLister() {
+        ServerConfig config = context.getConfig();
+        return new TreeLister(context.getListPool(), ListFormat.LIST, config.getListMaxDepth(),
+                config.getListMaxEntries());
     }
 
-    private static String pad(int length) {
-        StringBuilder buf = new StringBuilder();
-        for (int i = 0; i < length; i++) {
-            buf.append(' ');
+    /**
+     * @return true if the ls options before the path of LIST/STAT contain the letter
+     */
+    private static boolean hasListOption(FtpRequest request, char option) {
+        String arg = request.hasArgument() ? request.getArgument().trim() : "";
+        while (arg.startsWith("-")) {
+            int space = arg.indexOf(' ');
+            String options = space < 0 ? arg : arg.substring(0, space);
+            if (options.indexOf(option) > 0) {
+                return true;
+            }
+            arg = space < 0 ? "" : arg.substring(space + 1).trim();
         }
-        return buf.toString();
+        return false;
     }
 
-    private String createNativePath(String ftpPath) {
-        String path;
-        if (ftpPath.charAt(0) == '/') {
-            path = baseDir + ftpPath;
-        } else {
-            path = baseDir + currentDir + "/" + ftpPath;
+    /**
+     * Path argument of LIST, ls options like "-la" are skipped
+     */
+    private static String listPath(FtpRequest request, FtpSession session) {
+        String path = request.hasArgument() ? request.getArgument().trim() : "";
+        while (path.startsWith("-")) {
+            int space = path.indexOf(' ');
+            path = space < 0 ? "" : path.substring(space + 1).trim();
         }
-        logger.info("Absolute path: {}", path);
-        return path;
+        return path.isEmpty() ? session.getCurrentDir() : path;
     }
 
     private static InetSocketAddress parsePortArgs(String portArgs) {
@@ -637,16 +1447,322 @@ public class FtpHandler extends SimpleChannelInboundHandler<String> {
         return new InetSocketAddress(inetAddress, port);
     }
 
-    private void checkLogin() throws CommandException {
-        if (username == null || password == null) {
+    private Future<PassiveDataConnection> bindPassive(FtpSession session, ChannelHandlerContext ctx) {
+        session.setDataConnection(null);
+        InetAddress localAddress = ((InetSocketAddress) ctx.channel().localAddress()).getAddress();
+        InetAddress remoteAddress = ((InetSocketAddress) ctx.channel().remoteAddress()).getAddress();
+        return PassiveDataConnection.bind(context, localAddress, remoteAddress, ctx.channel().eventLoop());
+    }
+
+    /**
+     * Offset set by REST for this transfer. It counts bytes of the file, in
+     * TYPE A the client counts converted ones, so a restart is refused
+     * there like vsftpd and ProFTPD do.
+     */
+    private static long takeRestartOffset(FtpSession session) throws CommandException {
+        long offset = session.takeRestartOffset();
+        if (offset > 0 && session.isAsciiTransfer()) {
+            throw new CommandException(CODE_PARAMETER_NOT_IMPLEMENTED, "REST not supported in ASCII mode.");
+        }
+        return offset;
+    }
+
+    private static void checkDataConnection(FtpSession session) throws CommandException {
+        if (!session.hasDataConnection()) {
+            throw new CommandException(CODE_ERROR_READ_DIR, "Use PORT or PASV first.");
+        }
+    }
+
+    /**
+     * Send generated content (listings, already CRLF), compressed at the
+     * configured level in MODE Z
+     *
+     * @param writer content, discarded if the channel cannot be opened
+     * @param session
+     * @param ctx
+     * @throws CommandException
+     */
+    private void transfer(DataWriter writer, FtpSession session, ChannelHandlerContext ctx) throws CommandException {
+        transfer(writer, session.isModeZ() ? context.getConfig().getDeflateLevel() : -1, false, session, ctx);
+    }
+
+    /**
+     * Send content over a new data channel, reply 150 when it is open and
+     * 226 once the last write completed and the channel is closed
+     *
+     * @param writer content, discarded if the channel cannot be opened
+     * @param level deflate level of MODE Z, -1 to send as is
+     * @param ascii convert LF to CRLF (TYPE A)
+     * @param session
+     * @param ctx
+     * @throws CommandException
+     */
+    private void transfer(final DataWriter writer, final int level, final boolean ascii, final FtpSession session,
+            final ChannelHandlerContext ctx) throws CommandException {
+        if (!session.hasDataConnection()) {
+            writer.discard();
+            checkDataConnection(session);
+        }
+        // later commands wait for the final reply of the transfer
+        session.getCommandQueue().hold();
+        openDataChannel(session, ctx).addListener(new FutureListener<Channel>() {
+            @Override
+            public void operationComplete(Future<Channel> future) throws Exception {
+                if (!future.isSuccess()) {
+                    writer.discard();
+                    sendNow(REPLY_CANT_OPEN, ctx);
+                    resume(session, ctx);
+                    return;
+                }
+                final Channel dataChannel = future.getNow();
+                final long start = System.nanoTime();
+                context.getTrafficShaping().attach(dataChannel, session.getUsername());
+                if (level >= 0) {
+                    ModeZ.deflate(dataChannel, level);
+                }
+                final AsciiConversion.LineEncoder encoder = ascii ? AsciiConversion.toNetwork(dataChannel) : null;
+                DataInboundGate.open(dataChannel);
+                sendNow(REPLY_OPENING, ctx);
+                // the writer reads from disk, keep it off the I/O thread
+                blockingExecutor(session, ctx).execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        ChannelFuture written;
+                        try {
+                            written = writer.write(dataChannel);
+                        } catch (Exception e) {
+                            logger.error("Transfer failed", e);
+                            context.getMetrics().recordTransfer(false, System.nanoTime() - start, false);
+                            dataChannel.close();
+                            sendNow(REPLY_LOCAL_ERROR, ctx);
+                            resume(session, ctx);
+                            return;
+                        }
+                        written.addListener(new ChannelFutureListener() {
+                            @Override
+                            public void operationComplete(final ChannelFuture written) throws Exception {
+                                // closing flushes the zlib trailer of MODE Z, reply after it is out
+                                dataChannel.close().addListener(new ChannelFutureListener() {
+                                    @Override
+                                    public void operationComplete(ChannelFuture future) throws Exception {
+                                        context.getMetrics().recordTransfer(false, System.nanoTime() - start,
+                                                written.isSuccess());
+                                        if (writer instanceof MessageWriter) {
+                                            context.getMetrics().recordFileRegionSent(
+                                                    ((MessageWriter) writer).getFileRegionBytes());
+                                        }
+                                        if (encoder != null) {
+                                            // bytes on the wire, the file is shorter by the added CRs
+                                            session.setTransferredBytes(encoder.getEncodedBytes());
+                                        }
+                                        if (written.isSuccess()) {
+                                            sendNow(REPLY_TRANSFER_COMPLETE, ctx);
+                                        } else {
+                                            sendNow(REPLY_TRANSFER_ABORTED, ctx);
+                                        }
+                                        resume(session, ctx);
+                                    }
+                                });
+                            }
+                        });
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Receive data channel content into file, reply 150 when the channel is
+     * open and 226 once everything is on disk
+     *
+     * @param upload destination, committed or aborted by this method
+     * @param file native file, dropped from the file cache once written
+     * @param session
+     * @param ctx
+     * @throws CommandException
+     */
+    private void receive(final UploadFile upload, final File file, final FtpSession session,
+            final ChannelHandlerContext ctx) throws CommandException {
+        if (!session.hasDataConnection()) {
+            upload.abort();
+            checkDataConnection(session);
+        }
+        final EventExecutor diskExecutor = context.getDiskGroup().next();
+        session.getCommandQueue().hold();
+        openDataChannel(session, ctx).addListener(new FutureListener<Channel>() {
+            @Override
+            public void operationComplete(Future<Channel> future) throws Exception {
+                if (!future.isSuccess()) {
+                    diskExecutor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            upload.abort();
+                        }
+                    });
+                    sendNow(REPLY_CANT_OPEN, ctx);
+                    resume(session, ctx);
+                    return;
+                }
+                sendNow(REPLY_OPENING, ctx);
+                final long start = System.nanoTime();
+                Promise<Long> received = ctx.channel().eventLoop().newPromise();
+                received.addListener(new FutureListener<Long>() {
+                    @Override
+                    public void operationComplete(Future<Long> future) throws Exception {
+                        context.getMetrics().recordTransfer(true, System.nanoTime() - start, future.isSuccess());
+                        invalidateCached(file);
+                        if (future.isSuccess()) {
+                            session.setTransferredBytes(future.getNow());
+                            sendNow(REPLY_TRANSFER_COMPLETE, ctx);
+                        } else if (future.cause() instanceof FileAlreadyExistsException) {
+                            // another session stored the same name first, its file is kept
+                            sendNow(CODE_IO_ERROR, "File was created in that location during the upload.", ctx);
+                        } else {
+                            logger.error("Upload failed", future.cause());
+                            sendNow(REPLY_LOCAL_ERROR, ctx);
+                        }
+                        resume(session, ctx);
+                    }
+                });
+                Channel dataChannel = future.getNow();
+                context.getTrafficShaping().attach(dataChannel, session.getUsername());
+                if (session.isModeZ()) {
+                    ModeZ.inflate(dataChannel);
+                }
+                if (session.isAsciiTransfer()) {
+                    AsciiConversion.fromNetwork(dataChannel);
+                }
+                ChannelPipeline p = dataChannel.pipeline();
+                p.addBefore(p.context(DataChannelHandler.INSTANCE).name(), "receiver",
+                        new FileReceiveHandler(upload, diskExecutor, received));
+                DataInboundGate.open(dataChannel);
+            }
+        });
+    }
+
+    /**
+     * @return executor for blocking work of the session, the event loop if commands run there
+     */
+    private static EventExecutor blockingExecutor(FtpSession session, ChannelHandlerContext ctx) {
+        EventExecutor executor = session.getCommandQueue().getExecutor();
+        return executor != null ? executor : ctx.executor();
+    }
+
+    private Future<Channel> openDataChannel(FtpSession session, ChannelHandlerContext ctx) {
+        final long start = System.nanoTime();
+        Future<Channel> opened = session.takeDataConnection().open(ctx.channel().eventLoop());
+        opened.addListener(new FutureListener<Channel>() {
+            @Override
+            public void operationComplete(Future<Channel> future) throws Exception {
+                if (future.isSuccess()) {
+                    context.getMetrics().recordDataConnectionSetup(System.nanoTime() - start);
+                    int idleSeconds = context.getConfig().getDataIdleSeconds();
+                    if (idleSeconds > 0) {
+                        future.getNow().pipeline().addFirst("idle", new DataIdleHandler(idleSeconds));
+                    }
+                }
+            }
+        });
+        return opened;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+        }
+    }
+
+    private static String argument(FtpRequest request) throws CommandException {
+        if (!request.hasArgument()) {
+            throw new CommandException(CODE_IN_PARAMETERS, "Syntax error in parameters or arguments");
+        }
+        return request.getArgument();
+    }
+
+    private static void checkLogin(FtpSession session) throws CommandException {
+        if (!session.isLoggedIn()) {
             throw new CommandException(CODE_NOT_LOGGED_IN, "Please login with username and password.");
         }
     }
 
-    private static void send(int code, String response, ChannelHandlerContext ctx) {
-        logger.info("Code: {}, Text: {}", code, response);
-        String line = code + " " + response + "\r\n";
-        byte[] data = line.getBytes(ASCII);
-        ctx.writeAndFlush(Unpooled.wrappedBuffer(data));
+    private static void writeAscii(String text, ByteBuf out) {
+        for (int i = 0; i < text.length(); i++) {
+            out.writeByte(text.charAt(i));
+        }
+    }
+
+    /**
+     * Count a reply. A final one completes the current command: its latency
+     * runs until here, also for commands finishing on other executors, and
+     * it goes to the access log
+     */
+    private void replied(int code, ChannelHandlerContext ctx) {
+        context.getMetrics().recordReply(code);
+        if (code < 200) {
+            return;
+        }
+        FtpSession session = FtpSession.get(ctx.channel());
+        FtpCommand command = session == null ? null : session.takeLoggedCommand();
+        if (command == null) {
+            return;
+        }
+        long nanos = System.nanoTime() - session.getLoggedStart();
+        context.getMetrics().recordCommand(command, nanos);
+        AccessLog accessLog = context.getAccessLog();
+        if (accessLog == null) {
+            return;
+        }
+        Channel channel = ctx.channel();
+        InetAddress client = channel.remoteAddress() instanceof InetSocketAddress
+                ? ((InetSocketAddress) channel.remoteAddress()).getAddress() : null;
+        accessLog.log(session.getId(), client, session.getLoggedUser(), command.name(),
+                session.getLoggedArgument(), code, session.getTransferredBytes(), nanos / 1000);
+    }
+
+    /**
+     * Queue a reply of the current command, flushed once per read batch in
+     * {@link #channelReadComplete}
+     */
+    private void send(FtpReply reply, ChannelHandlerContext ctx) {
+        replied(reply.getCode(), ctx);
+        ctx.write(reply.encoded());
+    }
+
+    private void send(int code, String response, ChannelHandlerContext ctx) {
+        replied(code, ctx);
+        ctx.write(encode(code, response, ctx));
+    }
+
+    /**
+     * Reply from a future listener or outside a read, nothing else would
+     * flush it
+     */
+    private void sendNow(FtpReply reply, ChannelHandlerContext ctx) {
+        replied(reply.getCode(), ctx);
+        ctx.writeAndFlush(reply.encoded());
+    }
+
+    private void sendNow(int code, String response, ChannelHandlerContext ctx) {
+        replied(code, ctx);
+        ctx.writeAndFlush(encode(code, response, ctx));
+    }
+
+    /**
+     * @param text complete reply lines with their CRLF
+     */
+    private static ByteBuf encodeLines(String text, ChannelHandlerContext ctx) {
+        ByteBuf reply = ctx.alloc().buffer(text.length() + 16);
+        ByteBufUtil.writeUtf8(reply, text);
+        return reply;
+    }
+
+    private static ByteBuf encode(int code, String response, ChannelHandlerContext ctx) {
+        ByteBuf reply = ctx.alloc().buffer(response.length() + 8);
+        reply.writeByte('0' + code / 100).writeByte('0' + code / 10 % 10).writeByte('0' + code % 10);
+        reply.writeByte(' ');
+        ByteBufUtil.writeUtf8(reply, response);
+        reply.writeByte('\r').writeByte('\n');
+        return reply;
     }
 }
@@ -0,0 +1,311 @@
+package com.jetsnegovik.ftp.server.handlers;
+
+import com.jetsnegovik.ftp.server.data.DataConnection;
+import com.jetsnegovik.ftp.server.data.PassiveDataConnection;
+import com.jetsnegovik.ftp.server.utils.FtpCommand;
+import com.jetsnegovik.ftp.server.utils.FtpType;
+import io.netty.channel.Channel;
+import io.netty.util.AttributeKey;
+import java.io.File;
+import java.util.Enumeration;
+import java.util.Stack;
+import java.util.StringTokenizer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * State of one control connection, kept in a channel attribute so that a
+ * single {@link FtpHandler} serves every connection
+ *
+ * @author Вадим
+ */
+public class FtpSession {
+
+    private static final AttributeKey<FtpSession> KEY = AttributeKey.valueOf("ftpSession");
+    private static final AtomicLong IDS = new AtomicLong();
+    private final long id = IDS.incrementAndGet();
+    private final String baseDir;
+    // commands run on an executor thread, transfer callbacks on I/O threads
+    private volatile String username;
+    private volatile boolean loggedIn;
+    private volatile String currentDir = "/";
+    // ASCII is the RFC 959 default, line ends are converted only after an explicit TYPE A
+    private volatile FtpType ftpType = FtpType.ASCII;
+    private volatile boolean typeSet;
+    private volatile DataConnection dataConnection;
+    private volatile File renameFile;
+    private volatile long restartOffset;
+    private volatile long allocateSize;
+    // command waiting for its final reply, for latency metrics and the access log
+    private volatile FtpCommand loggedCommand;
+    private volatile String loggedArgument;
+    private volatile String loggedUser;
+    private volatile long loggedStart;
+    private volatile long transferredBytes = -1;
+    private volatile boolean modeZ;
+    private CommandQueue commandQueue;
+
+    public FtpSession(String baseDir) {
+        this.baseDir = baseDir;
+    }
+
+    public static FtpSession create(Channel channel, String baseDir, CommandQueue commandQueue) {
+        FtpSession session = new FtpSession(baseDir);
+        session.commandQueue = commandQueue;
+        channel.attr(KEY).set(session);
+        return session;
+    }
+
+    public static FtpSession get(Channel channel) {
+        return channel.attr(KEY).get();
+    }
+
+    /**
+     * @return number of the session since the server started
+     */
+    public long getId() {
+        return id;
+    }
+
+    public CommandQueue getCommandQueue() {
+        return commandQueue;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    /**
+     * Start a new login, drops the previous authorization
+     *
+     * @param username
+     */
+    public void setUsername(String username) {
+        this.username = username;
+        this.loggedIn = false;
+    }
+
+    public boolean isLoggedIn() {
+        return loggedIn;
+    }
+
+    public void setLoggedIn(boolean loggedIn) {
+        this.loggedIn = loggedIn;
+    }
+
+    public String getCurrentDir() {
+        return currentDir;
+    }
+
+    public void setCurrentDir(String currentDir) {
+        this.currentDir = currentDir;
+    }
+
+    public FtpType getFtpType() {
+        return ftpType;
+    }
+
+    /**
+     * @param ftpType type requested by the client with TYPE
+     */
+    public void setFtpType(FtpType ftpType) {
+        this.ftpType = ftpType;
+        this.typeSet = true;
+    }
+
+    /**
+     * Clients that never send TYPE expect files byte for byte, so the
+     * default type does not convert anything
+     *
+     * @return true if line ends of files are converted on transfers
+     */
+    public boolean isAsciiTransfer() {
+        return typeSet && ftpType.isAscii();
+    }
+
+    /**
+     * @return true after MODE Z, data channels carry a zlib stream
+     */
+    public boolean isModeZ() {
+        return modeZ;
+    }
+
+    public void setModeZ(boolean modeZ) {
+        this.modeZ = modeZ;
+    }
+
+    public File getRenameFile() {
+        return renameFile;
+    }
+
+    public void setRenameFile(File renameFile) {
+        this.renameFile = renameFile;
+    }
+
+    public void setRestartOffset(long restartOffset) {
+        this.restartOffset = restartOffset;
+    }
+
+    /**
+     * Offset of the next transfer set by REST, it applies only once
+     *
+     * @return offset or 0
+     */
+    public long takeRestartOffset() {
+        long offset = restartOffset;
+        restartOffset = 0;
+        return offset;
+    }
+
+    public void setAllocateSize(long allocateSize) {
+        this.allocateSize = allocateSize;
+    }
+
+    /**
+     * Size of the next upload announced by ALLO, it applies only once
+     *
+     * @return size or 0
+     */
+    public long takeAllocateSize() {
+        long size = allocateSize;
+        allocateSize = 0;
+        return size;
+    }
+
+    /**
+     * Start of a command, measured and logged with its final reply
+     *
+     * @param command verb
+     * @param argument argument as logged, null if none
+     * @param startNanos {@link System#nanoTime()} when the command started
+     */
+    public void beginCommand(FtpCommand command, String argument, long startNanos) {
+        loggedArgument = argument;
+        loggedUser = username;
+        loggedStart = startNanos;
+        transferredBytes = -1;
+        loggedCommand = command;
+    }
+
+    /**
+     * @return command waiting for its final reply, null once it was taken
+     */
+    public FtpCommand takeLoggedCommand() {
+        FtpCommand command = loggedCommand;
+        loggedCommand = null;
+        return command;
+    }
+
+    public String getLoggedArgument() {
+        return loggedArgument;
+    }
+
+    /**
+     * @return user of the session now, or when the command started if it logged out
+     */
+    public String getLoggedUser() {
+        String user = username;
+        return user != null ? user : loggedUser;
+    }
+
+    public long getLoggedStart() {
+        return loggedStart;
+    }
+
+    public long getTransferredBytes() {
+        return transferredBytes;
+    }
+
+    /**
+     * @param transferredBytes bytes of the file moved by the current command
+     */
+    public void setTransferredBytes(long transferredBytes) {
+        this.transferredBytes = transferredBytes;
+    }
+
+    public boolean hasDataConnection() {
+        return dataConnection != null;
+    }
+
+    /**
+     * Replace data connection, the previous one is closed
+     *
+     * @param connection new connection or null
+     */
+    public void setDataConnection(DataConnection connection) {
+        if (dataConnection != null && dataConnection != connection) {
+            dataConnection.close();
+        }
+        dataConnection = connection;
+    }
+
+    /**
+     * Data connection for the next transfer. A passive connection accepts
+     * only one client, so it is handed out once.
+     *
+     * @return connection or null
+     */
+    public DataConnection takeDataConnection() {
+        DataConnection connection = dataConnection;
+        if (connection instanceof PassiveDataConnection) {
+            dataConnection = null;
+        }
+        return connection;
+    }
+
+    public void close() {
+        setDataConnection(null);
+        if (commandQueue != null) {
+            commandQueue.close();
+        }
+    }
+
+    /**
+     * Resolve path against the current directory and drop "." and ".."
+     *
+     * @param path absolute or relative ftp path
+     * @return absolute normalized ftp path
+     */
+    public String resolvePath(String path) {
+        if (path.charAt(0) != '/') {
+            path = currentDir + "/" + path;
+        }
+        StringTokenizer pathSt = new StringTokenizer(path, "/");
+        Stack<String> segments = new Stack<String>();
+        while (pathSt.hasMoreTokens()) {
+            String segment = pathSt.nextToken();
+            if (segment.equals("..")) {
+                if (!segments.empty()) {
+                    segments.pop();
+                }
+            } else if (segment.equals(".")) {
+                // skip
+            } else {
+                segments.push(segment);
+            }
+        }
+
+        StringBuilder pathBuf = new StringBuilder("/");
+        Enumeration<String> segmentsEn = segments.elements();
+        while (segmentsEn.hasMoreElements()) {
+            pathBuf.append(segmentsEn.nextElement());
+            if (segmentsEn.hasMoreElements()) {
+                pathBuf.append("/");
+            }
+        }
+        return pathBuf.toString();
+    }
+
+    /**
+     * @param ftpPath absolute or relative ftp path
+     * @return path in the local file system
+     */
+    public String createNativePath(String ftpPath) {
+        String path;
+        if (ftpPath.charAt(0) == '/') {
+            path = baseDir + ftpPath;
+        } else {
+            path = baseDir + currentDir + "/" + ftpPath;
+        }
+        return path;
+    }
+}
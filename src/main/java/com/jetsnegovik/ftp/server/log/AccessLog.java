@@ -0,0 +1,287 @@
+package com.jetsnegovik.ftp.server.log;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Access log with one line per completed command. Sessions put records
+ * into a bounded lock-free ring and never wait: a full ring drops the
+ * record and counts it. One background thread formats the records and
+ * writes them in batches, and moves the file aside when it reaches its
+ * size limit (file, file.1, ... file.N).
+ *
+ * Lines are tab separated: time, session, client, user, verb, argument,
+ * reply code, bytes, microseconds; "-" for missing values.
+ *
+ * @author Вадим
+ */
+public class AccessLog {
+
+    private static final Logger logger = LoggerFactory.getLogger(AccessLog.class);
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+    private static final int BATCH_BYTES = 64 * 1024;
+    private final Path file;
+    private final long maxBytes;
+    private final int maxFiles;
+    private final int mask;
+    private final AtomicReferenceArray<Record> slots;
+    // slot sequence numbers of the bounded MPSC ring: producers claim a slot by CAS on tail
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder written = new LongAdder();
+    private final Thread writer;
+    private long head;
+    private FileChannel channel;
+    private long size;
+    private volatile boolean running = true;
+
+    /**
+     * @param file log file, appended to
+     * @param capacity records waiting for the writer, rounded up to a power of two
+     * @param maxBytes the file is rotated beyond this size
+     * @param maxFiles rotated files kept
+     * @throws IOException if the file cannot be opened
+     */
+    public AccessLog(Path file, int capacity, long maxBytes, int maxFiles) throws IOException {
+        this.file = file;
+        this.maxBytes = maxBytes;
+        this.maxFiles = maxFiles;
+        int slotCount = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.mask = slotCount - 1;
+        this.slots = new AtomicReferenceArray<Record>(slotCount);
+        this.sequences = new AtomicLongArray(slotCount);
+        for (int i = 0; i < slotCount; i++) {
+            sequences.set(i, i);
+        }
+        open();
+        this.writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drainLoop();
+            }
+        }, "access-log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Queue a record, never blocks
+     *
+     * @param session session number
+     * @param client client address
+     * @param user login name, null before USER
+     * @param verb command
+     * @param argument command argument, null if none
+     * @param code final reply code
+     * @param bytes bytes transferred, -1 if not a transfer
+     * @param micros time from command start to final reply
+     * @return false if the ring was full and the record was dropped
+     */
+    public boolean log(long session, InetAddress client, String user, String verb, String argument, int code,
+            long bytes, long micros) {
+        Record record = new Record(System.currentTimeMillis(), session, client, user, verb, argument, code, bytes,
+                micros);
+        for (;;) {
+            long position = tail.get();
+            int index = (int) position & mask;
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    slots.lazySet(index, record);
+                    sequences.lazySet(index, position + 1);
+                    return true;
+                }
+            } else if (difference < 0) {
+                // the writer has not freed this slot yet
+                dropped.increment();
+                return false;
+            }
+        }
+    }
+
+    /**
+     * @return records dropped because the ring was full
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * @return records written to the file
+     */
+    public long getWritten() {
+        return written.sum();
+    }
+
+    /**
+     * Write what is queued and close the file
+     */
+    public void shutdown() {
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private Record poll() {
+        int index = (int) head & mask;
+        if (sequences.get(index) != head + 1) {
+            return null;
+        }
+        Record record = slots.get(index);
+        slots.lazySet(index, null);
+        sequences.lazySet(index, head + mask + 1);
+        head++;
+        return record;
+    }
+
+    private void drainLoop() {
+        StringBuilder batch = new StringBuilder(BATCH_BYTES + 1024);
+        for (;;) {
+            boolean stopping = !running;
+            int count = 0;
+            Record record;
+            while (batch.length() < BATCH_BYTES && (record = poll()) != null) {
+                record.format(batch);
+                count++;
+            }
+            if (count > 0) {
+                try {
+                    write(batch);
+                    written.add(count);
+                } catch (IOException e) {
+                    dropped.add(count);
+                    logger.warn("Cannot write access log {}", file, e);
+                }
+                batch.setLength(0);
+            } else if (stopping) {
+                break;
+            } else {
+                LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+            }
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+        }
+    }
+
+    private void write(StringBuilder batch) throws IOException {
+        ByteBuffer bytes = StandardCharsets.UTF_8.encode(CharBuffer.wrap(batch));
+        if (size > 0 && size + bytes.remaining() > maxBytes) {
+            rotate();
+        }
+        while (bytes.hasRemaining()) {
+            size += channel.write(bytes);
+        }
+    }
+
+    private void rotate() throws IOException {
+        channel.close();
+        try {
+            if (maxFiles > 0) {
+                for (int i = maxFiles - 1; i > 0; i--) {
+                    Path older = rotated(i);
+                    if (Files.exists(older)) {
+                        Files.move(older, rotated(i + 1), StandardCopyOption.REPLACE_EXISTING);
+                    }
+                }
+                Files.move(file, rotated(1), StandardCopyOption.REPLACE_EXISTING);
+            } else {
+                Files.delete(file);
+            }
+        } finally {
+            // keep logging into the old file if it could not be moved
+            open();
+        }
+    }
+
+    private Path rotated(int index) {
+        return file.resolveSibling(file.getFileName() + "." + index);
+    }
+
+    private void open() throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        size = channel.size();
+    }
+
+    /**
+     * One completed command, formatted on the writer thread
+     */
+    private static final class Record {
+
+        final long time;
+        final long session;
+        final InetAddress client;
+        final String user;
+        final String verb;
+        final String argument;
+        final int code;
+        final long bytes;
+        final long micros;
+
+        Record(long time, long session, InetAddress client, String user, String verb, String argument,
+                int code, long bytes, long micros) {
+            this.time = time;
+            this.session = session;
+            this.client = client;
+            this.user = user;
+            this.verb = verb;
+            this.argument = argument;
+            this.code = code;
+            this.bytes = bytes;
+            this.micros = micros;
+        }
+
+        void format(StringBuilder out) {
+            out.append(Instant.ofEpochMilli(time)).append('\t');
+            out.append(session).append('\t');
+            field(out, client == null ? null : client.getHostAddress());
+            field(out, user);
+            field(out, verb);
+            field(out, argument);
+            out.append(code).append('\t');
+            if (bytes < 0) {
+                out.append('-');
+            } else {
+                out.append(bytes);
+            }
+            out.append('\t').append(micros).append('\n');
+        }
+
+        private static void field(StringBuilder out, String value) {
+            if (value == null || value.isEmpty()) {
+                out.append('-');
+            } else {
+                for (int i = 0; i < value.length(); i++) {
+                    char c = value.charAt(i);
+                    // a client controls the argument, it must not break the line format
+                    out.append(c < ' ' || c == 0x7f ? '?' : c);
+                }
+            }
+            out.append('\t');
+        }
+    }
+}
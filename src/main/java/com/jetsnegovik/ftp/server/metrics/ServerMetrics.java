@@ -0,0 +1,353 @@
+package com.jetsnegovik.ftp.server.metrics;
+
+import com.jetsnegovik.ftp.server.fs.FileCache;
+import com.jetsnegovik.ftp.server.log.AccessLog;
+import com.jetsnegovik.ftp.server.utils.ExecutorStats;
+import com.jetsnegovik.ftp.server.utils.FtpCommand;
+import io.netty.handler.traffic.TrafficCounter;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms of a running server. Recording is
+ * lock-free and cheap enough for every command; reading walks the
+ * histograms and is meant for scrapes and JMX.
+ *
+ * @author Вадим
+ */
+public class ServerMetrics implements ServerMetricsMXBean {
+
+    private static final FtpCommand[] COMMANDS = FtpCommand.values();
+    private static final int MAX_CODE = 600;
+    private final LatencyHistogram[] commandLatency = new LatencyHistogram[COMMANDS.length];
+    private final AtomicLongArray replies = new AtomicLongArray(MAX_CODE);
+    private final LongAdder activeSessions = new LongAdder();
+    private final LongAdder sessionsOpened = new LongAdder();
+    private final LongAdder sessionsRejected = new LongAdder();
+    private final LongAdder idleTimeouts = new LongAdder();
+    private final LatencyHistogram queueWait = new LatencyHistogram();
+    private final LatencyHistogram dataConnectionSetup = new LatencyHistogram();
+    private final LatencyHistogram sendTime = new LatencyHistogram();
+    private final LatencyHistogram receiveTime = new LatencyHistogram();
+    private final LongAdder transfersCompleted = new LongAdder();
+    private final LongAdder transfersFailed = new LongAdder();
+    private final LongAdder fileRegionBytes = new LongAdder();
+    // guarded by this: sample of fileRegionBytes behind the zero-copy send throughput
+    private long sampledBytes;
+    private long sampledNanos = System.nanoTime();
+    private long fileRegionThroughput;
+    private final ExecutorStats commandStats;
+    private final TrafficCounter dataTraffic;
+    private final FileCache fileCache;
+    private final AccessLog accessLog;
+
+    /**
+     * @param commandStats wait times of the command executor
+     * @param dataTraffic counter of all data channels
+     * @param fileCache file content cache, may be null
+     * @param accessLog access log, may be null
+     */
+    public ServerMetrics(ExecutorStats commandStats, TrafficCounter dataTraffic, FileCache fileCache,
+            AccessLog accessLog) {
+        this.commandStats = commandStats;
+        this.dataTraffic = dataTraffic;
+        this.fileCache = fileCache;
+        this.accessLog = accessLog;
+        for (int i = 0; i < commandLatency.length; i++) {
+            commandLatency[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * @param command verb
+     * @param nanos time from the start of the command to its final reply
+     */
+    public void recordCommand(FtpCommand command, long nanos) {
+        commandLatency[command.ordinal()].record(nanos);
+    }
+
+    /**
+     * @param nanos time a command waited in its session's queue behind
+     * earlier commands, from its arrival until it was taken
+     */
+    public void recordQueueWait(long nanos) {
+        queueWait.record(nanos);
+    }
+
+    public void recordReply(int code) {
+        if (code >= 0 && code < MAX_CODE) {
+            replies.incrementAndGet(code);
+        }
+    }
+
+    public void sessionOpened() {
+        sessionsOpened.increment();
+        activeSessions.increment();
+    }
+
+    public void sessionClosed() {
+        activeSessions.decrement();
+    }
+
+    /**
+     * Connection refused with 421, a connection limit was reached
+     */
+    public void sessionRejected() {
+        sessionsRejected.increment();
+    }
+
+    /**
+     * Session closed after the control idle timeout
+     */
+    public void idleTimeout() {
+        idleTimeouts.increment();
+    }
+
+    /**
+     * @param nanos time from PORT/PASV use to an open data channel
+     */
+    public void recordDataConnectionSetup(long nanos) {
+        dataConnectionSetup.record(nanos);
+    }
+
+    /**
+     * @param upload true for STOR/APPE, false for RETR and listings
+     * @param nanos time from open data channel to the last byte
+     * @param success false when the transfer was aborted
+     */
+    public void recordTransfer(boolean upload, long nanos, boolean success) {
+        if (success) {
+            transfersCompleted.increment();
+            (upload ? receiveTime : sendTime).record(nanos);
+        } else {
+            transfersFailed.increment();
+        }
+    }
+
+    /**
+     * Count a download sent with sendfile, the traffic counter of the
+     * shapers sees only buffers
+     *
+     * @param bytes bytes of the file region written to the socket
+     */
+    public void recordFileRegionSent(long bytes) {
+        fileRegionBytes.add(bytes);
+    }
+
+    @Override
+    public long getActiveSessions() {
+        return activeSessions.sum();
+    }
+
+    @Override
+    public long getSessionsOpened() {
+        return sessionsOpened.sum();
+    }
+
+    @Override
+    public long getSessionsRejected() {
+        return sessionsRejected.sum();
+    }
+
+    @Override
+    public long getIdleTimeouts() {
+        return idleTimeouts.sum();
+    }
+
+    @Override
+    public long getBytesSent() {
+        return dataTraffic.cumulativeWrittenBytes() + fileRegionBytes.sum();
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return dataTraffic.cumulativeReadBytes();
+    }
+
+    @Override
+    public long getSendThroughput() {
+        return dataTraffic.lastWriteThroughput() + fileRegionThroughput();
+    }
+
+    @Override
+    public long getReceiveThroughput() {
+        return dataTraffic.lastReadThroughput();
+    }
+
+    @Override
+    public long getTransfersCompleted() {
+        return transfersCompleted.sum();
+    }
+
+    @Override
+    public long getTransfersFailed() {
+        return transfersFailed.sum();
+    }
+
+    @Override
+    public long getDataConnectionSetupP50Micros() {
+        return dataConnectionSetup.getPercentileNanos(0.5) / 1000;
+    }
+
+    @Override
+    public long getDataConnectionSetupP99Micros() {
+        return dataConnectionSetup.getPercentileNanos(0.99) / 1000;
+    }
+
+    @Override
+    public long getCommandQueueDepth() {
+        return commandStats.getQueueDepth();
+    }
+
+    @Override
+    public long getCommandWaitMaxMicros() {
+        return commandStats.getMaxWaitNanos() / 1000;
+    }
+
+    @Override
+    public long getAccessLogDropped() {
+        return accessLog == null ? 0 : accessLog.getDropped();
+    }
+
+    @Override
+    public Map<String, Long> getCommandCounts() {
+        Map<String, Long> counts = new TreeMap<String, Long>();
+        for (FtpCommand command : COMMANDS) {
+            long count = commandLatency[command.ordinal()].getCount();
+            if (count > 0) {
+                counts.put(command.name(), count);
+            }
+        }
+        return counts;
+    }
+
+    @Override
+    public Map<String, Long> getCommandLatencyP99Micros() {
+        Map<String, Long> latencies = new TreeMap<String, Long>();
+        for (FtpCommand command : COMMANDS) {
+            LatencyHistogram histogram = commandLatency[command.ordinal()];
+            if (histogram.getCount() > 0) {
+                latencies.put(command.name(), histogram.getPercentileNanos(0.99) / 1000);
+            }
+        }
+        return latencies;
+    }
+
+    @Override
+    public Map<String, Long> getReplyCounts() {
+        Map<String, Long> counts = new TreeMap<String, Long>();
+        for (int code = 0; code < MAX_CODE; code++) {
+            long count = replies.get(code);
+            if (count > 0) {
+                counts.put(Integer.toString(code), count);
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Prometheus text format
+     */
+    @Override
+    public String dump() {
+        StringBuilder out = new StringBuilder(4096);
+        out.append("# TYPE ftp_command_seconds summary\n");
+        for (FtpCommand command : COMMANDS) {
+            LatencyHistogram histogram = commandLatency[command.ordinal()];
+            if (histogram.getCount() > 0) {
+                summary(out, "ftp_command_seconds", "verb=\"" + command.name() + "\"", histogram);
+            }
+        }
+        out.append("# TYPE ftp_replies_total counter\n");
+        for (int code = 0; code < MAX_CODE; code++) {
+            long count = replies.get(code);
+            if (count > 0) {
+                out.append("ftp_replies_total{code=\"").append(code).append("\"} ").append(count).append('\n');
+            }
+        }
+        gauge(out, "ftp_sessions_active", activeSessions.sum());
+        counter(out, "ftp_sessions_opened_total", sessionsOpened.sum());
+        counter(out, "ftp_sessions_rejected_total", sessionsRejected.sum());
+        counter(out, "ftp_sessions_idle_timeouts_total", idleTimeouts.sum());
+        counter(out, "ftp_data_sent_bytes_total", getBytesSent());
+        counter(out, "ftp_data_received_bytes_total", getBytesReceived());
+        gauge(out, "ftp_data_send_bytes_per_second", getSendThroughput());
+        gauge(out, "ftp_data_receive_bytes_per_second", getReceiveThroughput());
+        out.append("# TYPE ftp_data_connection_setup_seconds summary\n");
+        summary(out, "ftp_data_connection_setup_seconds", null, dataConnectionSetup);
+        out.append("# TYPE ftp_transfer_seconds summary\n");
+        summary(out, "ftp_transfer_seconds", "direction=\"send\"", sendTime);
+        summary(out, "ftp_transfer_seconds", "direction=\"receive\"", receiveTime);
+        out.append("# TYPE ftp_transfers_total counter\n");
+        out.append("ftp_transfers_total{result=\"completed\"} ").append(transfersCompleted.sum()).append('\n');
+        out.append("ftp_transfers_total{result=\"failed\"} ").append(transfersFailed.sum()).append('\n');
+        gauge(out, "ftp_command_queue_depth", commandStats.getQueueDepth());
+        counter(out, "ftp_command_queued_total", commandStats.getTaskCount());
+        out.append("# TYPE ftp_command_wait_seconds_total counter\n");
+        out.append("ftp_command_wait_seconds_total ").append(seconds(commandStats.getTotalWaitNanos())).append('\n');
+        out.append("# TYPE ftp_command_wait_max_seconds gauge\n");
+        out.append("ftp_command_wait_max_seconds ").append(seconds(commandStats.getMaxWaitNanos())).append('\n');
+        out.append("# TYPE ftp_command_queue_wait_seconds summary\n");
+        summary(out, "ftp_command_queue_wait_seconds", null, queueWait);
+        if (fileCache != null) {
+            counter(out, "ftp_file_cache_hits_total", fileCache.getHits());
+            counter(out, "ftp_file_cache_misses_total", fileCache.getMisses());
+            counter(out, "ftp_file_cache_evictions_total", fileCache.getEvictions());
+            gauge(out, "ftp_file_cache_bytes", fileCache.getBytes());
+            gauge(out, "ftp_file_cache_entries", fileCache.getEntries());
+        }
+        if (accessLog != null) {
+            counter(out, "ftp_access_log_records_total", accessLog.getWritten());
+            counter(out, "ftp_access_log_dropped_total", accessLog.getDropped());
+        }
+        return out.toString();
+    }
+
+    /**
+     * File regions are counted once they are sent, their rate is averaged
+     * between reads at least one check interval apart
+     *
+     * @return bytes per second sent with sendfile
+     */
+    private synchronized long fileRegionThroughput() {
+        long now = System.nanoTime();
+        long elapsed = now - sampledNanos;
+        if (elapsed >= TimeUnit.MILLISECONDS.toNanos(dataTraffic.checkInterval())) {
+            long bytes = fileRegionBytes.sum();
+            fileRegionThroughput = (long) ((bytes - sampledBytes) * 1e9 / elapsed);
+            sampledBytes = bytes;
+            sampledNanos = now;
+        }
+        return fileRegionThroughput;
+    }
+
+    private static void summary(StringBuilder out, String name, String labels, LatencyHistogram histogram) {
+        String prefix = labels == null ? "{" : "{" + labels + ",";
+        String suffix = labels == null ? "" : "{" + labels + "}";
+        out.append(name).append(prefix).append("quantile=\"0.5\"} ")
+                .append(seconds(histogram.getPercentileNanos(0.5))).append('\n');
+        out.append(name).append(prefix).append("quantile=\"0.99\"} ")
+                .append(seconds(histogram.getPercentileNanos(0.99))).append('\n');
+        out.append(name).append(prefix).append("quantile=\"0.999\"} ")
+                .append(seconds(histogram.getPercentileNanos(0.999))).append('\n');
+        out.append(name).append("_count").append(suffix).append(' ').append(histogram.getCount()).append('\n');
+        out.append(name).append("_sum").append(suffix).append(' ').append(seconds(histogram.getSumNanos())).append('\n');
+    }
+
+    private static void gauge(StringBuilder out, String name, long value) {
+        out.append("# TYPE ").append(name).append(" gauge\n");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void counter(StringBuilder out, String name, long value) {
+        out.append("# TYPE ").append(name).append(" counter\n");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static String seconds(long nanos) {
+        return Double.toString(nanos / 1e9);
+    }
+}
@@ -0,0 +1,52 @@
+package com.jetsnegovik.ftp.server.metrics;
+
+import java.util.Map;
+
+/**
+ * Server metrics over JMX, durations in microseconds
+ *
+ * @author Вадим
+ */
+public interface ServerMetricsMXBean {
+
+    long getActiveSessions();
+
+    long getSessionsOpened();
+
+    long getSessionsRejected();
+
+    long getIdleTimeouts();
+
+    long getBytesSent();
+
+    long getBytesReceived();
+
+    long getSendThroughput();
+
+    long getReceiveThroughput();
+
+    long getTransfersCompleted();
+
+    long getTransfersFailed();
+
+    long getDataConnectionSetupP50Micros();
+
+    long getDataConnectionSetupP99Micros();
+
+    long getCommandQueueDepth();
+
+    long getCommandWaitMaxMicros();
+
+    long getAccessLogDropped();
+
+    Map<String, Long> getCommandCounts();
+
+    Map<String, Long> getCommandLatencyP99Micros();
+
+    Map<String, Long> getReplyCounts();
+
+    /**
+     * @return all metrics in the text format of the scrape endpoint
+     */
+    String dump();
+}
@@ -0,0 +1,77 @@
+package com.jetsnegovik.ftp.server.utils;
+
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.EventExecutorGroup;
+import io.netty.util.concurrent.SingleThreadEventExecutor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Queue depth and task wait time of an executor group
+ *
+ * @author Вадим
+ */
+public class ExecutorStats {
+
+    private final EventExecutorGroup group;
+    private final LongAdder tasks = new LongAdder();
+    private final LongAdder totalWaitNanos = new LongAdder();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+
+    public ExecutorStats(EventExecutorGroup group) {
+        this.group = group;
+    }
+
+    /**
+     * @param nanos time between submission of the task and its start
+     */
+    public void recordWait(long nanos) {
+        tasks.increment();
+        totalWaitNanos.add(nanos);
+        long max;
+        while (nanos > (max = maxWaitNanos.get())) {
+            if (maxWaitNanos.compareAndSet(max, nanos)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * @return tasks waiting in all executors of the group
+     */
+    public int getQueueDepth() {
+        if (group == null) {
+            return 0;
+        }
+        int depth = 0;
+        for (EventExecutor executor : group) {
+            if (executor instanceof SingleThreadEventExecutor) {
+                depth += ((SingleThreadEventExecutor) executor).pendingTasks();
+            }
+        }
+        return depth;
+    }
+
+    public long getTaskCount() {
+        return tasks.sum();
+    }
+
+    public long getTotalWaitNanos() {
+        return totalWaitNanos.sum();
+    }
+
+    public long getMaxWaitNanos() {
+        return maxWaitNanos.get();
+    }
+
+    public long getAverageWaitNanos() {
+        long count = tasks.sum();
+        return count == 0 ? 0 : totalWaitNanos.sum() / count;
+    }
+
+    @Override
+    public String toString() {
+        return "queue=" + getQueueDepth() + ", tasks=" + getTaskCount()
+                + ", avgWaitUs=" + getAverageWaitNanos() / 1000 + ", maxWaitUs=" + getMaxWaitNanos() / 1000;
+    }
+}
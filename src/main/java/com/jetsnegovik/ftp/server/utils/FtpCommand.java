@@ -0,0 +1,107 @@
+package com.jetsnegovik.ftp.server.utils;
+
+/**
+ * FTP verbs known to the server. Lookup goes through an open-addressing
+ * table keyed by the verb's upper-cased ASCII bytes packed into a long,
+ * so decoding a verb needs neither a String nor a HashMap entry.
+ *
+ * @author Вадим
+ */
+public enum FtpCommand {
+
+    UNKNOWN,
+    USER,
+    PASS,
+    QUIT,
+    SYST,
+    CLNT,
+    NOOP,
+    PWD,
+    CWD,
+    TYPE,
+    MODE,
+    PORT,
+    PASV,
+    EPSV,
+    LIST,
+    NLST,
+    MLSD,
+    MLST,
+    FEAT,
+    RETR,
+    STOR,
+    APPE,
+    REST,
+    ALLO,
+    SIZE,
+    MKD,
+    RMD,
+    DELE,
+    RNFR,
+    RNTO,
+    HASH,
+    XCRC,
+    XMD5,
+    XSHA256,
+    STAT;
+
+    public static final int MAX_VERB_LENGTH = 8;
+    private static final int TABLE_SIZE = 128;
+    private static final FtpCommand[] TABLE = new FtpCommand[TABLE_SIZE];
+    private final long key;
+
+    static {
+        for (FtpCommand command : values()) {
+            if (command == UNKNOWN) {
+                continue;
+            }
+            int slot = slot(command.key);
+            while (TABLE[slot] != null) {
+                slot = (slot + 1) & (TABLE_SIZE - 1);
+            }
+            TABLE[slot] = command;
+        }
+    }
+
+    private FtpCommand() {
+        long k = 0;
+        String name = name();
+        if (name.length() <= MAX_VERB_LENGTH) {
+            for (int i = 0; i < name.length(); i++) {
+                k = k << 8 | name.charAt(i);
+            }
+        }
+        this.key = k;
+    }
+
+    /**
+     * Append one verb byte to a packed key
+     *
+     * @param key packed key so far
+     * @param b ASCII letter in any case or digit
+     * @return new key
+     */
+    public static long appendKey(long key, byte b) {
+        return key << 8 | (b >= 'a' ? b & 0xDF : b);
+    }
+
+    /**
+     * @param key verb packed with {@link #appendKey(long, byte)}
+     * @return command, UNKNOWN if the verb is not supported
+     */
+    public static FtpCommand lookup(long key) {
+        int slot = slot(key);
+        FtpCommand command;
+        while ((command = TABLE[slot]) != null) {
+            if (command.key == key) {
+                return command;
+            }
+            slot = (slot + 1) & (TABLE_SIZE - 1);
+        }
+        return UNKNOWN;
+    }
+
+    private static int slot(long key) {
+        return (int) ((key * 0x9E3779B97F4A7C15L) >>> 57);
+    }
+}
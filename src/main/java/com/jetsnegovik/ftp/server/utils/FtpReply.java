@@ -0,0 +1,68 @@
+package com.jetsnegovik.ftp.server.utils;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.CharsetUtil;
+
+/**
+ * Reply with constant text, encoded once into a shared direct buffer.
+ * Every send writes a duplicate, so nothing is copied or allocated per
+ * reply and releasing the duplicate does not free the shared bytes.
+ *
+ * @author Вадим
+ */
+public final class FtpReply {
+
+    private final int code;
+    private final String text;
+    private final ByteBuf encoded;
+
+    /**
+     * @param code reply code
+     * @param text single line of text
+     */
+    public FtpReply(int code, String text) {
+        this(code, text, code + " " + text + "\r\n");
+    }
+
+    private FtpReply(int code, String text, CharSequence line) {
+        this.code = code;
+        this.text = text;
+        byte[] bytes = line.toString().getBytes(CharsetUtil.UTF_8);
+        this.encoded = Unpooled.unreleasableBuffer(Unpooled.directBuffer(bytes.length).writeBytes(bytes));
+    }
+
+    /**
+     * Multi-line reply: "code-first", indented lines, "code last"
+     *
+     * @param code reply code
+     * @param first text of the first line
+     * @param lines lines in between, sent with a leading space
+     * @param last text of the last line
+     * @return reply
+     */
+    public static FtpReply multiLine(int code, String first, String[] lines, String last) {
+        StringBuilder text = new StringBuilder();
+        text.append(code).append('-').append(first).append("\r\n");
+        for (String line : lines) {
+            text.append(' ').append(line).append("\r\n");
+        }
+        text.append(code).append(' ').append(last).append("\r\n");
+        return new FtpReply(code, first, text);
+    }
+
+    public int getCode() {
+        return code;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * @return view of the encoded reply with its own indices
+     */
+    public ByteBuf encoded() {
+        return encoded.duplicate();
+    }
+}
@@ -0,0 +1,57 @@
+package com.jetsnegovik.ftp.server.utils;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.DefaultByteBufHolder;
+import io.netty.util.CharsetUtil;
+
+/**
+ * Decoded control line: the verb and a slice of the line holding the
+ * argument. The argument String is only built when a command asks for it.
+ *
+ * @author Вадим
+ */
+public class FtpRequest extends DefaultByteBufHolder {
+
+    private final FtpCommand command;
+    private final long receivedNanos = System.nanoTime();
+    private String argument;
+
+    /**
+     * @param command verb
+     * @param argument argument bytes, the whole line for UNKNOWN commands
+     */
+    public FtpRequest(FtpCommand command, ByteBuf argument) {
+        super(argument);
+        this.command = command;
+    }
+
+    public FtpCommand getCommand() {
+        return command;
+    }
+
+    /**
+     * @return System.nanoTime() when the line was decoded
+     */
+    public long getReceivedNanos() {
+        return receivedNanos;
+    }
+
+    public boolean hasArgument() {
+        return content().isReadable();
+    }
+
+    public String getArgument() {
+        if (argument == null) {
+            argument = content().toString(CharsetUtil.UTF_8);
+        }
+        return argument;
+    }
+
+    @Override
+    public String toString() {
+        if (command == FtpCommand.PASS) {
+            return "PASS ***";
+        }
+        return command == FtpCommand.UNKNOWN ? getArgument() : command + " " + getArgument();
+    }
+}
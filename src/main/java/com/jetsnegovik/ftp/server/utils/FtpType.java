@@ -1,35 +1,50 @@
 package com.jetsnegovik.ftp.server.utils;
 
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.net.Socket;
-
 /**
+ * Representation type of data transfers (TYPE command)
  *
  * @author Вадим
  */
 public class FtpType {
 
+    /**
+     * TYPE A: text, lines end with CRLF on the wire
+     */
+    public static final FtpType ASCII = new FtpType('A');
+    /**
+     * TYPE I (and L 8): bytes as they are
+     */
+    public static final FtpType IMAGE = new FtpType('I');
     private final char type;
 
-    public FtpType(char type) {
+    private FtpType(char type) {
         this.type = type;
     }
 
-    public InputStreamReader getStreamReader(Socket socket) throws IOException {
-        if (type == 'I') {
-            return new InputStreamReader(socket.getInputStream());
-        } else {
-            return new InputStreamReader(socket.getInputStream(), "ASCII");
+    /**
+     * @param code argument of TYPE
+     * @return type or null if not supported
+     */
+    public static FtpType valueOf(char code) {
+        switch (Character.toUpperCase(code)) {
+            case 'A':
+                return ASCII;
+            case 'I':
+            case 'L':
+                return IMAGE;
+            default:
+                return null;
         }
     }
 
-    public OutputStreamWriter getStreamWriter(Socket socket) throws IOException {
-        if (type == 'I') {
-            return new OutputStreamWriter(socket.getOutputStream());
-        } else {
-            return new OutputStreamWriter(socket.getOutputStream(), "ASCII");
-        }
+    public char getType() {
+        return type;
+    }
+
+    /**
+     * @return true if line endings of files are converted
+     */
+    public boolean isAscii() {
+        return type == 'A';
     }
 }
@@ -0,0 +1,79 @@
+package com.jetsnegovik.ftp.server;
+
+import java.io.File;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sessions share one handler, the state of each one has to stay its own:
+ * many clients change directory at the same time and every PWD has to
+ * report the directory of its own session.
+ *
+ * @author Вадим
+ */
+public class ConcurrentSessionsTest extends ServerTestCase {
+
+    private static final int SESSIONS = 32;
+    private static final int ROUNDS = 50;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        for (int i = 0; i < SESSIONS; i++) {
+            assertTrue(new File(root, "dir" + i + "/sub").mkdirs());
+        }
+    }
+
+    public void testPwdReportsOwnDirectory() throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(SESSIONS);
+        final Queue<String> failures = new ConcurrentLinkedQueue<String>();
+        for (int i = 0; i < SESSIONS; i++) {
+            final String dir = "/dir" + i;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        session(dir, start, failures);
+                    } catch (Exception e) {
+                        failures.add(dir + ": " + e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }, "client" + i).start();
+        }
+        start.countDown();
+        assertTrue("sessions did not finish", done.await(60, TimeUnit.SECONDS));
+        assertTrue(failures.toString(), failures.isEmpty());
+    }
+
+    private void session(String dir, CountDownLatch start, Queue<String> failures) throws Exception {
+        Client client = new Client(port);
+        try {
+            expect(client.reply(), "220", dir, failures);
+            start.await();
+            expect(client.command("USER morf"), "331", dir, failures);
+            expect(client.command("PASS 123"), "230", dir, failures);
+            for (int i = 0; i < ROUNDS; i++) {
+                String path = i % 2 == 0 ? dir : dir + "/sub";
+                expect(client.command("CWD " + path), "250", dir, failures);
+                String pwd = client.command("PWD");
+                if (!pwd.equals("257 " + path)) {
+                    failures.add(dir + ": PWD after CWD " + path + " got '" + pwd + "'");
+                }
+            }
+            client.command("QUIT");
+        } finally {
+            client.close();
+        }
+    }
+
+    private static void expect(String reply, String code, String dir, Queue<String> failures) {
+        if (!reply.startsWith(code + " ")) {
+            failures.add(dir + ": expected " + code + ", got '" + reply + "'");
+        }
+    }
+}
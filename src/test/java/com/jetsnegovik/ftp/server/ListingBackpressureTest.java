@@ -0,0 +1,82 @@
+package com.jetsnegovik.ftp.server;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A listing to a client that does not read must not hold the command
+ * executor it shares with other sessions
+ *
+ * @author Вадим
+ */
+public class ListingBackpressureTest extends ServerTestCase {
+
+    private static final int FILES = 30000;
+
+    @Override
+    protected void configure(ServerConfig config) {
+        // every session on the same executor
+        config.setCommandThreads(1);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        File big = new File(root, "big");
+        assertTrue(big.mkdir());
+        char[] padding = new char[150];
+        Arrays.fill(padding, 'x');
+        String prefix = new String(padding);
+        for (int i = 0; i < FILES; i++) {
+            assertTrue(new File(big, prefix + i).createNewFile());
+        }
+        assertTrue(new File(root, "small").mkdir());
+    }
+
+    public void testStalledListingDoesNotDelayOtherSession() throws Exception {
+        Client slow = login();
+        Client other = login();
+        try {
+            String reply = slow.command("EPSV");
+            slow.expect("229", reply);
+            int end = reply.lastIndexOf('|');
+            int start = reply.lastIndexOf('|', end - 1);
+            Socket data = new Socket();
+            // a small window, the listing backs up on the server
+            data.setReceiveBufferSize(4096);
+            data.connect(new InetSocketAddress("127.0.0.1",
+                    Integer.parseInt(reply.substring(start + 1, end))));
+            data.setSoTimeout(30000);
+            try {
+                slow.expect("150", slow.command("LIST big"));
+                Thread.sleep(500);
+
+                long begin = System.nanoTime();
+                other.expect("250", other.command("CWD small"));
+                other.expect("257", other.command("PWD"));
+                other.expect("211", other.command("STAT"));
+                long elapsed = (System.nanoTime() - begin) / 1000000;
+                assertTrue("other session waited " + elapsed + " ms", elapsed < 5000);
+
+                BufferedReader lines = new BufferedReader(new InputStreamReader(data.getInputStream(),
+                        StandardCharsets.UTF_8));
+                int entries = 0;
+                while (lines.readLine() != null) {
+                    entries++;
+                }
+                assertEquals(FILES, entries);
+                slow.expect("226", slow.reply());
+            } finally {
+                data.close();
+            }
+        } finally {
+            slow.close();
+            other.close();
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.jetsnegovik.ftp.server;
+
+import java.io.File;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/**
+ * Data bytes reported by the metrics endpoint
+ *
+ * @author Вадим
+ */
+public class MetricsTest extends ServerTestCase {
+
+    private static final int SIZE = 3 * 1024 * 1024;
+    private int metricsPort;
+
+    @Override
+    protected void configure(ServerConfig config) {
+        try {
+            metricsPort = freePort();
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+        config.setMetricsPort(metricsPort);
+    }
+
+    public void testZeroCopyDownloadIsCounted() throws Exception {
+        Files.write(new File(root, "large").toPath(), new byte[SIZE]);
+        awaitPort(metricsPort);
+        long before = metric("ftp_data_sent_bytes_total");
+        Client client = login();
+        try {
+            // no write limit: the file goes out as a FileRegion
+            assertEquals(SIZE, client.retrieve("RETR large").length);
+        } finally {
+            client.close();
+        }
+        assertTrue(metric("ftp_data_sent_bytes_total") - before >= SIZE);
+    }
+
+    private long metric(String name) throws Exception {
+        InputStream in = new URL("http://127.0.0.1:" + metricsPort + "/metrics").openStream();
+        try {
+            for (String line : new String(readAll(in), StandardCharsets.UTF_8).split("\n")) {
+                if (line.startsWith(name + " ")) {
+                    return Long.parseLong(line.substring(name.length() + 1).trim());
+                }
+            }
+        } finally {
+            in.close();
+        }
+        fail(name + " not found");
+        return 0;
+    }
+}
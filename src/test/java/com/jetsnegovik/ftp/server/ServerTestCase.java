@@ -0,0 +1,218 @@
+package com.jetsnegovik.ftp.server;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import junit.framework.TestCase;
+
+/**
+ * Runs a server on a free port over a temporary root directory and talks
+ * to it like a client does
+ *
+ * @author Вадим
+ */
+public abstract class ServerTestCase extends TestCase {
+
+    protected File root;
+    protected int port;
+    private Server server;
+    private Thread serverThread;
+
+    @Override
+    protected void setUp() throws Exception {
+        root = Files.createTempDirectory("ftp-test").toFile();
+        port = freePort();
+        ServerConfig config = new ServerConfig();
+        config.setPort(port);
+        config.setRootDir(root.getPath());
+        config.setMetricsPort(0);
+        // all clients come from the loopback address
+        config.setMaxConnectionsPerAddress(0);
+        configure(config);
+        server = new Server(config);
+        serverThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    server.run();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }, "ftp-server");
+        serverThread.start();
+        awaitPort(port);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        server.stop();
+        serverThread.join(10000);
+        deleteRecursively(root);
+    }
+
+    /**
+     * Change the configuration before the server starts
+     *
+     * @param config
+     */
+    protected void configure(ServerConfig config) {
+    }
+
+    /**
+     * Control connection, greeted and logged in
+     */
+    protected Client login() throws IOException {
+        Client client = new Client(port);
+        client.expect("220", client.reply());
+        client.expect("331", client.command("USER morf"));
+        client.expect("230", client.command("PASS 123"));
+        return client;
+    }
+
+    protected static int freePort() throws IOException {
+        ServerSocket probe = new ServerSocket(0);
+        int free = probe.getLocalPort();
+        probe.close();
+        return free;
+    }
+
+    protected static void awaitPort(int port) throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            try {
+                new Socket("127.0.0.1", port).close();
+                return;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        fail("Server did not start on port " + port);
+    }
+
+    protected static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * Control connection of one client
+     */
+    protected static class Client {
+
+        private final Socket socket;
+        private final BufferedReader in;
+        private final OutputStream out;
+
+        public Client(int port) throws IOException {
+            socket = new Socket("127.0.0.1", port);
+            socket.setSoTimeout(30000);
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            out = socket.getOutputStream();
+        }
+
+        public String command(String line) throws IOException {
+            send(line);
+            return reply();
+        }
+
+        public void send(String line) throws IOException {
+            out.write((line + "\r\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        }
+
+        /**
+         * @return last line of a possibly multi-line reply
+         */
+        public String reply() throws IOException {
+            String line;
+            do {
+                line = in.readLine();
+                if (line == null) {
+                    throw new IOException("Connection closed");
+                }
+            } while (line.length() < 4 || line.charAt(3) != ' ');
+            return line;
+        }
+
+        public void expect(String code, String reply) {
+            assertTrue("expected " + code + ", got '" + reply + "'", reply.startsWith(code + " "));
+        }
+
+        /**
+         * Enter passive mode and connect to the announced port
+         *
+         * @return data connection
+         */
+        public Socket passive() throws IOException {
+            String reply = command("EPSV");
+            expect("229", reply);
+            int end = reply.lastIndexOf('|');
+            int start = reply.lastIndexOf('|', end - 1);
+            Socket data = new Socket("127.0.0.1", Integer.parseInt(reply.substring(start + 1, end)));
+            data.setSoTimeout(30000);
+            return data;
+        }
+
+        /**
+         * Download a file in full
+         *
+         * @param command RETR and its argument
+         * @return content as received
+         */
+        public byte[] retrieve(String command) throws IOException {
+            Socket data = passive();
+            try {
+                expect("150", command(command));
+                byte[] content = readAll(data.getInputStream());
+                expect("226", reply());
+                return content;
+            } finally {
+                data.close();
+            }
+        }
+
+        /**
+         * Upload content in full
+         *
+         * @param command STOR or APPE and its argument
+         * @param content bytes to send
+         */
+        public void store(String command, byte[] content) throws IOException {
+            Socket data = passive();
+            try {
+                expect("150", command(command));
+                data.getOutputStream().write(content);
+            } finally {
+                data.close();
+            }
+            expect("226", reply());
+        }
+
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
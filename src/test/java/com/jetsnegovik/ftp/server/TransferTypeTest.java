@@ -0,0 +1,87 @@
+package com.jetsnegovik.ftp.server;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+/**
+ * Files go byte for byte unless the client asks for TYPE A, the RFC 959
+ * default type does not convert line ends
+ *
+ * @author Вадим
+ */
+public class TransferTypeTest extends ServerTestCase {
+
+    private static final byte[] CONTENT = "one\ntwo\r\nthree\n\u0000ÿ\n".getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] NETWORK = "one\r\ntwo\r\nthree\r\n\u0000ÿ\r\n"
+            .getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] STORED = "one\ntwo\nthree\n\u0000ÿ\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        Files.write(new File(root, "text").toPath(), CONTENT);
+    }
+
+    public void testDefaultTypeRetrievesBytesAsTheyAre() throws Exception {
+        Client client = login();
+        try {
+            assertTrue(Arrays.equals(CONTENT, client.retrieve("RETR text")));
+        } finally {
+            client.close();
+        }
+    }
+
+    public void testDefaultTypeStoresBytesAsTheyAre() throws Exception {
+        Client client = login();
+        try {
+            client.store("STOR stored", NETWORK);
+            assertTrue(Arrays.equals(NETWORK, Files.readAllBytes(new File(root, "stored").toPath())));
+        } finally {
+            client.close();
+        }
+    }
+
+    public void testTypeAConvertsLineEnds() throws Exception {
+        Client client = login();
+        try {
+            client.expect("215", client.command("TYPE A"));
+            assertTrue(Arrays.equals(NETWORK, client.retrieve("RETR text")));
+            client.store("STOR stored", NETWORK);
+            assertTrue(Arrays.equals(STORED, Files.readAllBytes(new File(root, "stored").toPath())));
+        } finally {
+            client.close();
+        }
+    }
+
+    public void testTypeIAfterTypeA() throws Exception {
+        Client client = login();
+        try {
+            client.expect("215", client.command("TYPE A"));
+            client.expect("215", client.command("TYPE I"));
+            assertTrue(Arrays.equals(CONTENT, client.retrieve("RETR text")));
+        } finally {
+            client.close();
+        }
+    }
+
+    public void testRestartRefusedInTypeA() throws Exception {
+        Client client = login();
+        try {
+            client.expect("215", client.command("TYPE A"));
+            client.expect("350", client.command("REST 5"));
+            client.expect("504", client.command("RETR text"));
+            client.expect("350", client.command("REST 5"));
+            client.expect("504", client.command("STOR text"));
+            assertTrue(Arrays.equals(CONTENT, Files.readAllBytes(new File(root, "text").toPath())));
+            // the offset applies to the refused command only
+            assertTrue(Arrays.equals(NETWORK, client.retrieve("RETR text")));
+            client.expect("215", client.command("TYPE I"));
+            client.expect("350", client.command("REST 5"));
+            assertTrue(Arrays.equals(Arrays.copyOfRange(CONTENT, 5, CONTENT.length), client.retrieve("RETR text")));
+        } finally {
+            client.close();
+        }
+    }
+}
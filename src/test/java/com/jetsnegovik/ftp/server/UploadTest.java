@@ -0,0 +1,39 @@
+package com.jetsnegovik.ftp.server;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+/**
+ * New files are written under a temporary name and published complete
+ *
+ * @author Вадим
+ */
+public class UploadTest extends ServerTestCase {
+
+    public void testAllocatedSizeIsCutToReceived() throws Exception {
+        byte[] content = new byte[100000];
+        Arrays.fill(content, (byte) 'x');
+        Client client = login();
+        try {
+            client.expect("200", client.command("ALLO 1000000"));
+            client.store("STOR allocated", content);
+            assertTrue(Arrays.equals(content, Files.readAllBytes(new File(root, "allocated").toPath())));
+        } finally {
+            client.close();
+        }
+    }
+
+    public void testLongestNameIsStored() throws Exception {
+        char[] name = new char[255];
+        Arrays.fill(name, 'n');
+        Client client = login();
+        try {
+            client.store("STOR " + new String(name), new byte[] {1, 2, 3});
+            assertEquals(3, new File(root, new String(name)).length());
+        } finally {
+            client.close();
+        }
+        assertEquals("temporary file left over", 1, root.list().length);
+    }
+}
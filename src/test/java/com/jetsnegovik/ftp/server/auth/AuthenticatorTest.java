@@ -0,0 +1,40 @@
+package com.jetsnegovik.ftp.server.auth;
+
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.ImmediateEventExecutor;
+import java.io.IOException;
+import java.net.InetAddress;
+import junit.framework.TestCase;
+
+/**
+ * Every login gets an answer, whatever the user store does
+ *
+ * @author Вадим
+ */
+public class AuthenticatorTest extends TestCase {
+
+    public void testStoreErrorFailsLogin() throws Exception {
+        Authenticator authenticator = new Authenticator(new UserStore() {
+            @Override
+            public boolean authenticate(String username, String password) throws IOException {
+                throw new StackOverflowError();
+            }
+
+            @Override
+            public long reload() throws IOException {
+                return 0;
+            }
+        }, 1, 0, 0);
+        try {
+            // the second login runs on the same worker after the first one failed
+            for (int i = 0; i < 2; i++) {
+                Future<Authenticator.Result> result = authenticator.authenticate("alice", "secret",
+                        InetAddress.getLoopbackAddress(), ImmediateEventExecutor.INSTANCE);
+                assertTrue("login not answered", result.await(5000));
+                assertEquals(Authenticator.Result.FAILED, result.getNow());
+            }
+        } finally {
+            authenticator.shutdown();
+        }
+    }
+}
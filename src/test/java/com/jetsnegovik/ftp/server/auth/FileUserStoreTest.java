@@ -0,0 +1,66 @@
+package com.jetsnegovik.ftp.server.auth;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import junit.framework.TestCase;
+
+/**
+ * Reloading of the users file
+ *
+ * @author Вадим
+ */
+public class FileUserStoreTest extends TestCase {
+
+    private Path file;
+    private long mtime = 1000000;
+
+    @Override
+    protected void setUp() throws Exception {
+        file = Files.createTempFile("ftp-users", ".txt");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        Files.deleteIfExists(file);
+    }
+
+    public void testMalformedFileIsRefusedAtStart() throws Exception {
+        write("alice");
+        try {
+            new FileUserStore(file);
+            fail("malformed file accepted");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(":1:"));
+        }
+    }
+
+    public void testMalformedChangeKeepsPreviousAccounts() throws Exception {
+        write(account("alice", "secret"));
+        FileUserStore store = new FileUserStore(file);
+        long generation = store.reload();
+        write(account("alice", "changed"), "bob:pbkdf2-sha256:broken");
+        assertTrue(store.authenticate("alice", "secret"));
+        assertFalse(store.authenticate("alice", "changed"));
+        assertEquals(generation, store.reload());
+        // the fixed file is taken once it changes again
+        write(account("alice", "changed"), account("bob", "other"));
+        assertTrue(store.authenticate("alice", "changed"));
+        assertTrue(store.authenticate("bob", "other"));
+        assertEquals(generation + 1, store.reload());
+    }
+
+    private static String account(String username, String password) {
+        return username + ":" + PasswordHash.create(password, 1);
+    }
+
+    private void write(String... lines) throws IOException {
+        Files.write(file, Arrays.asList(lines), StandardCharsets.UTF_8);
+        // a distinct mtime for every write, the file system clock may be coarse
+        mtime += 1000;
+        Files.setLastModifiedTime(file, FileTime.fromMillis(mtime));
+    }
+}
@@ -0,0 +1,92 @@
+package com.jetsnegovik.ftp.server.fs;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import junit.framework.TestCase;
+
+/**
+ * Stamps, watches and invalidation of cached listings
+ *
+ * @author Вадим
+ */
+public class ListingCacheTest extends TestCase {
+
+    private static final byte[] LISTING = "listing\r\n".getBytes();
+    private Path root;
+    private Path first;
+    private Path second;
+    private ListingCache cache;
+
+    @Override
+    protected void setUp() throws Exception {
+        root = Files.createTempDirectory("ftp-listing").toAbsolutePath().normalize();
+        first = Files.createDirectory(root.resolve("first"));
+        second = Files.createDirectory(root.resolve("second"));
+        cache = new ListingCache(1024 * 1024, 1024);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        cache.close();
+        for (File file : root.toFile().listFiles()) {
+            for (File child : file.listFiles()) {
+                child.delete();
+            }
+            file.delete();
+        }
+        root.toFile().delete();
+    }
+
+    public void testPutAfterStampIsCached() {
+        put(first, cache.stamp(first));
+        assertSame(LISTING, cache.get(first, 0));
+        assertEquals(1, cache.getWatched());
+    }
+
+    public void testInvalidationOfSameDirectoryDropsListing() {
+        long stamp = cache.stamp(first);
+        cache.invalidate(first);
+        put(first, stamp);
+        assertNull(cache.get(first, 0));
+        assertEquals(0, cache.getWatched());
+    }
+
+    public void testInvalidationOfOtherDirectoryKeepsListing() {
+        long stamp = cache.stamp(first);
+        cache.stamp(second);
+        cache.invalidate(second);
+        put(first, stamp);
+        assertSame(LISTING, cache.get(first, 0));
+    }
+
+    public void testNothingStoredIsNotWatched() {
+        cache.put(first, 0, first.toFile().lastModified(), cache.stamp(first), null);
+        cache.put(second, 0, second.toFile().lastModified(), cache.stamp(second), new byte[2048]);
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getWatched());
+    }
+
+    public void testConcurrentListingKeepsWatch() {
+        long stamp = cache.stamp(first);
+        long other = cache.stamp(first);
+        cache.put(first, 0, first.toFile().lastModified(), other, null);
+        assertEquals(1, cache.getWatched());
+        put(first, stamp);
+        assertSame(LISTING, cache.get(first, 0));
+    }
+
+    public void testChangeInvalidates() throws Exception {
+        put(first, cache.stamp(first));
+        Files.createFile(first.resolve("new"));
+        for (int i = 0; i < 100 && cache.get(first, 0) != null; i++) {
+            Thread.sleep(50);
+        }
+        assertNull(cache.get(first, 0));
+        assertEquals(0, cache.getWatched());
+    }
+
+    private void put(Path dir, long stamp) {
+        cache.put(dir, 0, dir.toFile().lastModified(), stamp, LISTING);
+    }
+}